@@ -0,0 +1,22 @@
+package com.clevertap.stormdb;
+
+import java.io.IOException;
+
+/**
+ * Receives the records of a block at a time, see {@link StormDB#iterateBlocks(BlockConsumer)}. This
+ * saves a call per record, and lets the consumer loop over contiguous memory.
+ */
+public interface BlockConsumer {
+
+    /**
+     * @param data    The records, back to back, each being a key (4 bytes) followed by its value.
+     *                Only valid during this call
+     * @param offset  The position of the first record in data
+     * @param records The number of records, at most {@link Config#RECORDS_PER_BLOCK}
+     * @param live    A bit per record: record i is to be used only if
+     *                {@code (live[i >>> 6] & (1L << i)) != 0}. The others are stale, or repeat a
+     *                record which was passed already. Only valid during this call
+     */
+    void accept(final byte[] data, final int offset, final int records, final long[] live)
+            throws IOException;
+}
@@ -1,6 +1,7 @@
 package com.clevertap.stormdb;
 
 import com.clevertap.stormdb.utils.ByteUtil;
+import com.clevertap.stormdb.utils.RecordUtil;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
@@ -19,6 +20,8 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Utilities to recover blocks from a corrupted file.
+ * <p>
+ * WAL files may also contain partial blocks, see {@link WalBlockTable}.
  */
 public class BlockUtil {
 
@@ -27,13 +30,51 @@ public class BlockUtil {
 
     private static final Logger LOG = LoggerFactory.getLogger(BlockUtil.class);
 
-    private static File rewriteBlocks(final File dirty, final int valueSize) throws IOException {
+    /**
+     * Finds the number of records in a partial block, by looking for a record count which is
+     * followed by a matching CRC32 checksum.
+     *
+     * @param data      The bytes following the partial sync marker
+     * @param available The number of valid bytes in data
+     * @return The number of records, or -1 if this isn't a valid partial block
+     */
+    private static int partialBlockRecords(final byte[] data, final int available,
+            final int recordSize, final CRC32 crc32) {
+        for (int records = 1; records < Config.RECORDS_PER_BLOCK; records++) {
+            final int countOffset = records * recordSize;
+            if (countOffset + WalBlockTable.PARTIAL_BLOCK_TRAILER_SIZE > available) {
+                break;
+            }
+            if (ByteUtil.toInt(data, countOffset) != records) {
+                continue;
+            }
+            crc32.reset();
+            crc32.update(data, 0, countOffset);
+            if (ByteUtil.toInt(data, countOffset + Config.KEY_SIZE) == (int) crc32.getValue()) {
+                return records;
+            }
+        }
+        return -1;
+    }
+
+    private static int maxPartialBlockBodySize(final int recordSize) {
+        return (Config.RECORDS_PER_BLOCK - 1) * recordSize
+                + WalBlockTable.PARTIAL_BLOCK_TRAILER_SIZE;
+    }
+
+    private static File rewriteBlocks(final File dirty, final int valueSize,
+            final WalBlockTable blocks) throws IOException {
         LOG.info("Attempting to recover data in {}", dirty);
         final int recordSize = valueSize + Config.KEY_SIZE;
         final File newFile = new File(dirty.getParentFile(), dirty.getName() + ".recovered");
 
         final byte[] syncMarker = Buffer.getSyncMarker(valueSize);
+        final byte[] partialSyncMarker = Buffer.getPartialSyncMarker(valueSize);
+        final byte[] partialData = new byte[maxPartialBlockBodySize(recordSize)];
         long blocksRecovered = 0;
+        if (blocks != null) {
+            blocks.clear();
+        }
 
         try (final RandomAccessFile in = new RandomAccessFile(dirty, "r");
                 final DataOutputStream out = new DataOutputStream(
@@ -73,6 +114,28 @@ public class BlockUtil {
                         out.writeInt((int) (crc32.getValue()));
                         syncMarkerBuffer.clear();
                         blocksRecovered++;
+                    } else if (blocks != null
+                            && ByteUtil.arrayEquals(partialSyncMarker, syncMarkerBuffer)) {
+                        final int bytesRead = Math.max(in.read(partialData), 0);
+                        final int records = partialBlockRecords(partialData, bytesRead,
+                                recordSize, crc32);
+                        if (records == -1) {
+                            // Not a partial block after all, continue from the byte after the
+                            // first byte of this sync marker.
+                            in.seek(in.getFilePointer() - bytesRead - partialSyncMarker.length + 1);
+                            syncMarkerBuffer.clear();
+                            continue;
+                        }
+
+                        final int bodySize = records * recordSize
+                                + WalBlockTable.PARTIAL_BLOCK_TRAILER_SIZE;
+                        in.seek(in.getFilePointer() - bytesRead + bodySize);
+
+                        out.write(partialSyncMarker);
+                        out.write(partialData, 0, bodySize);
+                        syncMarkerBuffer.clear();
+                        blocks.addPartialBlock((int) blocksRecovered, records);
+                        blocksRecovered++;
                     } else {
                         // Misalignment of the data in the middle of the file.
                         syncMarkerBuffer.removeFirst();
@@ -105,6 +168,15 @@ public class BlockUtil {
      * data.
      */
     static File verifyBlocks(final File dirty, final int valueSize) throws IOException {
+        return verifyBlocks(dirty, valueSize, null);
+    }
+
+    /**
+     * Same as {@link #verifyBlocks(File, int)}, however, partial blocks are accepted too, and
+     * recorded in the given table. Use this for WAL files only.
+     */
+    static File verifyBlocks(final File dirty, final int valueSize, final WalBlockTable blocks)
+            throws IOException {
         if (!dirty.exists() || dirty.length() == 0) {
             return dirty;
         }
@@ -112,8 +184,12 @@ public class BlockUtil {
         final int recordSize = valueSize + Config.KEY_SIZE;
 
         final byte[] syncMarker = Buffer.getSyncMarker(valueSize);
+        final byte[] partialSyncMarker = Buffer.getPartialSyncMarker(valueSize);
+        final int maxPartialBodySize = maxPartialBlockBodySize(recordSize);
+        final byte[] partialData = new byte[maxPartialBodySize];
 
         boolean corrupted = false;
+        long bytesVerified = 0;
 
         try (final DataInputStream in = new DataInputStream(new BufferedInputStream(
                 new FileInputStream(dirty)))) {
@@ -146,6 +222,27 @@ public class BlockUtil {
                         }
 
                         validBlocks++;
+                        bytesVerified += RecordUtil.blockSizeWithTrailer(recordSize);
+                        syncMarkerBuffer.clear();
+                    } else if (blocks != null
+                            && ByteUtil.arrayEquals(partialSyncMarker, syncMarkerBuffer)) {
+                        in.mark(maxPartialBodySize);
+                        final int bytesRead = readUpTo(in, partialData);
+                        final int records = partialBlockRecords(partialData, bytesRead,
+                                recordSize, crc32);
+                        if (records == -1) {
+                            corrupted = true;
+                            break;
+                        }
+
+                        in.reset();
+                        final int bodySize = records * recordSize
+                                + WalBlockTable.PARTIAL_BLOCK_TRAILER_SIZE;
+                        in.readFully(partialData, 0, bodySize);
+
+                        blocks.addPartialBlock((int) validBlocks, records);
+                        validBlocks++;
+                        bytesVerified += syncMarker.length + bodySize;
                         syncMarkerBuffer.clear();
                     } else {
                         corrupted = true;
@@ -162,17 +259,13 @@ public class BlockUtil {
             }
 
             // Validate blocks with file size.
-            if (!corrupted) {
-                final long expectedSize = validBlocks * recordSize * Config.RECORDS_PER_BLOCK
-                        + (validBlocks * (Config.CRC_SIZE + recordSize));
-                if (expectedSize != dirty.length()) {
-                    corrupted = true;
-                }
+            if (!corrupted && bytesVerified != dirty.length()) {
+                corrupted = true;
             }
         }
 
         if (corrupted) {
-            final File reconstructed = rewriteBlocks(dirty, valueSize);
+            final File reconstructed = rewriteBlocks(dirty, valueSize, blocks);
             Files.move(reconstructed.toPath(), dirty.toPath(),
                     StandardCopyOption.REPLACE_EXISTING,
                     StandardCopyOption.ATOMIC_MOVE);
@@ -182,4 +275,21 @@ public class BlockUtil {
 
         return dirty;
     }
+
+    /**
+     * Reads until the array is full, or the end of the stream is reached.
+     *
+     * @return The number of bytes read
+     */
+    private static int readUpTo(final DataInputStream in, final byte[] data) throws IOException {
+        int bytesRead = 0;
+        while (bytesRead < data.length) {
+            final int read = in.read(data, bytesRead, data.length - bytesRead);
+            if (read == -1) {
+                break;
+            }
+            bytesRead += read;
+        }
+        return bytesRead;
+    }
 }
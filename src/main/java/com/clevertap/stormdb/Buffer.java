@@ -8,11 +8,16 @@ import static com.clevertap.stormdb.Config.RECORDS_PER_BLOCK;
 import com.clevertap.stormdb.exceptions.ReadOnlyBufferException;
 import com.clevertap.stormdb.exceptions.StormDBRuntimeException;
 import com.clevertap.stormdb.exceptions.ValueSizeTooLargeException;
+import com.clevertap.stormdb.utils.ByteUtil;
 import com.clevertap.stormdb.utils.RecordUtil;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
@@ -23,16 +28,31 @@ import java.util.zip.CRC32;
  * The {@link Buffer} is a logical extension of the WAL file. For a random get, if the index points
  * to an offset greater than that of the actual WAL file, then it's assumed to be in the write
  * buffer.
+ * <p>
+ * Write buffers are allocated once, off heap, and are reused after every flush. Nothing is
+ * allocated for adding records, or for writing them to a {@link WritableByteChannel}.
  */
 public class Buffer {
 
-    private ByteBuffer byteBuffer;
+    private final ByteBuffer byteBuffer;
     private final int valueSize;
     private final int recordSize;
     private final boolean readOnly;
     private final Config dbConfig;
     private final int maxRecords;
 
+    // The following are only used by write buffers, and always by a single thread at a time.
+    private ByteBuffer writerView;
+    private ByteBuffer flushView;
+    private CRC32 crc32;
+    private byte[] syncMarker;
+    private byte[] partialSyncMarker;
+    private byte[] paddingValue;
+
+    private boolean sealed;
+    private int partialBlockRecords;
+    private int recordBytes;
+
     /**
      * Initialises a write buffer for the WAL file with the following specification:
      * <ol>
@@ -43,6 +63,8 @@ public class Buffer {
      *     <li>Then calculate how many CRCs and sync markers need to be accommodated</li>
      *     <li>Finally, initialise a write buffer of the sum of bytes required</li>
      * </ol>
+     * Write buffers are direct, so that they can be written to the WAL file without copying.
+     * Read only buffers stay on the heap, since their records are handed out as arrays.
      *
      * @param dbConfig Configuration using which db instance is produced
      * @param readOnly Whether buffer is read only.
@@ -64,7 +86,17 @@ public class Buffer {
         final int writeBufferSize = blocks * RECORDS_PER_BLOCK * recordSize
                 + (blocks * (CRC_SIZE + recordSize));
 
-        byteBuffer = ByteBuffer.allocate(writeBufferSize);
+        if (readOnly) {
+            byteBuffer = ByteBuffer.allocate(writeBufferSize);
+        } else {
+            byteBuffer = ByteBuffer.allocateDirect(writeBufferSize);
+            writerView = byteBuffer.duplicate();
+            flushView = byteBuffer.duplicate();
+            crc32 = new CRC32();
+            syncMarker = getSyncMarker(valueSize);
+            partialSyncMarker = getPartialSyncMarker(valueSize);
+            paddingValue = new byte[valueSize];
+        }
     }
 
     int capacity() {
@@ -87,26 +119,231 @@ public class Buffer {
         return byteBuffer.capacity();
     }
 
+    /**
+     * Seals this buffer, and writes it to the channel.
+     *
+     * @return The number of bytes written
+     */
+    int flush(final WritableByteChannel out) throws IOException {
+        final int bytes = seal();
+        if (bytes == 0) {
+            return 0;
+        }
+
+        flushView.clear();
+        flushView.limit(bytes);
+        while (flushView.hasRemaining()) {
+            out.write(flushView);
+        }
+        return bytes;
+    }
+
+    /**
+     * Same as {@link #flush(WritableByteChannel)}, however, the records are copied through a heap
+     * buffer on their way to the stream.
+     */
     int flush(final OutputStream out) throws IOException {
+        final int bytes = flush(Channels.newChannel(out));
+        out.flush();
+        return bytes;
+    }
+
+    /**
+     * Completes the last block, so that the buffer can be written out as is. No records can be
+     * added to a sealed buffer until it's cleared.
+     *
+     * @return The number of bytes which will be written when this buffer is flushed
+     */
+    int seal() {
         if (readOnly) {
             throw new ReadOnlyBufferException("Initialised in read only mode!");
         }
 
-        if (byteBuffer.position() == 0) {
-            return 0;
+        if (sealed || byteBuffer.position() == 0) {
+            return byteBuffer.position();
         }
+        sealed = true;
 
         // Fill the block with the last record, if required.
-        while ((RecordUtil.addressToIndex(recordSize, byteBuffer.position()))
-                % RECORDS_PER_BLOCK != 0) {
-            final int key = byteBuffer.getInt(byteBuffer.position() - recordSize);
-            add(key, byteBuffer.array(), byteBuffer.position() - recordSize + KEY_SIZE);
+        if (RecordUtil.addressToIndex(recordSize, byteBuffer.position()) % RECORDS_PER_BLOCK != 0) {
+            final int lastRecordAddress = byteBuffer.position() - recordSize;
+            final int key = byteBuffer.getInt(lastRecordAddress);
+            writerView.clear();
+            writerView.position(lastRecordAddress + KEY_SIZE);
+            writerView.get(paddingValue);
+            do {
+                add(key, paddingValue, 0);
+            } while (RecordUtil.addressToIndex(recordSize, byteBuffer.position())
+                    % RECORDS_PER_BLOCK != 0);
         }
 
-        final int bytes = byteBuffer.position();
-        out.write(byteBuffer.array(), 0, bytes);
-        out.flush();
-        return bytes;
+        return byteBuffer.position();
+    }
+
+    /**
+     * Same as {@link #seal()}, however, an incomplete last block is closed as a partial block (see
+     * {@link WalBlockTable}) instead of being padded. Only the WAL file may contain partial blocks.
+     *
+     * @return The number of bytes which will be written when this buffer is flushed
+     */
+    int sealPartial() {
+        if (readOnly) {
+            throw new ReadOnlyBufferException("Initialised in read only mode!");
+        }
+
+        if (sealed || byteBuffer.position() == 0) {
+            return byteBuffer.position();
+        }
+        sealed = true;
+
+        final int records = (int) (RecordUtil.addressToIndex(recordSize, byteBuffer.position())
+                % RECORDS_PER_BLOCK);
+        if (records == 0) {
+            return byteBuffer.position(); // The last block is already complete.
+        }
+
+        // Replace the sync marker of the last block.
+        final int blockStart = byteBuffer.position() - records * recordSize - recordSize;
+        writerView.clear();
+        writerView.position(blockStart);
+        writerView.put(partialSyncMarker);
+
+        writerView.clear();
+        writerView.limit(byteBuffer.position());
+        writerView.position(blockStart + recordSize);
+        crc32.reset();
+        crc32.update(writerView);
+
+        partialBlockRecords = records;
+        recordBytes = byteBuffer.position();
+        byteBuffer.putInt(records);
+        byteBuffer.putInt((int) crc32.getValue());
+        return byteBuffer.position();
+    }
+
+    /**
+     * @return The number of records in the partial block closed by {@link #sealPartial()}, or 0
+     */
+    int getPartialBlockRecords() {
+        return partialBlockRecords;
+    }
+
+    /**
+     * @return The number of bytes this buffer occupies in the logical address space of the WAL
+     * file, where every block is complete
+     */
+    int getLogicalSize() {
+        if (partialBlockRecords == 0) {
+            return byteBuffer.position();
+        }
+        return byteBuffer.position() + RecordUtil.blockSizeWithTrailer(recordSize)
+                - WalBlockTable.partialBlockSize(recordSize, partialBlockRecords);
+    }
+
+    /**
+     * @return The number of bytes up to the end of the last record
+     */
+    private int recordBytes() {
+        return partialBlockRecords == 0 ? byteBuffer.position() : recordBytes;
+    }
+
+    /**
+     * Reads a WAL file which may contain partial blocks, one run of complete blocks at a time.
+     *
+     * @param file          The WAL file
+     * @param blocks        The partial blocks in the file
+     * @param logicalLength The logical address up to which the file should be read
+     */
+    void readFromWalFile(final RandomAccessFile file, final WalBlockTable blocks,
+            final long logicalLength, final boolean reverse,
+            final Consumer<ByteBuffer> recordConsumer) throws IOException {
+        readFromWalFile(file, blocks, 0, logicalLength, reverse, recordConsumer);
+    }
+
+    /**
+     * Same as {@link #readFromWalFile(RandomAccessFile, WalBlockTable, long, boolean, Consumer)},
+     * however, the blocks before the given logical address are skipped.
+     *
+     * @param logicalStart The logical address to start reading from, at a block boundary
+     */
+    void readFromWalFile(final RandomAccessFile file, final WalBlockTable blocks,
+            final long logicalStart, final long logicalLength, final boolean reverse,
+            final Consumer<ByteBuffer> recordConsumer) throws IOException {
+        final int blockSize = RecordUtil.blockSizeWithTrailer(recordSize);
+        final int blocksPerRead = byteBuffer.capacity() / blockSize;
+        final int firstBlock = (int) (logicalStart / blockSize);
+        final int totalBlocks = (int) (logicalLength / blockSize);
+
+        // A run never continues past a partial block, since the records after it aren't aligned.
+        if (reverse) {
+            int end = totalBlocks;
+            while (end > firstBlock) {
+                final int start = Math.max(Math.max(end - blocksPerRead, firstBlock),
+                        blocks.previousPartialBlock(end - 1) + 1);
+                readWalBlocks(file, blocks, start, end, true, recordConsumer);
+                end = start;
+            }
+        } else {
+            int start = firstBlock;
+            while (start < totalBlocks) {
+                final int end = (int) Math.min(Math.min(start + (long) blocksPerRead, totalBlocks),
+                        blocks.nextPartialBlock(start) + 1L);
+                readWalBlocks(file, blocks, start, end, false, recordConsumer);
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * Reads blocks [start, end), of which only the last one may be a partial block.
+     */
+    private void readWalBlocks(final RandomAccessFile file, final WalBlockTable blocks,
+            final int start, final int end, final boolean reverse,
+            final Consumer<ByteBuffer> recordConsumer) throws IOException {
+        final int blockSize = RecordUtil.blockSizeWithTrailer(recordSize);
+        final long physicalStart = blocks.toPhysical((long) start * blockSize);
+        final int bytes = (int) (blocks.toPhysical((long) end * blockSize) - physicalStart);
+
+        byteBuffer.clear();
+        file.seek(physicalStart);
+        file.readFully(byteBuffer.array(), 0, bytes);
+
+        final int recordBytesRead = blocks.isPartial(end - 1)
+                ? bytes - WalBlockTable.PARTIAL_BLOCK_TRAILER_SIZE : bytes;
+        final Enumeration<ByteBuffer> iterator = iterator(byteBuffer, recordBytesRead, reverse);
+        while (iterator.hasMoreElements()) {
+            recordConsumer.accept(iterator.nextElement());
+        }
+    }
+
+    /**
+     * Reads blocks [start, end) of a data file, as many at a time as fit into this buffer. The
+     * reads are positional, so several buffers may read the same channel concurrently.
+     */
+    void readDataBlocks(final FileChannel channel, final long start, final long end,
+            final Consumer<ByteBuffer> recordConsumer) throws IOException {
+        final int blockSize = RecordUtil.blockSizeWithTrailer(recordSize);
+        final int blocksPerRead = byteBuffer.capacity() / blockSize;
+
+        long block = start;
+        while (block < end) {
+            final int blocks = (int) Math.min(blocksPerRead, end - block);
+            final long position = block * blockSize;
+            byteBuffer.clear();
+            byteBuffer.limit(blocks * blockSize);
+            while (byteBuffer.hasRemaining()) {
+                if (channel.read(byteBuffer, position + byteBuffer.position()) == -1) {
+                    throw new EOFException("Attempted to read beyond the end of the data file");
+                }
+            }
+
+            final Enumeration<ByteBuffer> iterator = iterator(byteBuffer, blocks * blockSize,
+                    false);
+            while (iterator.hasMoreElements()) {
+                recordConsumer.accept(iterator.nextElement());
+            }
+            block += blocks;
+        }
     }
 
     void readFromFiles(List<RandomAccessFile> files,
@@ -167,10 +404,25 @@ public class Buffer {
         return bytesRead;
     }
 
+    /**
+     * Only available for read only buffers.
+     */
     byte[] array() {
         return byteBuffer.array();
     }
 
+    boolean isDirect() {
+        return byteBuffer.isDirect();
+    }
+
+    /**
+     * Copies the value of the record at the given address. Safe to call concurrently with other
+     * readers, as long as the record is not being modified.
+     */
+    void readValue(final int address, final byte[] value, final int valueOffset) {
+        ByteUtil.copy(byteBuffer, address + KEY_SIZE, value, valueOffset, valueSize);
+    }
+
     boolean isDirty() {
         return byteBuffer.position() > 0;
     }
@@ -179,6 +431,16 @@ public class Buffer {
         return byteBuffer.remaining() == 0; // Perfect alignment, so this works.
     }
 
+    /**
+     * @return The address which {@link #add(int, byte[], int)} will return next, i.e. past the
+     * sync marker if the record begins a new block
+     */
+    int nextAddress() {
+        final int position = byteBuffer.position();
+        return position % RecordUtil.blockSizeWithTrailer(recordSize) == 0
+                ? position + recordSize : position;
+    }
+
     int add(int key, byte[] value, int valueOffset) {
         if (readOnly) {
             throw new ReadOnlyBufferException("Initialised in read only mode!");
@@ -195,7 +457,7 @@ public class Buffer {
 
         // Should we close this block?
         // Don't close the block if the we're adding the sync marker kv pair.
-        final int nextRecordIndex = RecordUtil.addressToIndex(recordSize, byteBuffer.position());
+        final long nextRecordIndex = RecordUtil.addressToIndex(recordSize, byteBuffer.position());
         if (nextRecordIndex % RECORDS_PER_BLOCK == 0) {
             closeBlock();
         }
@@ -216,7 +478,21 @@ public class Buffer {
         if (savedKey != key) {
             return false;
         }
-        System.arraycopy(newValue, valueOffset, byteBuffer.array(), addressInBuffer + KEY_SIZE, valueSize);
+        writerView.clear();
+        writerView.position(addressInBuffer + KEY_SIZE);
+        writerView.put(newValue, valueOffset, valueSize);
+
+        // The CRC of a block is calculated once it's closed, so it has to be calculated again.
+        final int blockSize = RecordUtil.blockSizeWithTrailer(recordSize);
+        final int crcAddress = (addressInBuffer / blockSize + 1) * blockSize - CRC_SIZE;
+        if (crcAddress < byteBuffer.position()) {
+            writerView.clear();
+            writerView.limit(crcAddress);
+            writerView.position(crcAddress - recordSize * RECORDS_PER_BLOCK);
+            crc32.reset();
+            crc32.update(writerView);
+            byteBuffer.putInt(crcAddress, (int) crc32.getValue());
+        }
         return true;
     }
 
@@ -225,11 +501,40 @@ public class Buffer {
      * current buffer.
      */
     Enumeration<ByteBuffer> iterator(final boolean reverse) {
-        final ByteBuffer ourBuffer = byteBuffer.duplicate();
+        return iterator(byteBuffer.duplicate(), recordBytes(), reverse);
+    }
 
+    /**
+     * Copies the records in this buffer, so that they can be iterated over after the lock that
+     * guards this buffer has been released.
+     * <p>
+     * Always call this from a synchronised context.
+     */
+    Enumeration<ByteBuffer> snapshotIterator(final boolean reverse) {
+        final ByteBuffer copy = copyRecords();
+        return iterator(copy, copy.limit(), reverse);
+    }
+
+    /**
+     * @return A copy of the blocks written so far, up to the end of the last record, with its
+     * limit set to the end
+     */
+    ByteBuffer copyRecords() {
+        final int bytes = recordBytes();
+        final ByteBuffer copy = ByteBuffer.allocate(bytes);
+        final ByteBuffer source = byteBuffer.duplicate();
+        source.position(0);
+        source.limit(bytes);
+        copy.put(source);
+        copy.flip();
+        return copy;
+    }
+
+    private Enumeration<ByteBuffer> iterator(final ByteBuffer ourBuffer, final int bytes,
+            final boolean reverse) {
         final int recordsToRead;
-        if (byteBuffer.position() > 0) {
-            recordsToRead = RecordUtil.addressToIndex(recordSize, byteBuffer.position());
+        if (bytes > 0) {
+            recordsToRead = (int) RecordUtil.addressToIndex(recordSize, bytes);
         } else {
             recordsToRead = 0;
         }
@@ -261,9 +566,12 @@ public class Buffer {
     }
 
     private void closeBlock() {
-        final CRC32 crc32 = new CRC32();
         final int blockSize = recordSize * RECORDS_PER_BLOCK;
-        crc32.update(byteBuffer.array(), byteBuffer.position() - blockSize, blockSize);
+        writerView.clear();
+        writerView.limit(byteBuffer.position());
+        writerView.position(byteBuffer.position() - blockSize);
+        crc32.reset();
+        crc32.update(writerView);
         byteBuffer.putInt((int) crc32.getValue());
     }
 
@@ -274,11 +582,26 @@ public class Buffer {
         return syncMarker.array();
     }
 
+    /**
+     * @return The sync marker which starts a partial block, see {@link WalBlockTable}
+     */
+    static byte[] getPartialSyncMarker(final int valueSize) {
+        final ByteBuffer syncMarker = ByteBuffer.allocate(valueSize + KEY_SIZE);
+        Arrays.fill(syncMarker.array(), (byte) 0xFE);
+        syncMarker.putInt(RESERVED_KEY_MARKER);  // This will override the first four bytes.
+        return syncMarker.array();
+    }
+
     protected void insertSyncMarker() {
-        byteBuffer.put(getSyncMarker(valueSize));
+        byteBuffer.put(syncMarker);
     }
 
+    /**
+     * Discards all records, and reuses the underlying memory.
+     */
     void clear() {
-        byteBuffer = ByteBuffer.allocate(byteBuffer.capacity());
+        byteBuffer.clear();
+        sealed = false;
+        partialBlockRecords = 0;
     }
 }
@@ -1,7 +1,9 @@
 package com.clevertap.stormdb;
 
+import com.clevertap.stormdb.internal.CompressedBitmap;
+import com.clevertap.stormdb.internal.SharedFileChannel;
 import java.io.File;
-import java.util.BitSet;
+import java.util.List;
 
 class CompactionState {
 
@@ -9,12 +11,27 @@ class CompactionState {
 
     long nextFileRecordIndex;
 
-    BitSet dataInNextFile = new BitSet();
-    BitSet dataInNextWalFile = new BitSet();
+    CompressedBitmap dataInNextFile = new CompressedBitmap();
+    CompressedBitmap dataInNextWalFile = new CompressedBitmap();
 
     File nextWalFile;
     File nextDataFile;
 
+    SharedFileChannel nextWalReader;
+    SharedFileChannel nextDataReader;
+
+    WalBlockTable nextWalBlocks;
+
+    /**
+     * The index snapshot for the next data file, or null if none is being written.
+     */
+    IndexSnapshot.Writer indexSnapshot;
+
+    /**
+     * The data segments which are being rewritten, or null if the database has none.
+     */
+    List<DataSegments.Segment> garbageSegments;
+
     boolean runningForTooLong() {
         return System.currentTimeMillis() - start > 30 * 60 * 1000;
     }
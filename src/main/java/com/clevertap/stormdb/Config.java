@@ -1,9 +1,10 @@
 package com.clevertap.stormdb;
 
 import com.clevertap.stormdb.maps.IndexMap;
+import com.clevertap.stormdb.maps.LongIndexMap;
 import java.nio.ByteBuffer;
 
-public class Config {
+public class Config implements Cloneable {
 
     // Block parameters
     public static final int RECORDS_PER_BLOCK = 128; // Not configurable for now.
@@ -39,6 +40,29 @@ public class Config {
     static final int MIN_OPEN_FD_COUNT = 1;
     static final int MAX_OPEN_FD_COUNT = 100;
 
+    // Memory mapped reads
+    static final int MMAP_SEGMENT_SIZE = 1024 * 1024 * 1024; // Not configurable for now.
+
+    // Batched reads. Records which are at most MULTI_GET_MAX_GAP bytes apart are read together,
+    // up to MULTI_GET_READ_SIZE bytes at a time.
+    static final int MULTI_GET_READ_SIZE = 256 * 1024; // Not configurable for now.
+    static final int MULTI_GET_MAX_GAP = 4 * 1024; // Not configurable for now.
+
+    // Data segments. A compaction rewrites the segments whose dead records make up at least this
+    // ratio of their capacity.
+    static final double SEGMENT_GARBAGE_RATIO = 0.5; // Not configurable for now.
+
+    // Sharding parameter range
+    static final int MIN_SHARD_COUNT = 1;
+    static final int MAX_SHARD_COUNT = 1024;
+
+    // Startup parameter defaults
+    private static final int DEFAULT_INDEX_REBUILD_PARALLELISM = 1;
+
+    // Durability parameter defaults
+    private static final long DEFAULT_GROUP_COMMIT_INTERVAL_MS = 5;
+    private static final int DEFAULT_GROUP_COMMIT_BYTES = 256 * 1024;
+
     // Must have parameters
     boolean autoCompact = true;
     int valueSize;
@@ -52,6 +76,17 @@ public class Config {
     int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
     int openFDCount = DEFAULT_OPEN_FD_COUNT;
     IndexMap indexMap;
+    int denseIndexKeyRange = 0; // Disabled.
+    LongIndexMap longIndexMap;
+    DurabilityMode durabilityMode = DurabilityMode.NONE;
+    long groupCommitIntervalMs = DEFAULT_GROUP_COMMIT_INTERVAL_MS;
+    int groupCommitBytes = DEFAULT_GROUP_COMMIT_BYTES;
+    int shardCount = 0; // Not specified, use the shard count from an existing database.
+    boolean memoryMappedReads = false;
+    long valueCacheBytes = 0; // Disabled.
+    boolean indexSnapshots = true;
+    int indexRebuildParallelism = DEFAULT_INDEX_REBUILD_PARALLELISM;
+    long dataSegmentSize = 0; // Disabled, a single data file.
 
     public boolean autoCompactEnabled() {
         return autoCompact;
@@ -99,4 +134,62 @@ public class Config {
 
     public IndexMap getIndexMap() { return indexMap; }
 
+    public int getDenseIndexKeyRange() {
+        return denseIndexKeyRange;
+    }
+
+    public LongIndexMap getLongIndexMap() {
+        return longIndexMap;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    public long getGroupCommitIntervalMs() {
+        return groupCommitIntervalMs;
+    }
+
+    public int getGroupCommitBytes() {
+        return groupCommitBytes;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public boolean memoryMappedReadsEnabled() {
+        return memoryMappedReads;
+    }
+
+    public long getValueCacheBytes() {
+        return valueCacheBytes;
+    }
+
+    public boolean indexSnapshotsEnabled() {
+        return indexSnapshots;
+    }
+
+    public int getIndexRebuildParallelism() {
+        return indexRebuildParallelism;
+    }
+
+    public long getDataSegmentSize() {
+        return dataSegmentSize;
+    }
+
+    /**
+     * @return A copy of this configuration, which points to a different database directory
+     */
+    Config copy(final String dbDir) {
+        final Config copy;
+        try {
+            copy = (Config) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e); // Never happens, we're Cloneable.
+        }
+        copy.dbDir = dbDir;
+        return copy;
+    }
+
 }
@@ -0,0 +1,599 @@
+package com.clevertap.stormdb;
+
+import com.clevertap.stormdb.exceptions.IncorrectConfigException;
+import com.clevertap.stormdb.exceptions.StormDBRuntimeException;
+import com.clevertap.stormdb.internal.SharedFileChannel;
+import com.clevertap.stormdb.utils.RecordUtil;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The data files of a database whose data is split into segments, see
+ * {@link StormDBBuilder#withDataSegmentSize(long)}. A compaction then rewrites the WAL file along
+ * with only those segments which are mostly garbage, rather than the whole data file.
+ * <p>
+ * A segment holds up to {@link #recordsPerSegment} records. It lives in a slot, which names its
+ * file ("data.&lt;slot&gt;") and its range of record indices, which begins at the slot times the
+ * records per segment. The lowest free slot is taken first, so that record indices stay small.
+ * <p>
+ * The manifest lists the segments, oldest first. A key's record in a newer segment supersedes
+ * the ones in older segments. Every segment tracks its dead records, i.e. the superseded ones,
+ * the padding of its last block and its unused capacity, so that readers can skip them without
+ * tracking keys, and so that compactions know how much garbage a segment holds. Records which
+ * the WAL file supersedes are tracked as pending instead, and die once a compaction has moved
+ * their keys to a new segment. The dead records of a readable segment are never modified, but
+ * replaced as a whole, so that an {@link IterationSnapshot} can hold on to them.
+ * <p>
+ * Manifest protocol: version (4 bytes) | records per segment (8 bytes) | generation (8 bytes) |
+ * segment count (4 bytes) | slot of every segment (4 bytes each) | CRC32 of everything before it
+ * (4 bytes). Every compaction increases the generation, and commits its segments by replacing
+ * the manifest: see {@link #writeNextManifest(List, boolean)} and
+ * {@link #commit(List, List)}.
+ * <p>
+ * Not thread safe. Apart from the compaction which writes new segments, every change is made
+ * while holding the write lock of the database.
+ */
+final class DataSegments {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DataSegments.class);
+
+    static final String FILE_NAME = "segments";
+    private static final String FILE_NAME_PREFIX = "data.";
+    private static final String FILE_TYPE_NEXT = ".next";
+    private static final int VERSION = 1;
+
+    private final File dbDir;
+    private final File manifestFile;
+    private final File nextManifestFile;
+    private final int valueSize;
+    private final int blockSize;
+    private final long segmentSize;
+    final long recordsPerSegment;
+
+    private long generation;
+    /**
+     * The committed segments, oldest first.
+     */
+    private List<Segment> segments = new ArrayList<>();
+    /**
+     * Every segment by its slot, including the ones which a compaction is writing. Free slots are
+     * null.
+     */
+    private Segment[] slots = new Segment[0];
+
+    DataSegments(final File dbDir, final Config conf) {
+        this.dbDir = dbDir;
+        manifestFile = new File(dbDir, FILE_NAME);
+        nextManifestFile = new File(dbDir, FILE_NAME + FILE_TYPE_NEXT);
+        valueSize = conf.getValueSize();
+        blockSize = RecordUtil.blockSizeWithTrailer(valueSize + Config.KEY_SIZE);
+        segmentSize = conf.getDataSegmentSize();
+        recordsPerSegment = recordsPerSegment(segmentSize, valueSize);
+    }
+
+    /**
+     * @return The number of records which fit into a segment of the given size, which is rounded
+     * down to whole blocks, and up to a single block
+     */
+    static long recordsPerSegment(final long segmentSize, final int valueSize) {
+        final int blockSize = RecordUtil.blockSizeWithTrailer(valueSize + Config.KEY_SIZE);
+        return Math.max(1, segmentSize / blockSize) * Config.RECORDS_PER_BLOCK;
+    }
+
+    /**
+     * @return true if the given directory holds a database whose data is split into segments
+     */
+    static boolean exist(final File dbDir) {
+        return new File(dbDir, FILE_NAME).exists()
+                || new File(dbDir, FILE_NAME + FILE_TYPE_NEXT).exists();
+    }
+
+    /**
+     * Completes or rolls back a compaction which was interrupted, loads the manifest, and deletes
+     * the files of the segments which it doesn't list. Then, the blocks of every segment are
+     * verified, see {@link BlockUtil#verifyBlocks(File, int)}.
+     *
+     * @param nextWalFileExists Whether the next WAL file of the interrupted compaction still
+     *                          exists, in which case the compaction didn't commit
+     * @return true if a segment had to be repaired
+     */
+    boolean open(final boolean nextWalFileExists) throws IOException {
+        if (nextManifestFile.exists()) {
+            if (nextWalFileExists) {
+                // The WAL file wasn't replaced, so it still holds the records of the new segments.
+                Files.delete(nextManifestFile.toPath());
+            } else {
+                move(nextManifestFile, manifestFile);
+            }
+        }
+
+        if (manifestFile.exists()) {
+            readManifest();
+        } else {
+            // Marks the directory as holding segments, see exist(File).
+            writeManifest(manifestFile, segments, generation, false);
+        }
+        deleteUnlistedFiles();
+
+        boolean repaired = false;
+        for (Segment segment : segments) {
+            if (!segment.file.exists()) {
+                throw new StormDBRuntimeException("The data segment " + segment.file
+                        + " is missing!");
+            }
+            if (BlockUtil.verifyBlocks(segment.file, valueSize) != segment.file) {
+                repaired = true;
+            }
+            segment.records = segment.file.length() / blockSize * Config.RECORDS_PER_BLOCK;
+            if (segment.records > recordsPerSegment) {
+                throw new StormDBRuntimeException("The data segment " + segment.file
+                        + " holds more than " + recordsPerSegment + " records!");
+            }
+        }
+        return repaired;
+    }
+
+    private void readManifest() throws IOException {
+        final ByteBuffer manifest = ByteBuffer.wrap(Files.readAllBytes(manifestFile.toPath()));
+        final CRC32 crc32 = new CRC32();
+        crc32.update(manifest.array(), 0, Math.max(0, manifest.limit() - Integer.BYTES));
+        if (manifest.limit() < Integer.BYTES * 3 + Long.BYTES * 2
+                || manifest.getInt(manifest.limit() - Integer.BYTES) != (int) crc32.getValue()
+                || manifest.getInt() != VERSION) {
+            throw new StormDBRuntimeException("The manifest " + manifestFile + " is corrupt!");
+        }
+
+        final long records = manifest.getLong();
+        if (records != recordsPerSegment) {
+            throw new IncorrectConfigException("The path " + dbDir + " contains data segments of "
+                    + records + " records each. However, a data segment size of " + segmentSize
+                    + " bytes holds " + recordsPerSegment + " records!");
+        }
+        generation = manifest.getLong();
+        final int count = manifest.getInt();
+        for (int i = 0; i < count; i++) {
+            final Segment segment = new Segment(manifest.getInt());
+            segments.add(segment);
+            putSlot(segment);
+        }
+    }
+
+    /**
+     * Writes a manifest which lists the given segments.
+     */
+    private void writeManifest(final File file, final List<Segment> segments,
+            final long generation, final boolean sync) throws IOException {
+        final ByteBuffer manifest = ByteBuffer.allocate(Integer.BYTES * 3 + Long.BYTES * 2
+                + segments.size() * Integer.BYTES);
+        manifest.putInt(VERSION);
+        manifest.putLong(recordsPerSegment);
+        manifest.putLong(generation);
+        manifest.putInt(segments.size());
+        for (Segment segment : segments) {
+            manifest.putInt(segment.slot);
+        }
+        final CRC32 crc32 = new CRC32();
+        crc32.update(manifest.array(), 0, manifest.position());
+        manifest.putInt((int) crc32.getValue());
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(manifest.array());
+            if (sync) {
+                out.getChannel().force(false);
+            }
+        }
+    }
+
+    /**
+     * Segment files which the manifest doesn't list were either written by a compaction which
+     * didn't commit, or replaced by one which did.
+     */
+    private void deleteUnlistedFiles() throws IOException {
+        final File[] files = dbDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final int slot = slotOf(file.getName());
+            if (slot != -1 && (slot >= slots.length || slots[slot] == null)) {
+                LOG.info("Deleting {}, which isn't a part of the database.", file);
+                Files.delete(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * @return The slot which a file of the given name belongs to, or -1 if it's no segment file
+     */
+    private static int slotOf(final String fileName) {
+        if (!fileName.startsWith(FILE_NAME_PREFIX)
+                || fileName.length() == FILE_NAME_PREFIX.length()
+                || fileName.length() > FILE_NAME_PREFIX.length() + 9) {
+            return -1;
+        }
+        for (int i = FILE_NAME_PREFIX.length(); i < fileName.length(); i++) {
+            if (!Character.isDigit(fileName.charAt(i))) {
+                return -1;
+            }
+        }
+        return Integer.parseInt(fileName.substring(FILE_NAME_PREFIX.length()));
+    }
+
+    private void putSlot(final Segment segment) {
+        if (segment.slot >= slots.length) {
+            slots = Arrays.copyOf(slots, segment.slot + 1);
+        }
+        if (slots[segment.slot] != null) {
+            throw new StormDBRuntimeException("The slot " + segment.slot + " is taken twice!");
+        }
+        slots[segment.slot] = segment;
+    }
+
+    private static void move(final File file, final File destination) throws IOException {
+        Files.move(file.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The committed segments, oldest first
+     */
+    List<Segment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return A number which changes whenever the committed segments change
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return The total length of the committed segments
+     */
+    long length() {
+        long length = 0;
+        for (Segment segment : segments) {
+            length += segment.file.length();
+        }
+        return length;
+    }
+
+    /**
+     * @return The segment which holds the record at the given index
+     */
+    Segment segmentOf(final long recordIndex) {
+        return slots[(int) (recordIndex / recordsPerSegment)];
+    }
+
+    /**
+     * @return The index of the given record within its segment
+     */
+    long localIndex(final long recordIndex) {
+        return recordIndex % recordsPerSegment;
+    }
+
+    /**
+     * Marks a record which the index points to. Only call this for records of a segment which
+     * isn't readable yet, i.e. while the database is being opened, or for a new segment.
+     */
+    void markLive(final long recordIndex) {
+        segmentOf(recordIndex).markLive(localIndex(recordIndex));
+    }
+
+    /**
+     * Marks a record which is superseded by a newer segment. Only call this while the database is
+     * being opened.
+     */
+    void markDead(final long recordIndex) {
+        segmentOf(recordIndex).markDead(localIndex(recordIndex));
+    }
+
+    /**
+     * Marks a record which is superseded by a write to the WAL file.
+     */
+    void markPending(final long recordIndex) {
+        segmentOf(recordIndex).markPending(localIndex(recordIndex));
+    }
+
+    /**
+     * @return The segments to be rewritten by the next compaction, newest first: those whose dead
+     * and pending records make up at least {@link Config#SEGMENT_GARBAGE_RATIO} of their capacity
+     */
+    List<Segment> selectGarbageSegments() {
+        final List<Segment> selected = new ArrayList<>();
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            final Segment segment = segments.get(i);
+            if (segment.deadCount + segment.pendingCount
+                    >= recordsPerSegment * Config.SEGMENT_GARBAGE_RATIO) {
+                selected.add(segment);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Takes the lowest free slot for a new segment, which becomes readable right away, but isn't
+     * committed until {@link #commit(List, List)}.
+     */
+    private Segment create() {
+        int slot = 0;
+        while (slot < slots.length && slots[slot] != null) {
+            slot++;
+        }
+        final Segment segment = new Segment(slot);
+        putSlot(segment);
+        return segment;
+    }
+
+    /**
+     * Writes the manifest of the next generation, which lists the given segments, next to the
+     * current one. A compaction commits by replacing the WAL file, and then the manifest. If it's
+     * interrupted, {@link #open(boolean)} tells the two cases apart.
+     */
+    void writeNextManifest(final List<Segment> next, final boolean sync) throws IOException {
+        writeManifest(nextManifestFile, next, generation + 1, sync);
+    }
+
+    /**
+     * Replaces the manifest with the next one, and frees the slots of the removed segments, whose
+     * files are then deleted. Records which were pending die, since their keys are now in the new
+     * segments.
+     * <p>
+     * Always call this while holding the write lock.
+     */
+    void commit(final List<Segment> next, final List<Segment> removed) throws IOException {
+        move(nextManifestFile, manifestFile);
+        generation++;
+        segments = next;
+        for (Segment segment : next) {
+            segment.mergePending();
+        }
+        for (Segment segment : removed) {
+            segment.closeReaders();
+            slots[segment.slot] = null;
+            Files.deleteIfExists(segment.file.toPath());
+        }
+    }
+
+    /**
+     * Opens shared read channels, and memory mapped views if enabled, for the segments which lack
+     * them.
+     */
+    void openReaders(final int recordSize, final boolean memoryMapped) throws IOException {
+        for (Segment segment : segments) {
+            if (segment.reader == null) {
+                segment.reader = new SharedFileChannel(segment.file);
+            }
+            if (memoryMapped && segment.mappedFile == null) {
+                segment.mappedFile = new MappedFile(segment.reader, recordSize,
+                        Config.MMAP_SEGMENT_SIZE);
+            }
+        }
+    }
+
+    void closeReaders() throws IOException {
+        for (Segment segment : segments) {
+            segment.closeReaders();
+        }
+    }
+
+    /**
+     * Opens a writer for new segments.
+     *
+     * @param sync Whether every segment is forced to the storage device once it's complete
+     */
+    Writer newWriter(final Config conf, final boolean sync, final FlushListener listener) {
+        return new Writer(conf, sync, listener);
+    }
+
+    static boolean isSet(final long[] bits, final long index) {
+        return (bits[(int) (index >>> 6)] & (1L << index)) != 0;
+    }
+
+    /**
+     * A data file which holds up to {@link #recordsPerSegment} records.
+     */
+    final class Segment {
+
+        final int slot;
+        final File file;
+        final long firstRecordIndex;
+        /**
+         * The records in the file, including the padding of its last block.
+         */
+        long records;
+        /**
+         * See {@link DataSegments}. Every record starts out dead, until the index points to it.
+         */
+        long[] dead;
+        long deadCount;
+        /**
+         * Allocated lazily.
+         */
+        private long[] pending;
+        long pendingCount;
+
+        SharedFileChannel reader;
+        MappedFile mappedFile;
+
+        private Segment(final int slot) {
+            this.slot = slot;
+            file = new File(dbDir, FILE_NAME_PREFIX + slot);
+            firstRecordIndex = slot * recordsPerSegment;
+            dead = new long[(int) (recordsPerSegment / Long.SIZE)];
+            Arrays.fill(dead, -1L);
+            deadCount = recordsPerSegment;
+        }
+
+        boolean isPending(final long localIndex) {
+            return pending != null && isSet(pending, localIndex);
+        }
+
+        private void markLive(final long localIndex) {
+            if (isSet(dead, localIndex)) {
+                dead[(int) (localIndex >>> 6)] &= ~(1L << localIndex);
+                deadCount--;
+            }
+        }
+
+        private void markDead(final long localIndex) {
+            if (!isSet(dead, localIndex)) {
+                dead[(int) (localIndex >>> 6)] |= 1L << localIndex;
+                deadCount++;
+            }
+        }
+
+        private void markPending(final long localIndex) {
+            if (pending == null) {
+                pending = new long[dead.length];
+            }
+            if (!isSet(dead, localIndex) && !isSet(pending, localIndex)) {
+                pending[(int) (localIndex >>> 6)] |= 1L << localIndex;
+                pendingCount++;
+            }
+        }
+
+        private void mergePending() {
+            if (pendingCount == 0) {
+                return;
+            }
+            final long[] merged = dead.clone();
+            for (int i = 0; i < merged.length; i++) {
+                merged[i] |= pending[i];
+            }
+            dead = merged;
+            deadCount += pendingCount;
+            pending = null;
+            pendingCount = 0;
+        }
+
+        private void closeReaders() throws IOException {
+            if (mappedFile != null) {
+                mappedFile.close();
+                mappedFile = null;
+            }
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        }
+    }
+
+    /**
+     * Receives the records which a {@link Writer} has just written to a new segment.
+     */
+    interface FlushListener {
+
+        /**
+         * @param segment The segment which the records were written to
+         * @param first   The index within the segment of the first record in the buffer
+         * @param buffer  The records, the last block of which may be padded
+         * @param sources For every record added to the buffer, the record index which it was
+         *                copied from, or -1 if it was copied from the WAL file
+         * @param count   The number of records added to the buffer, i.e. excluding padding
+         */
+        void flushed(Segment segment, long first, Buffer buffer, long[] sources, int count)
+                throws IOException;
+    }
+
+    /**
+     * Writes records to new segments, filling each one up before moving on to the next. Only
+     * the last segment may be padded.
+     */
+    final class Writer implements Closeable {
+
+        private final Buffer buffer;
+        private final long[] sources;
+        private final boolean sync;
+        private final FlushListener listener;
+        private final List<Segment> created = new ArrayList<>();
+        private Segment segment;
+        private FileChannel out;
+        private int count;
+
+        private Writer(final Config conf, final boolean sync, final FlushListener listener) {
+            buffer = new Buffer(conf, false);
+            sources = new long[buffer.getMaxRecords()];
+            this.sync = sync;
+            this.listener = listener;
+        }
+
+        /**
+         * @param source The record index which the record is copied from, or -1
+         */
+        void add(final int key, final byte[] value, final int valueOffset, final long source)
+                throws IOException {
+            if (segment == null) {
+                segment = create();
+                created.add(segment);
+                out = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                segment.reader = new SharedFileChannel(segment.file);
+            }
+
+            buffer.add(key, value, valueOffset);
+            sources[count++] = source;
+            // Both are multiples of a block, so the buffer is padded only by finish().
+            if (buffer.isFull() || segment.records + count == recordsPerSegment) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            final int bytes = buffer.flush(out);
+            final long first = segment.records;
+            segment.records += bytes / blockSize * Config.RECORDS_PER_BLOCK;
+            listener.flushed(segment, first, buffer, sources, count);
+            buffer.clear();
+            count = 0;
+            if (segment.records == recordsPerSegment) {
+                closeSegment();
+            }
+        }
+
+        /**
+         * Writes out the records which are still buffered.
+         *
+         * @return The segments which were created, oldest first
+         */
+        List<Segment> finish() throws IOException {
+            if (count > 0) {
+                flush();
+            }
+            if (segment != null) {
+                closeSegment();
+            }
+            return created;
+        }
+
+        private void closeSegment() throws IOException {
+            if (sync) {
+                out.force(false);
+            }
+            out.close();
+            out = null;
+            segment = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+}
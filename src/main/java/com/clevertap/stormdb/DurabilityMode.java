@@ -0,0 +1,29 @@
+package com.clevertap.stormdb;
+
+/**
+ * Controls when data written to the WAL file is forced to the underlying storage device.
+ */
+public enum DurabilityMode {
+
+    /**
+     * The WAL file is never explicitly synced. Data reaches the disk whenever the operating system
+     * decides to write back its page cache. This is the fastest mode, but a power loss may drop
+     * buffers that were already flushed.
+     */
+    NONE,
+
+    /**
+     * Every flush of the write buffer to the WAL file is followed by an fsync. A put is not
+     * acknowledged as durable until the buffer holding it is flushed.
+     */
+    FLUSH,
+
+    /**
+     * Every put waits until its record has been synced to the WAL file. Concurrent writers waiting
+     * on durability are batched together, and share a single fsync per batch.
+     * <p>
+     * A batch is committed once {@link Config#getGroupCommitIntervalMs()} have elapsed, or once
+     * {@link Config#getGroupCommitBytes()} are pending, whichever happens first.
+     */
+    GROUP_COMMIT
+}
@@ -0,0 +1,92 @@
+package com.clevertap.stormdb;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Spliterator} over a {@link StormDBCursor}. It splits the data file at block
+ * boundaries, whereas the write buffers and the WAL files stay with the first half.
+ * <p>
+ * The number of keys is known upfront, so an unsplit spliterator is always {@link #SIZED}. When
+ * the data file holds every key, i.e. nothing has been written since the last compaction, the
+ * number of keys in any range of its blocks is known as well, so it's {@link #SUBSIZED} too.
+ */
+final class EntrySpliterator implements Spliterator<StormDBEntry> {
+
+    private final IterationSnapshot snapshot;
+    private final StormDBCursor cursor;
+    private long estimate;
+    private boolean sized;
+
+    EntrySpliterator(final IterationSnapshot snapshot, final StormDBCursor cursor) {
+        this(snapshot, cursor, snapshot.size, true);
+    }
+
+    private EntrySpliterator(final IterationSnapshot snapshot, final StormDBCursor cursor,
+            final long estimate, final boolean sized) {
+        this.snapshot = snapshot;
+        this.cursor = cursor;
+        this.estimate = estimate;
+        this.sized = sized;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super StormDBEntry> action) {
+        try {
+            if (!cursor.next()) {
+                return false;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        final byte[] value = new byte[snapshot.valueSize];
+        cursor.value(ByteBuffer.wrap(value));
+        if (estimate > 0) {
+            estimate--;
+        }
+        action.accept(new StormDBEntry(cursor.key(), value));
+        return true;
+    }
+
+    @Override
+    public Spliterator<StormDBEntry> trySplit() {
+        final StormDBCursor split = cursor.trySplit();
+        if (split == null) {
+            return null;
+        }
+
+        final long splitEstimate;
+        if (sized && snapshot.isDataFileComplete()) {
+            splitEstimate = snapshot.keysInDataBlocks(split.getNextDataBlock(),
+                    split.getDataEnd());
+        } else {
+            // Some of the records in the split off blocks may be superseded.
+            sized = false;
+            splitEstimate = Math.min(estimate,
+                    (split.getDataEnd() - split.getNextDataBlock()) * Config.RECORDS_PER_BLOCK);
+        }
+        estimate = Math.max(0, estimate - splitEstimate);
+        return new EntrySpliterator(snapshot, split, splitEstimate, sized);
+    }
+
+    @Override
+    public long estimateSize() {
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        int characteristics = NONNULL | IMMUTABLE;
+        if (sized) {
+            characteristics |= SIZED;
+            if (snapshot.isDataFileComplete()) {
+                characteristics |= SUBSIZED;
+            }
+        }
+        return characteristics;
+    }
+}
@@ -0,0 +1,302 @@
+package com.clevertap.stormdb;
+
+import com.clevertap.stormdb.internal.CompressedBitmap;
+import com.clevertap.stormdb.maps.LongIndexMap;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A persisted copy of the index, which spares {@link StormDB} from reading the data and WAL files
+ * when it's opened. Only the part of the WAL file written after the snapshot is read then.
+ * <p>
+ * Protocol: version (4 bytes) | value size (4 bytes) | entries, each being a key (4 bytes) and its
+ * record index (8 bytes) | keys in the WAL file (4 bytes each) | entry count (4 bytes) | count of
+ * keys in the WAL file (4 bytes) | data file length (8 bytes) | WAL file length (8 bytes) | CRC32
+ * of everything before it (4 bytes). The counts and lengths come last, so that a snapshot can be
+ * streamed out while a compaction writes the data file which it describes.
+ * <p>
+ * A snapshot is taken when no records are buffered, so it covers a prefix of the WAL file, and all
+ * of the data file. It's valid for as long as the data file stays the same, and the WAL file is
+ * only appended to.
+ */
+final class IndexSnapshot {
+
+    static final String FILE_NAME = "index";
+    private static final String FILE_TYPE_TMP = ".tmp";
+    private static final int VERSION = 3;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int FOOTER_SIZE = Integer.BYTES * 2 + Long.BYTES * 2;
+
+    private IndexSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the whole index, replacing the previous one atomically.
+     *
+     * @param dataFileLength The length of the data file, or 0 if there's none, or the generation
+     *                       of the data segments
+     * @param walFileLength  The length of the WAL file, which must end with a complete block
+     */
+    static void write(final File file, final int valueSize, final long dataFileLength,
+            final long walFileLength, final LongIndexMap index,
+            final CompressedBitmap dataInWalFile)
+            throws IOException {
+        try (Writer writer = new Writer(file, valueSize)) {
+            final int entries = index.size();
+            try {
+                index.forEach(writer::putEntryUnchecked);
+                dataInWalFile.forEach(writer::putKeyInWalFileUnchecked);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (writer.entries != entries) {
+                throw new IllegalStateException("Expected " + entries + " index entries, but "
+                        + writer.entries + " were passed!");
+            }
+            writer.commit(dataFileLength, walFileLength);
+        }
+    }
+
+    /**
+     * Loads a snapshot into the given index and WAL key set, provided that it matches the files.
+     * Nothing is loaded unless the whole snapshot is intact.
+     *
+     * @param dataFileLength The length of the data file, or 0 if there's none, or the generation
+     *                       of the data segments
+     * @param walBlocks      The blocks of the WAL file
+     * @param walFileLength  The length of the WAL file
+     * @return The length of the WAL file which the snapshot covers, or -1 if it doesn't match
+     */
+    static long load(final File file, final int valueSize, final long dataFileLength,
+            final WalBlockTable walBlocks, final long walFileLength, final LongIndexMap index,
+            final CompressedBitmap dataInWalFile) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (in.size() < HEADER_SIZE + FOOTER_SIZE + Integer.BYTES || !isIntact(in)) {
+                return -1;
+            }
+
+            final ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            readFully(in, footer, in.size() - Integer.BYTES - FOOTER_SIZE);
+            final int entries = footer.getInt(0);
+            final int keysInWalFile = footer.getInt(Integer.BYTES);
+            final long coveredDataLength = footer.getLong(Integer.BYTES * 2);
+            final long coveredWalLength = footer.getLong(Integer.BYTES * 2 + Long.BYTES);
+            if (HEADER_SIZE + (long) entries * (Integer.BYTES + Long.BYTES)
+                    + (long) keysInWalFile * Integer.BYTES + FOOTER_SIZE + Integer.BYTES
+                    != in.size()) {
+                return -1;
+            }
+
+            final Reader reader = new Reader(in);
+            if (reader.getInt() != VERSION || reader.getInt() != valueSize
+                    || coveredDataLength != dataFileLength) {
+                return -1;
+            }
+            // The WAL file may have grown since, but it must still begin with the same blocks.
+            if (coveredWalLength > walFileLength || walBlocks.toLogical(coveredWalLength) == -1) {
+                return -1;
+            }
+
+            index.ensureCapacity(entries);
+            for (int i = 0; i < entries; i++) {
+                final int key = reader.getInt();
+                index.put(key, reader.getLong());
+            }
+            for (int i = 0; i < keysInWalFile; i++) {
+                dataInWalFile.set(reader.getInt());
+            }
+            return coveredWalLength;
+        }
+    }
+
+    /**
+     * @return Whether the snapshot matches its checksum
+     */
+    private static boolean isIntact(final FileChannel in) throws IOException {
+        final long bodyLength = in.size() - Integer.BYTES;
+        if (bodyLength < 0) {
+            return false;
+        }
+
+        final CRC32 crc32 = new CRC32();
+        final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        long position = 0;
+        while (position < bodyLength) {
+            chunk.clear();
+            chunk.limit((int) Math.min(CHUNK_SIZE, bodyLength - position));
+            readFully(in, chunk, position);
+            crc32.update(chunk.array(), 0, chunk.limit());
+            position += chunk.limit();
+        }
+
+        final ByteBuffer checksum = ByteBuffer.allocate(Integer.BYTES);
+        readFully(in, checksum, bodyLength);
+        return checksum.getInt(0) == (int) crc32.getValue();
+    }
+
+    private static void readFully(final FileChannel in, final ByteBuffer dest,
+            final long position) throws IOException {
+        while (dest.hasRemaining()) {
+            if (in.read(dest, position + dest.position()) == -1) {
+                throw new EOFException("Attempted to read beyond the end of the index snapshot");
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot through a large buffer, and checksums whatever it writes. All entries must
+     * be put before the keys in the WAL file. The snapshot replaces the previous one only once
+     * it's committed; closing the writer before that discards it.
+     */
+    static final class Writer implements Closeable {
+
+        private final File file;
+        private final File tmp;
+        private final FileChannel out;
+        private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        private final CRC32 crc32 = new CRC32();
+        private int entries;
+        private int keysInWalFile;
+        private boolean committed;
+
+        Writer(final File file, final int valueSize) throws IOException {
+            this.file = file;
+            tmp = new File(file.getPath() + FILE_TYPE_TMP);
+            out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            chunk.putInt(VERSION);
+            chunk.putInt(valueSize);
+        }
+
+        void putEntry(final int key, final long recordIndex) throws IOException {
+            ensureRemaining(Integer.BYTES + Long.BYTES);
+            chunk.putInt(key);
+            chunk.putLong(recordIndex);
+            entries++;
+        }
+
+        void putKeyInWalFile(final int key) throws IOException {
+            ensureRemaining(Integer.BYTES);
+            chunk.putInt(key);
+            keysInWalFile++;
+        }
+
+        /**
+         * For lambdas which can't throw checked exceptions.
+         */
+        private void putEntryUnchecked(final int key, final long recordIndex) {
+            try {
+                putEntry(key, recordIndex);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void putKeyInWalFileUnchecked(final int key) {
+            try {
+                putKeyInWalFile(key);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void ensureRemaining(final int bytes) throws IOException {
+            if (chunk.remaining() < bytes) {
+                writeChunk();
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            crc32.update(chunk.array(), 0, chunk.position());
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                out.write(chunk);
+            }
+            chunk.clear();
+        }
+
+        /**
+         * Writes the footer and the checksum, and moves the snapshot into place.
+         *
+         * @param dataFileLength The length of the data file, or 0 if there's none
+         * @param walFileLength  The length of the WAL file which the snapshot covers
+         */
+        void commit(final long dataFileLength, final long walFileLength) throws IOException {
+            ensureRemaining(FOOTER_SIZE);
+            chunk.putInt(entries);
+            chunk.putInt(keysInWalFile);
+            chunk.putLong(dataFileLength);
+            chunk.putLong(walFileLength);
+            writeChunk();
+            chunk.putInt((int) crc32.getValue());
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                out.write(chunk);
+            }
+            out.close();
+
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                Files.deleteIfExists(tmp.toPath());
+            }
+        }
+    }
+
+    /**
+     * Reads through a large buffer.
+     */
+    private static final class Reader {
+
+        private final FileChannel in;
+        private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        private long position;
+
+        private Reader(final FileChannel in) {
+            this.in = in;
+            chunk.limit(0);
+        }
+
+        int getInt() throws IOException {
+            ensureRemaining(Integer.BYTES);
+            return chunk.getInt();
+        }
+
+        long getLong() throws IOException {
+            ensureRemaining(Long.BYTES);
+            return chunk.getLong();
+        }
+
+        private void ensureRemaining(final int bytes) throws IOException {
+            if (chunk.remaining() >= bytes) {
+                return;
+            }
+            chunk.compact();
+            while (chunk.position() < bytes) {
+                final int read = in.read(chunk, position);
+                if (read == -1) {
+                    throw new EOFException("Attempted to read beyond the end of the index "
+                            + "snapshot");
+                }
+                position += read;
+            }
+            chunk.flip();
+        }
+    }
+}
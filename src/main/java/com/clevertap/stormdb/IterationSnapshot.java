@@ -0,0 +1,149 @@
+package com.clevertap.stormdb;
+
+import com.clevertap.stormdb.internal.CompressedBitmap;
+import com.clevertap.stormdb.utils.RecordUtil;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The state of a database at one point in time, as far as iteration is concerned: handles of its
+ * own to the files, a copy of the write buffers, and the keys whose records in the data file are
+ * stale. Since a compaction never deletes a file which is open, the snapshot remains readable
+ * until it's closed, no matter what happens to the database in the meantime.
+ * <p>
+ * The records are read in the same order as {@link StormDB#iterate(EntryConsumer)} reads them:
+ * first the write buffers and the WAL files (the "head"), newest first, then the data file.
+ * The data segments, if any, take the place of the data file, newest first, as if they were a
+ * single file.
+ */
+final class IterationSnapshot implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IterationSnapshot.class);
+
+    final int recordSize;
+    final int blockSize;
+    final int valueSize;
+
+    /**
+     * Readers read about a write buffer's worth of blocks at a time.
+     */
+    final int blocksPerRead;
+
+    /**
+     * Copies of the blocks in the write buffer and in the sealed buffer, see
+     * {@link Buffer#copyRecords()}. The sealed buffer may be null.
+     */
+    final ByteBuffer inMemRecords;
+    final ByteBuffer sealedRecords;
+
+    final FileChannel[] walFiles;
+    final WalBlockTable[] walFileBlocks;
+    final long[] walFileLengths;
+
+    /**
+     * The data file, or the data segments, see above. Empty if there's no data file yet.
+     */
+    final FileChannel[] dataFiles;
+    /**
+     * The dead records of every data segment, or null for a data file.
+     */
+    final long[][] dataFileDead;
+    /**
+     * The block at which every data file begins, followed by the total number of blocks.
+     */
+    final long[] dataFileStarts;
+    final long dataFileBlocks;
+
+    /**
+     * Keys whose records in the data file are superseded by the head. Only read.
+     */
+    final CompressedBitmap superseded;
+
+    /**
+     * The number of distinct keys.
+     */
+    final long size;
+
+    IterationSnapshot(final Config conf, final ByteBuffer inMemRecords,
+            final ByteBuffer sealedRecords, final List<FileChannel> walFiles,
+            final List<WalBlockTable> walFileBlocks, final List<Long> walFileLengths,
+            final List<FileChannel> dataFiles, final List<long[]> dataFileDead,
+            final CompressedBitmap superseded, final long size) throws IOException {
+        recordSize = conf.getValueSize() + Config.KEY_SIZE;
+        blockSize = RecordUtil.blockSizeWithTrailer(recordSize);
+        valueSize = conf.getValueSize();
+        blocksPerRead = Math.max(1, conf.getMaxBufferSize() / blockSize);
+        this.inMemRecords = inMemRecords;
+        this.sealedRecords = sealedRecords;
+        this.walFiles = walFiles.toArray(new FileChannel[0]);
+        this.walFileBlocks = walFileBlocks.toArray(new WalBlockTable[0]);
+        this.walFileLengths = new long[walFileLengths.size()];
+        for (int i = 0; i < this.walFileLengths.length; i++) {
+            this.walFileLengths[i] = walFileLengths.get(i);
+        }
+        this.dataFiles = dataFiles.toArray(new FileChannel[0]);
+        this.dataFileDead = dataFileDead.toArray(new long[0][]);
+        dataFileStarts = new long[this.dataFiles.length + 1];
+        for (int i = 0; i < this.dataFiles.length; i++) {
+            dataFileStarts[i + 1] = dataFileStarts[i] + this.dataFiles[i].size() / blockSize;
+        }
+        dataFileBlocks = dataFileStarts[this.dataFiles.length];
+        this.superseded = superseded;
+        this.size = size;
+    }
+
+    /**
+     * @return true if the data file holds every key, so that the number of keys in a range of its
+     * blocks is known without reading it
+     */
+    boolean isDataFileComplete() {
+        // Data segments may hold dead records anywhere.
+        return superseded.isEmpty() && (dataFileDead.length == 0 || dataFileDead[0] == null);
+    }
+
+    /**
+     * @return The data file which holds the given block
+     */
+    int dataFileAt(final long block) {
+        int file = 0;
+        while (dataFileStarts[file + 1] <= block) {
+            file++;
+        }
+        return file;
+    }
+
+    /**
+     * @return The exact number of keys in blocks [start, end) of the data file, assuming that
+     * {@link #isDataFileComplete()}. Only the last block may hold fewer keys than it has records,
+     * since it's padded by repeating its last record.
+     */
+    long keysInDataBlocks(final long start, final long end) {
+        if (end == dataFileBlocks) {
+            return size - start * Config.RECORDS_PER_BLOCK;
+        }
+        return (end - start) * Config.RECORDS_PER_BLOCK;
+    }
+
+    @Override
+    public void close() {
+        for (FileChannel file : walFiles) {
+            closeQuietly(file);
+        }
+        for (FileChannel file : dataFiles) {
+            closeQuietly(file);
+        }
+    }
+
+    private static void closeQuietly(final FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close {}", file, e);
+        }
+    }
+}
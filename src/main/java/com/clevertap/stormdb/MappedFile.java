@@ -0,0 +1,124 @@
+package com.clevertap.stormdb;
+
+import com.clevertap.stormdb.exceptions.InconsistentDataException;
+import com.clevertap.stormdb.internal.SharedFileChannel;
+import com.clevertap.stormdb.utils.ByteUtil;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+
+/**
+ * A read only, memory mapped view of a data or WAL file, which serves point reads as memory
+ * copies.
+ * <p>
+ * The file is mapped in segments, since a single mapping can't exceed 2 GB. Each segment overlaps
+ * the next one by a record, so that every record lies entirely within the segment in which it
+ * begins. As the file grows, the tail is mapped on demand.
+ * <p>
+ * A reference to the file's channel is held until this is closed, so that the same file is mapped
+ * even after it has been replaced by a compaction. Mappings are released by the garbage collector
+ * once they're unreachable; they're never unmapped explicitly, since readers copy from them
+ * without holding any lock.
+ * <p>
+ * Thread safe.
+ */
+class MappedFile implements Closeable {
+
+    private final SharedFileChannel channel;
+    private final int recordSize;
+    private final int segmentSize;
+
+    private volatile Mapping mapping = new Mapping(new MappedByteBuffer[0], 0);
+    private boolean closed = false; // Guarded by this.
+
+    /**
+     * An immutable set of segments, replaced as a whole whenever the tail is remapped.
+     */
+    private static final class Mapping {
+
+        private final MappedByteBuffer[] segments;
+        private final long length;
+
+        private Mapping(final MappedByteBuffer[] segments, final long length) {
+            this.segments = segments;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param segmentSize The number of bytes between the start of two consecutive segments
+     */
+    MappedFile(final SharedFileChannel channel, final int recordSize, final int segmentSize)
+            throws IOException {
+        if (!channel.retain()) {
+            throw new ClosedChannelException();
+        }
+        this.channel = channel;
+        this.recordSize = recordSize;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Copies the value of the record at the given address into {@code value}, starting at
+     * {@code valueOffset}.
+     *
+     * @throws InconsistentDataException If the record at the address doesn't belong to the key
+     * @throws EOFException              If the file doesn't contain the record
+     */
+    void read(final long address, final int key, final byte[] value, final int valueOffset)
+            throws IOException {
+        Mapping current = mapping;
+        if (address + recordSize > current.length) {
+            current = mapTo(address + recordSize);
+        }
+
+        final MappedByteBuffer segment = current.segments[(int) (address / segmentSize)];
+        final int offset = (int) (address % segmentSize);
+        if (segment.getInt(offset) != key) {
+            throw new InconsistentDataException();
+        }
+
+        ByteUtil.copy(segment, offset + Config.KEY_SIZE, value, valueOffset,
+                recordSize - Config.KEY_SIZE);
+    }
+
+    /**
+     * Maps the file up to its current length, keeping the segments which are already complete.
+     */
+    private synchronized Mapping mapTo(final long requiredLength) throws IOException {
+        final Mapping current = mapping;
+        if (requiredLength <= current.length) {
+            return current; // Another reader got here first.
+        }
+
+        final long length = channel.size();
+        if (requiredLength > length) {
+            throw new EOFException("Attempted to read beyond the end of " + channel.getFile());
+        }
+
+        final int segmentCount = (int) ((length + segmentSize - 1) / segmentSize);
+        final MappedByteBuffer[] segments = Arrays.copyOf(current.segments, segmentCount);
+        final int fullMappingSize = segmentSize + recordSize;
+        for (int i = 0; i < segmentCount; i++) {
+            if (segments[i] != null && segments[i].capacity() == fullMappingSize) {
+                continue;
+            }
+            final long start = (long) i * segmentSize;
+            segments[i] = channel.map(start, Math.min(fullMappingSize, length - start));
+        }
+
+        mapping = new Mapping(segments, length);
+        return mapping;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            channel.release();
+        }
+    }
+}
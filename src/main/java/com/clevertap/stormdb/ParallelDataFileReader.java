@@ -0,0 +1,224 @@
+package com.clevertap.stormdb;
+
+import com.clevertap.stormdb.exceptions.StormDBRuntimeException;
+import com.clevertap.stormdb.internal.CompressedBitmap;
+import com.clevertap.stormdb.maps.LongIndexEntryConsumer;
+import com.clevertap.stormdb.utils.RecordUtil;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads a data file on a fork/join pool. The file is split into ranges of whole blocks, which are
+ * read concurrently with positional reads of a shared channel.
+ * <p>
+ * Every key is stored once in a data file, apart from the padding which completes its last block.
+ * Padding repeats the last record, so it's recognised as a record with the same key as the one
+ * before it, without having to track the keys which have been read.
+ * <p>
+ * A data segment may hold superseded records as well, which its dead records tell apart, see
+ * {@link DataSegments}.
+ */
+class ParallelDataFileReader {
+
+    private final FileChannel channel;
+    private final Config conf;
+    private final CompressedBitmap superseded;
+    private final long[] dead;
+    private final EntryConsumer consumer;
+    private final ThreadLocal<Buffer> buffers;
+    private final long leafBlocks;
+
+    /**
+     * @param channel    The data file
+     * @param superseded Keys whose records in the data file are stale, and must be skipped. This
+     *                   is only read, so it may be shared by all readers
+     * @param consumer   Receives every record which isn't skipped, concurrently
+     */
+    ParallelDataFileReader(final FileChannel channel, final Config conf,
+            final CompressedBitmap superseded, final EntryConsumer consumer) {
+        this(channel, conf, superseded, null, consumer);
+    }
+
+    /**
+     * Same as {@link #ParallelDataFileReader(FileChannel, Config, CompressedBitmap,
+     * EntryConsumer)}, for a data segment.
+     *
+     * @param dead The dead records of the segment, which are skipped, or null
+     */
+    ParallelDataFileReader(final FileChannel channel, final Config conf,
+            final CompressedBitmap superseded, final long[] dead, final EntryConsumer consumer) {
+        this.channel = channel;
+        this.conf = conf;
+        this.superseded = superseded;
+        this.dead = dead;
+        this.consumer = consumer;
+        // Each worker reuses a buffer of its own across the ranges it reads.
+        buffers = ThreadLocal.withInitial(() -> new Buffer(conf, true));
+        // Ranges of about a write buffer each, which is what a buffer reads at a time.
+        leafBlocks = Math.max(1, conf.getMaxBufferSize() / blockSize());
+    }
+
+    /**
+     * For {@link #readKeys(int, LongIndexEntryConsumer)} only, which neither skips keys nor passes
+     * values.
+     */
+    ParallelDataFileReader(final FileChannel channel, final Config conf) {
+        this(channel, conf, null, null);
+    }
+
+    private int blockSize() {
+        return RecordUtil.blockSizeWithTrailer(conf.getValueSize() + Config.KEY_SIZE);
+    }
+
+    void read(final int parallelism) throws IOException {
+        final long blocks = channel.size() / blockSize();
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new BlockRange(0, blocks));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Reads the key of every record along with its record index, for building an index. The keys
+     * are passed to the given consumer on the calling thread, so it needn't be thread safe, while
+     * the pool reads ahead by up to two ranges per thread. Ranges are passed in the order in which
+     * they're read, which needn't be the order of the file.
+     */
+    void readKeys(final int parallelism, final LongIndexEntryConsumer consumer)
+            throws IOException {
+        final long blocks = channel.size() / blockSize();
+        final long ranges = (blocks + leafBlocks - 1) / leafBlocks;
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        final CompletionService<RangeKeys> completed = new ExecutorCompletionService<>(pool);
+        try {
+            long submitted = 0;
+            while (submitted < Math.min(ranges, 2L * parallelism)) {
+                submitKeys(completed, submitted++, blocks);
+            }
+            for (long taken = 0; taken < ranges; taken++) {
+                final RangeKeys range = takeKeys(completed);
+                if (submitted < ranges) {
+                    submitKeys(completed, submitted++, blocks);
+                }
+                for (int i = 0; i < range.count; i++) {
+                    consumer.accept(range.keys[i], range.firstRecordIndex + i);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void submitKeys(final CompletionService<RangeKeys> completed, final long range,
+            final long blocks) {
+        final long start = range * leafBlocks;
+        final long end = Math.min(start + leafBlocks, blocks);
+        completed.submit(() -> readRangeKeys(start, end));
+    }
+
+    private static RangeKeys takeKeys(final CompletionService<RangeKeys> completed)
+            throws IOException {
+        try {
+            return completed.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the data file");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new StormDBRuntimeException(cause);
+        }
+    }
+
+    private RangeKeys readRangeKeys(final long start, final long end) throws IOException {
+        final RangeKeys range = new RangeKeys(start * Config.RECORDS_PER_BLOCK,
+                (int) (end - start) * Config.RECORDS_PER_BLOCK);
+        buffers.get().readDataBlocks(channel, start, end, entry -> {
+            final int key = entry.getInt();
+            // Padding only ever follows the last record, so what's left stays contiguous.
+            if (range.count == 0 || key != range.keys[range.count - 1]) {
+                range.keys[range.count++] = key;
+            }
+        });
+        return range;
+    }
+
+    private void readBlocks(final long start, final long end) throws IOException {
+        final int[] previousKey = {StormDB.RESERVED_KEY_MARKER};
+        final long[] recordIndex = {start * Config.RECORDS_PER_BLOCK};
+        buffers.get().readDataBlocks(channel, start, end, entry -> {
+            final int key = entry.getInt();
+            if (dead != null && DataSegments.isSet(dead, recordIndex[0]++)) {
+                return;
+            }
+            if (key == previousKey[0] || superseded.get(key)) {
+                return;
+            }
+            previousKey[0] = key;
+            try {
+                consumer.accept(key, entry.array(), entry.position());
+            } catch (IOException e) {
+                throw new StormDBRuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * The keys of a range of blocks, the first of which has the given record index.
+     */
+    private static final class RangeKeys {
+
+        private final long firstRecordIndex;
+        private final int[] keys;
+        private int count;
+
+        private RangeKeys(final long firstRecordIndex, final int records) {
+            this.firstRecordIndex = firstRecordIndex;
+            keys = new int[records];
+        }
+    }
+
+    /**
+     * Blocks [start, end), split in halves until a range fits into a single read.
+     */
+    private final class BlockRange extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long start;
+        private final long end;
+
+        private BlockRange(final long start, final long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= leafBlocks) {
+                try {
+                    readBlocks(start, end);
+                } catch (IOException e) {
+                    throw new StormDBRuntimeException(e);
+                }
+                return;
+            }
+
+            final long middle = start + (end - start) / 2;
+            invokeAll(new BlockRange(start, middle), new BlockRange(middle, end));
+        }
+    }
+}
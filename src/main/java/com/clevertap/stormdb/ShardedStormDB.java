@@ -0,0 +1,347 @@
+package com.clevertap.stormdb;
+
+import com.clevertap.stormdb.exceptions.IncorrectConfigException;
+import com.clevertap.stormdb.exceptions.ReservedKeyException;
+import com.clevertap.stormdb.exceptions.StormDBException;
+import com.clevertap.stormdb.utils.ByteUtil;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * A database which splits the key space across several independent {@link StormDB} shards. Each
+ * shard lives in its own sub directory, and has its own index, write buffer, WAL and data files,
+ * and compaction schedule. Writers to different shards therefore never contend with each other.
+ * <p>
+ * Meta protocol: value size (4 bytes) | shard count (4 bytes).
+ * <p>
+ * Notes:
+ * <ul>
+ *     <li>The shard count is fixed when the database is created</li>
+ *     <li>Iteration visits one shard after the other</li>
+ * </ul>
+ */
+public class ShardedStormDB {
+
+    private static final String SHARD_DIR_PREFIX = "shard-";
+
+    private final StormDB[] shards;
+    private final Config conf;
+
+    ShardedStormDB(final Config config) throws IOException {
+        conf = config;
+        final File dbDirFile = new File(conf.getDbDir());
+        //noinspection ResultOfMethodCallIgnored
+        dbDirFile.mkdirs();
+
+        final int shardCount = readOrCreateMeta(new File(dbDirFile, "meta"));
+
+        shards = new StormDB[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                final File shardDir = new File(dbDirFile, SHARD_DIR_PREFIX + i);
+                final Config shardConf = conf.copy(shardDir.getAbsolutePath());
+                shardConf.valueCacheBytes = conf.getValueCacheBytes() / shardCount;
+                shards[i] = new StormDB(shardConf);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeOpenShards();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the shard count persisted for this database. The persisted shard count always wins,
+     * since a different count would route existing keys to the wrong shard.
+     */
+    private int readOrCreateMeta(final File metaFile) throws IOException {
+        if (metaFile.exists()) {
+            final ByteBuffer meta = ByteBuffer.wrap(Files.readAllBytes(metaFile.toPath()));
+            final int valueSizeFromMeta = meta.getInt();
+            if (valueSizeFromMeta != conf.getValueSize()) {
+                throw new IncorrectConfigException("The path " + conf.getDbDir()
+                        + " contains a StormDB database with the value size "
+                        + valueSizeFromMeta + " bytes. "
+                        + "However, " + conf.getValueSize() + " bytes was provided!");
+            }
+            if (!meta.hasRemaining()) {
+                throw new IncorrectConfigException("The path " + conf.getDbDir()
+                        + " contains an unsharded StormDB database. Open it with "
+                        + "StormDBBuilder#build()!");
+            }
+            final int shardCountFromMeta = meta.getInt();
+            if (conf.getShardCount() != 0 && conf.getShardCount() != shardCountFromMeta) {
+                throw new IncorrectConfigException("The path " + conf.getDbDir()
+                        + " contains a StormDB database with " + shardCountFromMeta
+                        + " shards. However, " + conf.getShardCount() + " shards were provided!");
+            }
+            return shardCountFromMeta;
+        }
+
+        if (conf.getShardCount() == 0) {
+            throw new IncorrectConfigException("The shard count is required to create a new "
+                    + "sharded database.");
+        }
+
+        // New database. Write value size and shard count to the meta.
+        final ByteBuffer out = ByteBuffer.allocate(8);
+        out.putInt(conf.getValueSize());
+        out.putInt(conf.getShardCount());
+        Files.write(metaFile.toPath(), out.array());
+        return conf.getShardCount();
+    }
+
+    private void closeOpenShards() {
+        for (StormDB shard : shards) {
+            if (shard != null) {
+                try {
+                    shard.close();
+                } catch (IOException e) {
+                    // Ignore, we're already failing.
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps a key to its shard. The mapping is persisted implicitly in the layout of every existing
+     * database, and must never change.
+     */
+    static int shardFor(final int key, final int shardCount) {
+        // The murmur3 finaliser, so that sequential keys are spread evenly.
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, shardCount);
+    }
+
+    private StormDB shard(final int key) {
+        return shards[shardFor(key, shards.length)];
+    }
+
+    public void put(final byte[] key, final byte[] value, final int valueOffset)
+            throws IOException {
+        put(ByteUtil.toInt(key, 0), value, valueOffset);
+    }
+
+    public void put(final byte[] key, final byte[] value) throws IOException {
+        put(key, value, 0);
+    }
+
+    public void put(int key, byte[] value) throws IOException {
+        put(key, value, 0);
+    }
+
+    public void put(int key, byte[] value, int valueOffset) throws IOException {
+        shard(key).put(key, value, valueOffset);
+    }
+
+    public CompletableFuture<Void> putAsync(int key, byte[] value) {
+        return putAsync(key, value, 0);
+    }
+
+    /**
+     * See {@link StormDB#putAsync(int, byte[], int)}.
+     */
+    public CompletableFuture<Void> putAsync(int key, byte[] value, int valueOffset) {
+        return shard(key).putAsync(key, value, valueOffset);
+    }
+
+    public void putAll(final int[] keys, final byte[] values) throws IOException {
+        putAll(keys, values, conf.getValueSize());
+    }
+
+    /**
+     * See {@link StormDB#putAll(int[], byte[], int)}. Records are grouped by shard first, so that
+     * every shard receives a single batch.
+     */
+    public void putAll(final int[] keys, final byte[] values, final int valueStride)
+            throws IOException {
+        final int valueSize = conf.getValueSize();
+        if (valueStride < valueSize) {
+            throw new IllegalArgumentException("The value stride (" + valueStride
+                    + ") cannot be less than the value size (" + valueSize + ")!");
+        }
+        if (keys.length == 0) {
+            return;
+        }
+        if ((long) (keys.length - 1) * valueStride + valueSize > values.length) {
+            throw new IllegalArgumentException("Expected values for " + keys.length
+                    + " keys, but only " + values.length + " bytes were provided!");
+        }
+
+        final int[] recordsPerShard = new int[shards.length];
+        for (int key : keys) {
+            if (key == StormDB.RESERVED_KEY_MARKER) {
+                throw new ReservedKeyException(StormDB.RESERVED_KEY_MARKER);
+            }
+            recordsPerShard[shardFor(key, shards.length)]++;
+        }
+
+        for (int s = 0; s < shards.length; s++) {
+            if (recordsPerShard[s] == 0) {
+                continue;
+            }
+            final int[] shardKeys = new int[recordsPerShard[s]];
+            final byte[] shardValues = new byte[recordsPerShard[s] * valueSize];
+            int n = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (shardFor(keys[i], shards.length) == s) {
+                    shardKeys[n] = keys[i];
+                    System.arraycopy(values, i * valueStride, shardValues, n * valueSize,
+                            valueSize);
+                    n++;
+                }
+            }
+            shards[s].putAll(shardKeys, shardValues);
+        }
+    }
+
+    public byte[] randomGet(final int key) throws IOException, StormDBException {
+        return shard(key).randomGet(key);
+    }
+
+    public boolean randomGet(final int key, final ByteBuffer dest)
+            throws IOException, StormDBException {
+        return shard(key).randomGet(key, dest);
+    }
+
+    public boolean randomGet(final int key, final byte[] dest, final int offset)
+            throws IOException, StormDBException {
+        return shard(key).randomGet(key, dest, offset);
+    }
+
+    /**
+     * See {@link StormDB#multiGet(int[], byte[], int)}. Keys are grouped by shard first, so that
+     * every shard receives a single batch.
+     */
+    public BitSet multiGet(final int[] keys, final byte[] out, final int stride)
+            throws IOException, StormDBException {
+        final int valueSize = conf.getValueSize();
+        if (stride < valueSize) {
+            throw new IllegalArgumentException("The value stride (" + stride
+                    + ") cannot be less than the value size (" + valueSize + ")!");
+        }
+        if (keys.length > 0 && (long) (keys.length - 1) * stride + valueSize > out.length) {
+            throw new IllegalArgumentException("Expected space for " + keys.length
+                    + " values, but only " + out.length + " bytes were provided!");
+        }
+
+        final int[] keysPerShard = new int[shards.length];
+        for (int key : keys) {
+            keysPerShard[shardFor(key, shards.length)]++;
+        }
+
+        final BitSet missing = new BitSet(keys.length);
+        for (int s = 0; s < shards.length; s++) {
+            if (keysPerShard[s] == 0) {
+                continue;
+            }
+            final int[] shardKeys = new int[keysPerShard[s]];
+            final int[] positions = new int[keysPerShard[s]];
+            int n = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (shardFor(keys[i], shards.length) == s) {
+                    shardKeys[n] = keys[i];
+                    positions[n] = i;
+                    n++;
+                }
+            }
+
+            final byte[] shardOut = new byte[shardKeys.length * valueSize];
+            final BitSet shardMissing = shards[s].multiGet(shardKeys, shardOut, valueSize);
+            for (int j = 0; j < shardKeys.length; j++) {
+                if (shardMissing.get(j)) {
+                    missing.set(positions[j]);
+                } else {
+                    System.arraycopy(shardOut, j * valueSize, out, positions[j] * stride,
+                            valueSize);
+                }
+            }
+        }
+        return missing;
+    }
+
+    public void iterate(final EntryConsumer consumer) throws IOException {
+        for (StormDB shard : shards) {
+            shard.iterate(consumer);
+        }
+    }
+
+    public void iterateBlocks(final BlockConsumer consumer) throws IOException {
+        for (StormDB shard : shards) {
+            shard.iterateBlocks(consumer);
+        }
+    }
+
+    /**
+     * See {@link StormDB#parallelIterate(int, EntryConsumer)}. Shards are iterated one after the
+     * other, each with the given parallelism.
+     */
+    public void parallelIterate(final int parallelism, final EntryConsumer consumer)
+            throws IOException {
+        for (StormDB shard : shards) {
+            shard.parallelIterate(parallelism, consumer);
+        }
+    }
+
+    /**
+     * See {@link StormDB#stream()}. Every shard is captured upfront, and their streams are
+     * concatenated, so a parallel stream splits across shards as well as within them.
+     */
+    public Stream<StormDBEntry> stream() throws IOException {
+        Stream<StormDBEntry> stream = Stream.empty();
+        try {
+            for (StormDB shard : shards) {
+                stream = Stream.concat(stream, shard.stream());
+            }
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+        return stream;
+    }
+
+    public void flush() throws IOException {
+        for (StormDB shard : shards) {
+            shard.flush();
+        }
+    }
+
+    public void compact() throws IOException {
+        for (StormDB shard : shards) {
+            shard.compact();
+        }
+    }
+
+    public void close() throws IOException, InterruptedException {
+        for (StormDB shard : shards) {
+            shard.close();
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (StormDB shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public Config getConf() {
+        return conf;
+    }
+}
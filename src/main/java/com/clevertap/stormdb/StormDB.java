@@ -6,31 +6,46 @@ import com.clevertap.stormdb.exceptions.ReservedKeyException;
 import com.clevertap.stormdb.exceptions.StormDBException;
 import com.clevertap.stormdb.exceptions.StormDBRuntimeException;
 import com.clevertap.stormdb.maps.DefaultIndexMap;
-import com.clevertap.stormdb.maps.IndexMap;
-import com.clevertap.stormdb.internal.RandomAccessFilePool;
+import com.clevertap.stormdb.maps.DenseIndexMap;
+import com.clevertap.stormdb.maps.IntIndexMapAdapter;
+import com.clevertap.stormdb.maps.LongIndexEntryConsumer;
+import com.clevertap.stormdb.maps.LongIndexMap;
+import com.clevertap.stormdb.internal.CompressedBitmap;
+import com.clevertap.stormdb.internal.SharedFileChannel;
 import com.clevertap.stormdb.utils.ByteUtil;
 import com.clevertap.stormdb.utils.RecordUtil;
-import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.function.Consumer;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,33 +71,139 @@ public class StormDB {
      * <p>
      * Value: The offset (either in the data file, or in the WAL file)
      */
-    private final IndexMap index;
+    private final LongIndexMap index;
 
-    private BitSet dataInWalFile = new BitSet();
+    private CompressedBitmap dataInWalFile = new CompressedBitmap();
 
     private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    /**
+     * Held in write mode whenever a thread holds the write lock, so that
+     * {@link #randomGet(int, byte[], int)} can read without the read lock, and validate afterwards
+     * that no writer intervened. It's never held in read mode. See {@link #lockForWrite()}.
+     */
+    private final StampedLock readValidation = new StampedLock();
+    private long readValidationStamp;
+    private final boolean optimisticReads;
+
+    /**
+     * Per thread state for {@link #randomGet(int, byte[], int)} and
+     * {@link #multiGet(int[], byte[], int)}, so that reading a record from a file doesn't allocate.
+     */
+    private final ThreadLocal<ReadContext> readContexts;
 
-    private final RandomAccessFilePool filePool;
+    /**
+     * Caches the values of hot keys, if enabled. See {@link StormDBBuilder#withValueCache(long)}.
+     */
+    private final ValueCache valueCache;
 
-    private final Buffer buffer;
-    private long lastBufferFlushTimeMs;
+    /**
+     * The active write buffer, which accepts new records.
+     */
+    private Buffer buffer;
+    /**
+     * A full write buffer which is being written to the WAL file by the flusher thread. Readers
+     * must continue to read from it until its bytes are in the WAL file, and are therefore
+     * allowed to read it while it's being written. Guarded by {@link #flushSync}.
+     */
+    private volatile Buffer sealedBuffer;
+    /**
+     * The address in the WAL file at which the sealed buffer begins.
+     */
+    private long sealedBufferBase;
+    private long sealedBufferWriteSeq;
+    /**
+     * The buffer which will become active once the active one is sealed. Allocated lazily.
+     */
+    private Buffer spareBuffer;
+    private final Object flushSync = new Object();
+    private final Thread tFlusher;
+    private Throwable flushFailure;
+    private volatile long lastBufferFlushTimeMs;
 
     private final int recordSize;
 
+    /**
+     * The address in the WAL file at which the active write buffer begins. This includes the bytes
+     * of the sealed buffer, which might not have made it to the WAL file yet.
+     */
     private long bytesInWalFile = -1; // Will be initialised on the first write.
     private final File dbDirFile;
     private final Config conf;
     CompactionState compactionState;
 
     private File dataFile;
+    /**
+     * The data files, if the data is split into segments, in which case there's no single data
+     * file. See {@link StormDBBuilder#withDataSegmentSize(long)}.
+     */
+    private final DataSegments segments;
     private File walFile;
+    private final File indexSnapshotFile;
+    /**
+     * Whether opening the database had to repair its files, in which case an index snapshot
+     * can't be trusted.
+     */
+    private boolean filesRepaired;
+    /**
+     * The partial blocks in {@link #walFile}. Guarded by the read/write lock.
+     */
+    private WalBlockTable walBlocks;
+    /**
+     * The partial blocks of the WAL file which is currently being written to, i.e.
+     * {@link #walBlocks}, or the next WAL file's during a compaction. Guarded by the read/write
+     * lock.
+     */
+    private WalBlockTable latestWalBlocks;
+    /**
+     * Shared read channels for {@link #walFile} and {@link #dataFile}. The data file channel is
+     * null while the data file doesn't exist.
+     */
+    private SharedFileChannel walReader;
+    private SharedFileChannel dataReader;
+    /**
+     * Memory mapped views of {@link #walFile} and {@link #dataFile}, if enabled. The data file
+     * view is null while the data file doesn't exist.
+     */
+    private MappedFile mappedWalFile;
+    private MappedFile mappedDataFile;
 
     private DataOutputStream walOut;
+    FileChannel walChannel;
+
+    /**
+     * The number of writes accepted so far. Guarded by the write lock.
+     */
+    private volatile long writeSeq = 0;
+    /**
+     * The value of {@link #writeSeq} as of the last buffer flush.
+     */
+    private volatile long flushedWriteSeq = 0;
+    /**
+     * The value of {@link #writeSeq} as of the last buffer flush which was durably written.
+     * Guarded by {@link #durabilitySync}.
+     */
+    private long durableWriteSeq = 0;
+    private boolean groupCommitLeaderActive = false;
+    private final Object durabilitySync = new Object();
+
+    /**
+     * Writes from {@link #putAsync(int, byte[], int)} which are not durable yet, in the order of
+     * their sequence. Guarded by {@link #durabilitySync}.
+     */
+    private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<>();
+    private Throwable pendingWritesFailure;
+
+    private final StormDBMetrics metrics = new StormDBMetrics();
 
     private Thread tWorker;
     private final Object compactionSync;
     private final Object compactionLock = new Object();
     private boolean shutDown = false;
+    /**
+     * Set once {@link #close()} begins, after which no compaction starts, since its commit would
+     * reopen the readers.
+     */
+    private volatile boolean closing = false;
     private boolean useExecutorService = false; // We need this flag if using ES is done mid-way.
 
     Throwable exceptionDuringBackgroundOps = null;
@@ -101,21 +222,30 @@ public class StormDB {
         //noinspection ResultOfMethodCallIgnored
         dbDirFile.mkdirs();
 
-        if (conf.getIndexMap() == null) {
-            index = new DefaultIndexMap();
+        if (conf.getLongIndexMap() != null) {
+            index = conf.getLongIndexMap();
+        } else if (conf.getIndexMap() != null) {
+            index = new IntIndexMapAdapter(conf.getIndexMap());
+        } else if (conf.getDenseIndexKeyRange() != 0) {
+            index = new IntIndexMapAdapter(new DenseIndexMap(conf.getDenseIndexKeyRange()));
         } else {
-            index = conf.getIndexMap();
+            index = new IntIndexMapAdapter(new DefaultIndexMap());
         }
+        optimisticReads = index.supportsOptimisticReads();
 
         recordSize = conf.getValueSize() + Config.KEY_SIZE;
 
         buffer = new Buffer(conf, false);
         lastBufferFlushTimeMs = System.currentTimeMillis();
 
-        filePool = new RandomAccessFilePool(conf.getOpenFDCount());
+        readContexts = ThreadLocal.withInitial(() -> new ReadContext(recordSize));
+        valueCache = conf.getValueCacheBytes() > 0 ? new ValueCache(conf.getValueCacheBytes(),
+                conf.getValueSize(), readValidation, metrics) : null;
 
         dataFile = new File(dbDirFile.getAbsolutePath() + File.separator + FILE_NAME_DATA);
         walFile = new File(dbDirFile.getAbsolutePath() + File.separator + FILE_NAME_WAL);
+        indexSnapshotFile = new File(dbDirFile.getAbsolutePath() + File.separator
+                + IndexSnapshot.FILE_NAME);
 
         // Open DB.
         final File metaFile = new File(conf.getDbDir() + "/meta");
@@ -130,6 +260,11 @@ public class StormDB {
                         + valueSizeFromMeta + " bytes. "
                         + "However, " + conf.getValueSize() + " bytes was provided!");
             }
+            if (meta.hasRemaining()) {
+                throw new IncorrectConfigException("The path " + conf.getDbDir()
+                        + " contains a sharded StormDB database. Open it with "
+                        + "StormDBBuilder#buildSharded()!");
+            }
         } else {
             // New database. Write value size to the meta.
             final ByteBuffer out = ByteBuffer.allocate(4);
@@ -137,15 +272,30 @@ public class StormDB {
             Files.write(metaFile.toPath(), out.array());
         }
 
+        if (conf.getDataSegmentSize() > 0) {
+            segments = new DataSegments(dbDirFile, conf);
+        } else if (DataSegments.exist(dbDirFile)) {
+            throw new IncorrectConfigException("The path " + conf.getDbDir()
+                    + " contains a StormDB database with data segments. Open it with "
+                    + "StormDBBuilder#withDataSegmentSize(long)!");
+        } else {
+            segments = null;
+        }
+
         initWalOut();
 
         recover();
         buildIndex();
+        openReaders();
+
+        tFlusher = new Thread(this::runFlusher, "stormdb-flusher-" + dbDirFile.getName());
+        tFlusher.setDaemon(true);
+        tFlusher.start();
 
         if (executorService == null) {
             compactionSync = new Object();
             tWorker = new Thread(() -> {
-                while (!shutDown) {
+                while (!closing) {
                     try {
                         synchronized (compactionSync) {
                             compactionSync.wait(conf.getCompactionWaitTimeoutMs());
@@ -227,8 +377,43 @@ public class StormDB {
     }
 
     private void initWalOut() throws FileNotFoundException {
-        walOut = new DataOutputStream(new FileOutputStream(walFile, true));
-        bytesInWalFile = walFile.length();
+        openWalOut(walFile, true);
+    }
+
+    private void openWalOut(final File file, final boolean append) throws FileNotFoundException {
+        final FileOutputStream out = new FileOutputStream(file, append);
+        walOut = new DataOutputStream(out);
+        walChannel = out.getChannel();
+    }
+
+    /**
+     * Acquires the write lock. Every change to the state which
+     * {@link #randomGet(int, byte[], int)} reads must be made while holding it, since optimistic
+     * readers rely on it for validation.
+     */
+    private void lockForWrite() {
+        rwLock.writeLock().lock();
+        // The write lock is reentrant, but the stamped lock isn't.
+        if (rwLock.getWriteHoldCount() == 1) {
+            readValidationStamp = readValidation.writeLock();
+        }
+    }
+
+    private void unlockForWrite() {
+        if (rwLock.getWriteHoldCount() == 1) {
+            readValidation.unlockWrite(readValidationStamp);
+        }
+        rwLock.writeLock().unlock();
+    }
+
+    private boolean isSyncEnabled() {
+        return conf.getDurabilityMode() != DurabilityMode.NONE;
+    }
+
+    private void syncWal() throws IOException {
+        final long start = System.nanoTime();
+        walChannel.force(false);
+        metrics.recordWalSync(System.nanoTime() - start);
     }
 
     private boolean shouldFlushBuffer() {
@@ -253,54 +438,249 @@ public class StormDB {
         if (walFile.exists()) {
             final long walLength = walFile.length();
             if (walLength >= conf.getMinBuffersToCompact() * buffer.capacity()) {
-                if (!dataFile.exists()) {
+                final long dataLength = dataFilesLength();
+                if (dataLength == 0) {
                     return true;
                 } else {
                     // We should compare with data file irrespective of whether compaction is in progress
                     // It will be an aprox measure during compaction, but we will have to live with that.
-                    return walFile.length() * conf.getDataToWalFileRatio() >= dataFile.length();
+                    return walFile.length() * conf.getDataToWalFileRatio() >= dataLength;
                 }
             }
         }
         return false;
     }
 
+    /**
+     * @return The length of the data file, or the total length of the data segments
+     */
+    private long dataFilesLength() {
+        return segments != null ? segments.length() : dataFile.length();
+    }
+
+    /**
+     * @return What an index snapshot records about the data files, in order to tell whether it
+     * still matches them: the length of the data file, or the generation of the data segments
+     */
+    private long dataFilesVersion() {
+        if (segments != null) {
+            return segments.getGeneration();
+        }
+        return dataFile.exists() ? dataFile.length() : 0;
+    }
+
     private void buildIndex() throws IOException {
         rwLock.readLock().lock();
         try {
-            // Iterating data first ensures bitsets are not needed.
-            LOG.info("Building index for the data file.");
-            buildIndexFromFile(false);
-            LOG.info("Building index for the wal file.");
-            buildIndexFromFile(true);
+            final long coveredWalLength = loadIndexSnapshot();
+            if (coveredWalLength == -1) {
+                index.ensureCapacity(recordsInFiles());
+                // Iterating data first ensures bitsets are not needed.
+                LOG.info("Building index for the data file with {} threads.",
+                        conf.getIndexRebuildParallelism());
+                if (segments != null) {
+                    buildIndexFromSegments();
+                } else {
+                    buildIndexFromFile(false, 0);
+                }
+                LOG.info("Building index for the wal file.");
+                buildIndexFromFile(true, 0);
+            } else {
+                LOG.info("Loaded the index snapshot. Building index for the rest of the wal "
+                        + "file.");
+                if (segments != null) {
+                    // Every record starts out dead, until the index points to it.
+                    index.forEach((key, recordIndex) -> {
+                        if (!dataInWalFile.get(key)) {
+                            segments.markLive(recordIndex);
+                        }
+                    });
+                }
+                buildIndexFromFile(true, coveredWalLength);
+            }
             LOG.info("Finished building index.");
         } finally {
             rwLock.readLock().unlock();
         }
     }
 
-    private void buildIndexFromFile(boolean isWal) throws IOException {
+    /**
+     * @return An upper bound of the keys in the files. Every record of the WAL file counts, even
+     * though it may update the same keys over and over, but compaction keeps it small compared to
+     * the data file.
+     */
+    private int recordsInFiles() {
+        final long blocks = (dataFilesLength() + walFile.length())
+                / RecordUtil.blockSizeWithTrailer(recordSize);
+        return (int) Math.min(Integer.MAX_VALUE, blocks * Config.RECORDS_PER_BLOCK);
+    }
+
+    /**
+     * Loads the index snapshot, if there's one which matches the files. A snapshot is only used
+     * once, so it's deleted either way. See {@link IndexSnapshot}.
+     *
+     * @return The length of the WAL file which the snapshot covers, or -1 if none was loaded
+     */
+    private long loadIndexSnapshot() throws IOException {
+        if (!indexSnapshotFile.exists()) {
+            return -1;
+        }
+
+        long coveredWalLength = -1;
+        if (conf.indexSnapshotsEnabled() && !filesRepaired
+                && (segments == null || supportsForEach(index))) {
+            try {
+                coveredWalLength = IndexSnapshot.load(indexSnapshotFile, conf.getValueSize(),
+                        dataFilesVersion(), walBlocks, walFile.length(), index, dataInWalFile);
+                if (coveredWalLength == -1) {
+                    LOG.warn("Ignoring the index snapshot, since it doesn't match the files.");
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Failed to load the index snapshot, ignoring it.", e);
+                // Every key is put again while rebuilding, but the set must start out empty.
+                dataInWalFile = new CompressedBitmap();
+                coveredWalLength = -1;
+            }
+        }
+        Files.delete(indexSnapshotFile.toPath());
+        return coveredWalLength;
+    }
+
+    /**
+     * The records of data segments which the index points to are found by iterating it, once a
+     * snapshot has been loaded.
+     */
+    private static boolean supportsForEach(final LongIndexMap index) {
+        try {
+            index.forEach((key, recordIndex) -> {
+            });
+            return true;
+        } catch (UnsupportedOperationException e) {
+            LOG.info("Ignoring the index snapshot, since the index map can't be iterated.");
+            return false;
+        }
+    }
+
+    /**
+     * Persists the whole index when the database is closed, unless that's disabled. Any failure
+     * is logged, since the index can always be rebuilt from the files.
+     * <p>
+     * Always call this while holding the compaction lock, so that the files stay in place.
+     */
+    private void writeIndexSnapshot() throws IOException {
+        if (!conf.indexSnapshotsEnabled()) {
+            return;
+        }
+
+        // The snapshot mustn't cover buffered records, which a crash would lose. Flush them
+        // first, and keep writers out while the index is written, but not readers. Most of them
+        // are written before taking the lock, so that readers don't wait for the disk.
+        flush();
+        lockForWrite();
+        try {
+            flush();
+            rwLock.readLock().lock();
+        } finally {
+            unlockForWrite();
+        }
+
+        try {
+            final long start = System.currentTimeMillis();
+            IndexSnapshot.write(indexSnapshotFile, conf.getValueSize(), dataFilesVersion(),
+                    walFile.length(), index, dataInWalFile);
+            LOG.info("Wrote the index snapshot in {} ms", System.currentTimeMillis() - start);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to write the index snapshot.", e);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param walStart For the WAL file, the length which is covered by the index already
+     */
+    private void buildIndexFromFile(final boolean isWal, final long walStart)
+            throws IOException {
         final Buffer reader = new Buffer(conf, true);
 
         // First figure right file to read.
         File file = isWal ? walFile : dataFile;
 
         if (file.exists()) {
-            final RandomAccessFileWrapper wrapper = filePool.borrowObject(file);
-
-            final int[] fileIndex = {0};
+            final long[] fileIndex = {0};
             // Always iterate forward even for wal. In case of wal, entries are overwritten.
             // A small price to pay for not needing bitsets.
-            try {
-                reader.readFromFile(wrapper, false, entry -> {
-                    final int key = entry.getInt();
-                    index.put(key, fileIndex[0]++);
-                    if (isWal) {
-                        dataInWalFile.set(key);
-                    }
-                });
-            } finally {
-                filePool.returnObject(file, wrapper);
+            try (final RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                if (isWal) {
+                    final long logicalStart = walBlocks.toLogical(walStart);
+                    fileIndex[0] = logicalStart / RecordUtil.blockSizeWithTrailer(recordSize)
+                            * Config.RECORDS_PER_BLOCK;
+                    reader.readFromWalFile(in, walBlocks, logicalStart, bytesInWalFile, false,
+                            entry -> {
+                                final int key = entry.getInt();
+                                fileIndex[0] = walBlocks.nextRecordIndex(fileIndex[0]);
+                                if (segments == null) {
+                                    index.put(key, fileIndex[0]++);
+                                } else {
+                                    final long previous = index.putAndGetPrevious(key,
+                                            fileIndex[0]++);
+                                    // A record in a data segment, which is superseded now.
+                                    if (previous != RESERVED_KEY_MARKER
+                                            && !dataInWalFile.get(key)) {
+                                        segments.markDead(previous);
+                                    }
+                                }
+                                dataInWalFile.set(key);
+                            });
+                } else if (conf.getIndexRebuildParallelism() > 1) {
+                    // The index isn't thread safe, so only the reads are parallel.
+                    new ParallelDataFileReader(in.getChannel(), conf)
+                            .readKeys(conf.getIndexRebuildParallelism(), index::put);
+                } else {
+                    reader.readFromFile(in, false, entry -> {
+                        final int key = entry.getInt();
+                        index.put(key, fileIndex[0]++);
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the index for the data segments, oldest first, so that the records of a key in newer
+     * segments supersede the older ones. Along the way, the superseded records are marked dead.
+     * So is the padding of the last block, which repeats the last record: only the first of the
+     * records of a key is put, as {@link ParallelDataFileReader#readKeys(int,
+     * LongIndexEntryConsumer)} does.
+     */
+    private void buildIndexFromSegments() throws IOException {
+        final Buffer reader = new Buffer(conf, true);
+        for (DataSegments.Segment segment : segments.getSegments()) {
+            final LongIndexEntryConsumer putRecord = (key, localIndex) -> {
+                final long recordIndex = segment.firstRecordIndex + localIndex;
+                final long previous = index.putAndGetPrevious(key, recordIndex);
+                if (previous != RESERVED_KEY_MARKER) {
+                    segments.markDead(previous);
+                }
+                segments.markLive(recordIndex);
+            };
+
+            try (final RandomAccessFile in = new RandomAccessFile(segment.file, "r")) {
+                if (conf.getIndexRebuildParallelism() > 1) {
+                    new ParallelDataFileReader(in.getChannel(), conf)
+                            .readKeys(conf.getIndexRebuildParallelism(), putRecord);
+                } else {
+                    final long[] localIndex = {0};
+                    final int[] previousKey = {RESERVED_KEY_MARKER};
+                    reader.readFromFile(in, false, entry -> {
+                        final int key = entry.getInt();
+                        if (key != previousKey[0]) {
+                            putRecord.accept(key, localIndex[0]);
+                        }
+                        previousKey[0] = key;
+                        localIndex[0]++;
+                    });
+                }
             }
         }
     }
@@ -309,7 +689,8 @@ public class StormDB {
      * Recovers the database if it's corrupted.
      * <p>
      * Calling this brings the database to a state where exactly two files exist: the WAL file, and
-     * the data file.
+     * the data file. Or, if the data is split into segments, the WAL file, the data segments and
+     * their manifest.
      */
     private void recover() throws IOException {
         // If the database was shutdown during a compaction, delete data.next,
@@ -317,13 +698,19 @@ public class StormDB {
         final File nextWalFile = new File(dbDirFile.getAbsolutePath()
                 + File.separator + FILE_NAME_WAL + FILE_TYPE_NEXT);
 
+        // Whether the compaction committed its data segments depends on whether wal.next is
+        // still there, so they're dealt with first.
+        if (segments != null && segments.open(nextWalFile.exists())) {
+            filesRepaired = true;
+        }
+
         boolean nextWalFileDeleted = false;
 
         if (nextWalFile.exists()) {
             // Safe, since walOut is always opened in an append only mode.
             Files.copy(nextWalFile.toPath(), walOut);
             walOut.flush();
-            initWalOut(); // Will update the byte count.
+            initWalOut();
             Files.delete(nextWalFile.toPath());
             nextWalFileDeleted = true;
         }
@@ -339,21 +726,66 @@ public class StormDB {
             // Safe, since walOut is always opened in an append only mode.
             Files.copy(nextDataFile.toPath(), walOut);
             walOut.flush();
-            initWalOut(); // Will update the byte count.
+            initWalOut();
 
             Files.delete(nextDataFile.toPath());
+            filesRepaired = true;
         }
 
         // Let's run a sequential scan and verify the two files.
         {
-            final File verifiedWalFile = BlockUtil.verifyBlocks(walFile, conf.getValueSize());
+            walBlocks = new WalBlockTable(recordSize);
+            latestWalBlocks = walBlocks;
+            final File verifiedWalFile = BlockUtil.verifyBlocks(walFile, conf.getValueSize(),
+                    walBlocks);
             if (verifiedWalFile != walFile) {
                 walFile = verifiedWalFile;
                 initWalOut();
+                filesRepaired = true;
+            }
+            bytesInWalFile = walBlocks.toLogicalLength(walFile.length());
+        }
+
+        final File verifiedDataFile = BlockUtil.verifyBlocks(dataFile, conf.getValueSize());
+        if (verifiedDataFile != dataFile) {
+            dataFile = verifiedDataFile;
+            filesRepaired = true;
+        }
+
+        if (segments != null && dataFile.exists()) {
+            splitDataFile();
+        }
+    }
+
+    /**
+     * Moves the records of a data file which predates data segments into new segments. If that's
+     * interrupted, it's simply repeated, unless the segments were committed already.
+     */
+    private void splitDataFile() throws IOException {
+        if (segments.getSegments().isEmpty()) {
+            LOG.info("Splitting the data file into segments.");
+            try (final RandomAccessFile in = new RandomAccessFile(dataFile, "r");
+                    final DataSegments.Writer writer = segments.newWriter(conf,
+                            isSyncEnabled(), (segment, first, buffer, sources, count) -> {
+                    })) {
+                final int[] previousKey = {RESERVED_KEY_MARKER};
+                new Buffer(conf, true).readFromFile(in, false, entry -> {
+                    final int key = entry.getInt();
+                    // The padding of the last block is added again by the writer, if need be.
+                    if (key != previousKey[0]) {
+                        addToSegment(writer, key, entry, -1);
+                    }
+                    previousKey[0] = key;
+                });
+                final List<DataSegments.Segment> created = writer.finish();
+                segments.writeNextManifest(created, isSyncEnabled());
+                segments.commit(created, Collections.emptyList());
             }
         }
 
-        dataFile = BlockUtil.verifyBlocks(dataFile, conf.getValueSize());
+        // The index snapshot covers the data file, whose records are now in the segments.
+        Files.deleteIfExists(indexSnapshotFile.toPath());
+        Files.delete(dataFile.toPath());
     }
 
     /**
@@ -378,10 +810,17 @@ public class StormDB {
 
     public void compact() throws IOException {
         synchronized (compactionLock) {
+            if (closing) {
+                return;
+            }
             final long start = System.currentTimeMillis();
 
+            // Write the buffered records before taking the lock, so that readers and writers only
+            // wait for whatever arrives in the meantime.
+            flush();
+
             // 1. Move wal to wal.prev and create new wal file.
-            rwLock.writeLock().lock();
+            lockForWrite();
             try {
                 // First flush all data.
                 // This is because we will be resetting bytesInWalFile below and we need to get all
@@ -400,26 +839,54 @@ public class StormDB {
                         + File.separator + FILE_NAME_WAL + FILE_TYPE_NEXT);
 
                 // Create new walOut File
-                walOut = new DataOutputStream(new FileOutputStream(compactionState.nextWalFile));
+                openWalOut(compactionState.nextWalFile, false);
+                compactionState.nextWalReader = new SharedFileChannel(compactionState.nextWalFile);
+                compactionState.nextWalBlocks = new WalBlockTable(recordSize);
+                latestWalBlocks = compactionState.nextWalBlocks;
                 bytesInWalFile = 0;
                 compactionState.nextFileRecordIndex = 0;
+                if (segments != null) {
+                    compactionState.garbageSegments = segments.selectGarbageSegments();
+                }
 
             } finally {
-                rwLock.writeLock().unlock();
+                unlockForWrite();
+            }
+
+            if (segments != null) {
+                compactSegments();
+            } else {
+                compactDataFile();
             }
 
-            // 2. Process wal.current file and out to data.next file.
-            // 3. Process data.current file.
-            compactionState.nextDataFile = new File(dbDirFile.getAbsolutePath() + File.separator +
-                    FILE_NAME_DATA + FILE_TYPE_NEXT);
+            LOG.info("Compaction completed successfully in {} ms",
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Writes the records of the WAL file which is being compacted, and of the data file, to a new
+     * data file, which then replaces both.
+     */
+    private void compactDataFile() throws IOException {
+        // 2. Process wal.current file and out to data.next file.
+        // 3. Process data.current file.
+        compactionState.nextDataFile = new File(dbDirFile.getAbsolutePath() + File.separator +
+                FILE_NAME_DATA + FILE_TYPE_NEXT);
+        final IndexSnapshot.Writer indexSnapshotWriter = openIndexSnapshotWriter();
+        compactionState.indexSnapshot = indexSnapshotWriter;
 
-            try (final BufferedOutputStream out =
-                    new BufferedOutputStream(new FileOutputStream(compactionState.nextDataFile),
-                            buffer.getWriteBufferSize())) {
+        try {
+            try (final FileOutputStream fileOut =
+                    new FileOutputStream(compactionState.nextDataFile);
+                    final FileChannel out = fileOut.getChannel()) {
+                // Published to readers by the write lock in flushNext().
+                compactionState.nextDataReader = new SharedFileChannel(
+                        compactionState.nextDataFile);
 
                 final Buffer tmpBuffer = new Buffer(conf, false);
 
-                iterate(false, false, (key, data, offset) -> {
+                iterate(false, false, 1, (key, data, offset) -> {
                     tmpBuffer.add(key, data, offset);
 
                     if (tmpBuffer.isFull()) {
@@ -430,297 +897,1469 @@ public class StormDB {
                 if (tmpBuffer.isDirty()) {
                     flushNext(out, tmpBuffer);
                 }
+
+                // The WAL will be discarded once data.next replaces the data file.
+                if (isSyncEnabled()) {
+                    out.force(false);
+                }
             }
 
-            rwLock.writeLock().lock();
+            lockForWrite();
             try {
+                // Readers must be closed before their files are renamed, see
+                // SharedFileChannel.
+                closeReaders();
+                compactionState.nextWalReader.close();
+                compactionState.nextDataReader.close();
+
+                // The index snapshot covers the files which are about to be replaced.
+                Files.deleteIfExists(indexSnapshotFile.toPath());
+
                 // First rename prevWalFile and prevDataFile so that .next can be renamed
                 walFile = move(compactionState.nextWalFile, walFile).toFile();
                 dataFile = move(compactionState.nextDataFile, dataFile).toFile();
 
+                // The new snapshot covers the new data file, but none of the new WAL file.
+                commitIndexSnapshot(compactionState.indexSnapshot, dataFile.length());
+
                 // Now make bitsets point right.
                 dataInWalFile = compactionState.dataInNextWalFile;
+                walBlocks = compactionState.nextWalBlocks;
 
                 compactionState = null;
-                filePool.clear();
+                openReaders();
             } finally {
-                rwLock.writeLock().unlock();
+                unlockForWrite();
+            }
+        } finally {
+            if (indexSnapshotWriter != null) {
+                closeIndexSnapshotWriter(indexSnapshotWriter);
             }
-
-            LOG.info("Compaction completed successfully in {} ms",
-                    System.currentTimeMillis() - start);
         }
     }
 
-    private void flushNext(OutputStream out, Buffer buffer) throws IOException {
-        buffer.flush(out);
+    /**
+     * Same as {@link #compactDataFile()}, however, only the records of the WAL file and of the
+     * data segments which are mostly garbage are written, to new segments. The records of the WAL
+     * file come first, newest first, so that hot keys end up close to each other, followed by the
+     * live records of those segments. The other segments are left alone, apart from the records
+     * which the WAL file superseded, which die.
+     */
+    private void compactSegments() throws IOException {
+        final List<DataSegments.Segment> garbageSegments = compactionState.garbageSegments;
+        LOG.info("Rewriting {} of {} data segments.", garbageSegments.size(),
+                segments.getSegments().size());
 
-        try {
-            rwLock.writeLock().lock();
-            final Enumeration<ByteBuffer> iterator = buffer.iterator(false);
+        final CompressedBitmap keysRead = new CompressedBitmap();
+        final Buffer reader = new Buffer(conf, true);
+        final List<DataSegments.Segment> created;
+        try (final DataSegments.Writer writer = segments.newWriter(conf, isSyncEnabled(),
+                this::flushSegment)) {
+            try (final RandomAccessFile in = new RandomAccessFile(walFile, "r")) {
+                reader.readFromWalFile(in, walBlocks, walBlocks.toLogicalLength(in.length()),
+                        true, entry -> {
+                            final int key = entry.getInt();
+                            if (!keysRead.get(key)) {
+                                keysRead.set(key);
+                                addToSegment(writer, key, entry, -1);
+                            }
+                        });
+            }
 
-            while (iterator.hasMoreElements()) {
-                final ByteBuffer byteBuffer = iterator.nextElement();
-                final long address = RecordUtil
-                        .indexToAddress(recordSize, compactionState.nextFileRecordIndex);
-                compactionState.nextFileRecordIndex++;
-                final int key = byteBuffer.getInt();
-                if (!compactionState.dataInNextWalFile.get(key)) {
-                    index.put(key, RecordUtil.addressToIndex(recordSize, address));
-                    compactionState.dataInNextFile.set(key);
+            for (DataSegments.Segment segment : garbageSegments) {
+                final long[] dead = segment.dead;
+                final long[] localIndex = {0};
+                try (final RandomAccessFile in = new RandomAccessFile(segment.file, "r")) {
+                    reader.readDataBlocks(in.getChannel(), 0,
+                            segment.records / Config.RECORDS_PER_BLOCK, entry -> {
+                                final long local = localIndex[0]++;
+                                final int key = entry.getInt();
+                                // Writers mark records as pending concurrently, so a record may
+                                // be copied in vain, see flushSegment().
+                                if (!DataSegments.isSet(dead, local) && !segment.isPending(local)
+                                        && !keysRead.get(key)) {
+                                    keysRead.set(key);
+                                    addToSegment(writer, key, entry,
+                                            segment.firstRecordIndex + local);
+                                }
+                            });
                 }
             }
-        } finally {
-            rwLock.writeLock().unlock();
-        }
-
-        buffer.clear();
-    }
-
-    public void put(final byte[] key, final byte[] value, final int valueOffset)
-            throws IOException {
-        put(ByteUtil.toInt(key, 0), value, valueOffset);
-    }
-
-    public void put(final byte[] key, final byte[] value) throws IOException {
-        put(key, value, 0);
-    }
-
-    public void put(int key, byte[] value) throws IOException {
-        put(key, value, 0);
-    }
-
-    public void put(int key, byte[] value, int valueOffset) throws IOException {
-        if (exceptionDuringBackgroundOps != null) {
-            throw new StormDBRuntimeException("Will not accept any further writes since the "
-                    + "last compaction resulted in an exception!", exceptionDuringBackgroundOps);
+            created = writer.finish();
         }
 
-        if (key == RESERVED_KEY_MARKER) {
-            throw new ReservedKeyException(RESERVED_KEY_MARKER);
-        }
-        rwLock.writeLock().lock();
+        final List<DataSegments.Segment> next = new ArrayList<>(segments.getSegments());
+        next.removeAll(garbageSegments);
+        next.addAll(created);
+        segments.writeNextManifest(next, isSyncEnabled());
 
+        lockForWrite();
         try {
-            boolean updatedInPlace = false;
-
-            final int recordIndexForKey = index.get(key);
-
-            // Check if the key exists in the WAL file.
-            if ((recordIndexForKey != RESERVED_KEY_MARKER) && ((isCompactionInProgress() && compactionState.dataInNextWalFile.get(key)) || (!isCompactionInProgress() && dataInWalFile.get(key)))) {
-                long address =  RecordUtil.indexToAddress(recordSize, recordIndexForKey);
-                // Is the record in the buffer?
-                if (address >= bytesInWalFile) {
-                    int addressToUpdateForKey = (int)(address - bytesInWalFile);
-                    updatedInPlace = buffer.update(key, value, valueOffset, addressToUpdateForKey);
-                }
-            }
+            // Readers must be closed before their files are renamed, see SharedFileChannel.
+            closeReaders();
+            compactionState.nextWalReader.close();
 
-            if (buffer.isFull()) {
-                flush();
-                // Let compaction thread eval if there is a need for compaction.
-                // If buffer length is too small, it might result in too many calls.
-                synchronized (compactionSync) {
-                    compactionSync.notifyAll();
-                }
-            }
-
-            // Write to the write buffer.
-            if (!updatedInPlace) {
-                final int addressInBuffer = buffer.add(key, value, valueOffset);
+            // The index snapshot covers the files which are about to be replaced.
+            Files.deleteIfExists(indexSnapshotFile.toPath());
 
+            // The WAL file is replaced first, see DataSegments#open(boolean).
+            walFile = move(compactionState.nextWalFile, walFile).toFile();
+            segments.commit(next, garbageSegments);
 
-                final int recordIndex = RecordUtil.addressToIndex(recordSize,
-                    bytesInWalFile + addressInBuffer);
-                index.put(key, recordIndex);
-            }
-
-            if (isCompactionInProgress()) {
-                compactionState.dataInNextWalFile.set(key);
-            } else {
-                dataInWalFile.set(key);
-            }
+            dataInWalFile = compactionState.dataInNextWalFile;
+            walBlocks = compactionState.nextWalBlocks;
 
+            compactionState = null;
+            openReaders();
         } finally {
-            rwLock.writeLock().unlock();
+            unlockForWrite();
         }
     }
 
-    public void flush() throws IOException {
-        rwLock.writeLock().lock();
+    private static void addToSegment(final DataSegments.Writer writer, final int key,
+            final ByteBuffer entry, final long source) {
         try {
-            // walOut is initialised on the first write to the writeBuffer.
-            if (walOut == null || !buffer.isDirty()) {
-                return;
-            }
-
-            bytesInWalFile += buffer.flush(walOut);
-            buffer.clear();
-
-            lastBufferFlushTimeMs = System.currentTimeMillis();
+            writer.add(key, entry.array(), entry.position(), source);
+        } catch (IOException e) {
+            throw new StormDBRuntimeException(e);
+        }
+    }
 
-            if (isCompactionInProgress() && compactionState.runningForTooLong()) {
-                final long secondsSinceStart =
-                        (System.currentTimeMillis() - compactionState.getStart()) / 1000;
-                exceptionDuringBackgroundOps = new StormDBRuntimeException(
-                        "The last compaction has been running for over " + secondsSinceStart
-                                + " seconds!");
+    /**
+     * Points the index to the records which a compaction has just written to a new data segment,
+     * unless they've been superseded in the meantime: a record of the WAL file by the next WAL
+     * file, and a record of a data segment by anything that the index points to instead. The
+     * others stay dead.
+     */
+    private void flushSegment(final DataSegments.Segment segment, final long first,
+            final Buffer buffer, final long[] sources, final int count) {
+        lockForWrite();
+        try {
+            final Enumeration<ByteBuffer> iterator = buffer.iterator(false);
+            // The padding after the records stays dead.
+            for (int i = 0; i < count; i++) {
+                final int key = iterator.nextElement().getInt();
+                final boolean current = sources[i] == -1
+                        ? !compactionState.dataInNextWalFile.get(key)
+                        : index.get(key) == sources[i];
+                if (current) {
+                    final long recordIndex = segment.firstRecordIndex + first + i;
+                    index.put(key, recordIndex);
+                    compactionState.dataInNextFile.set(key);
+                    segments.markLive(recordIndex);
+                }
             }
         } finally {
-            rwLock.writeLock().unlock();
+            unlockForWrite();
         }
     }
 
-    public void iterate(final EntryConsumer consumer) throws IOException {
-        iterate(true, true, consumer);
+    /**
+     * A compaction streams out a snapshot of the index entries for the data file which it writes,
+     * so that writers needn't wait for the whole index to be written afterwards.
+     *
+     * @return The writer, or null if snapshots are disabled, or if it couldn't be opened
+     */
+    private IndexSnapshot.Writer openIndexSnapshotWriter() {
+        if (!conf.indexSnapshotsEnabled()) {
+            return null;
+        }
+        try {
+            return new IndexSnapshot.Writer(indexSnapshotFile, conf.getValueSize());
+        } catch (IOException e) {
+            LOG.warn("Failed to write the index snapshot.", e);
+            return null;
+        }
     }
 
-    private void iterate(final boolean useLatestWalFile, final boolean readInMemoryBuffer,
-            final EntryConsumer consumer) throws IOException {
-        final ArrayList<RandomAccessFile> walFiles = new ArrayList<>(2);
-        final ArrayList<RandomAccessFile> dataFiles = new ArrayList<>(1);
-
-        Enumeration<ByteBuffer> inMemRecords = null;
-        rwLock.readLock().lock();
+    /**
+     * Puts the index entries for the records which a compaction just wrote to the next data file.
+     * A failure abandons the snapshot.
+     */
+    private void writeIndexSnapshotEntries(final Buffer buffer) {
+        final IndexSnapshot.Writer writer = compactionState.indexSnapshot;
+        if (writer == null) {
+            return;
+        }
         try {
-            if (isCompactionInProgress() && useLatestWalFile) {
-                final RandomAccessFileWrapper reader = filePool
-                        .borrowObject(compactionState.nextWalFile);
-                reader.seek(reader.length());
-                walFiles.add(reader);
+            long recordIndex = compactionState.nextFileRecordIndex;
+            int previousKey = RESERVED_KEY_MARKER;
+            final Enumeration<ByteBuffer> iterator = buffer.iterator(false);
+            while (iterator.hasMoreElements()) {
+                final ByteBuffer byteBuffer = iterator.nextElement();
+                final int key = byteBuffer.getInt(byteBuffer.position());
+                // The last block is padded by repeating its last record, which needn't be put.
+                if (key != previousKey) {
+                    writer.putEntry(key, recordIndex);
+                }
+                previousKey = key;
+                recordIndex++;
             }
+        } catch (IOException e) {
+            LOG.warn("Failed to write the index snapshot.", e);
+            closeIndexSnapshotWriter(writer);
+            compactionState.indexSnapshot = null;
+        }
+    }
 
-            if (walFile.exists()) {
-                final RandomAccessFileWrapper reader = filePool.borrowObject(walFile);
-                reader.seek(reader.length());
-                walFiles.add(reader);
+    private void commitIndexSnapshot(final IndexSnapshot.Writer writer,
+            final long dataFileLength) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.commit(dataFileLength, 0);
+        } catch (IOException e) {
+            LOG.warn("Failed to write the index snapshot.", e);
+        }
+    }
+
+    private static void closeIndexSnapshotWriter(final IndexSnapshot.Writer writer) {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to discard the index snapshot.", e);
+        }
+    }
+
+    /**
+     * Opens shared read channels, and memory mapped views if enabled, for the current data and WAL
+     * files. Readers which already picked up the previous ones continue to read the old files.
+     * <p>
+     * Always call this while holding the write lock, unless the database is still being opened.
+     */
+    private void openReaders() throws IOException {
+        walReader = new SharedFileChannel(walFile);
+        if (dataFile.exists()) {
+            dataReader = new SharedFileChannel(dataFile);
+        }
+
+        if (conf.memoryMappedReadsEnabled()) {
+            mappedWalFile = new MappedFile(walReader, recordSize, Config.MMAP_SEGMENT_SIZE);
+            if (dataReader != null) {
+                mappedDataFile = new MappedFile(dataReader, recordSize, Config.MMAP_SEGMENT_SIZE);
             }
+        }
+
+        if (segments != null) {
+            segments.openReaders(recordSize, conf.memoryMappedReadsEnabled());
+        }
+    }
+
+    /**
+     * Always call this while holding the write lock.
+     */
+    private void closeReaders() throws IOException {
+        if (mappedWalFile != null) {
+            mappedWalFile.close();
+            mappedWalFile = null;
+        }
+        if (mappedDataFile != null) {
+            mappedDataFile.close();
+            mappedDataFile = null;
+        }
+        if (walReader != null) {
+            walReader.close();
+            walReader = null;
+        }
+        if (dataReader != null) {
+            dataReader.close();
+            dataReader = null;
+        }
+    }
+
+    private void flushNext(FileChannel out, Buffer buffer) throws IOException {
+        buffer.flush(out);
+        writeIndexSnapshotEntries(buffer);
 
-            if (dataFile.exists()) {
-                final RandomAccessFileWrapper reader = filePool.borrowObject(dataFile);
-                reader.seek(0);
-                dataFiles.add(reader);
+        lockForWrite();
+        try {
+            final Enumeration<ByteBuffer> iterator = buffer.iterator(false);
+
+            while (iterator.hasMoreElements()) {
+                final ByteBuffer byteBuffer = iterator.nextElement();
+                final long address = RecordUtil
+                        .indexToAddress(recordSize, compactionState.nextFileRecordIndex);
+                compactionState.nextFileRecordIndex++;
+                final int key = byteBuffer.getInt();
+                if (!compactionState.dataInNextWalFile.get(key)) {
+                    index.put(key, RecordUtil.addressToIndex(recordSize, address));
+                    compactionState.dataInNextFile.set(key);
+                }
             }
+        } finally {
+            unlockForWrite();
+        }
 
-            if (readInMemoryBuffer) {
-                inMemRecords = buffer.iterator(true);
+        buffer.clear();
+    }
+
+    public void put(final byte[] key, final byte[] value, final int valueOffset)
+            throws IOException {
+        put(ByteUtil.toInt(key, 0), value, valueOffset);
+    }
+
+    public void put(final byte[] key, final byte[] value) throws IOException {
+        put(key, value, 0);
+    }
+
+    public void put(int key, byte[] value) throws IOException {
+        put(key, value, 0);
+    }
+
+    public void put(int key, byte[] value, int valueOffset) throws IOException {
+        ensureWritable();
+
+        if (key == RESERVED_KEY_MARKER) {
+            throw new ReservedKeyException(RESERVED_KEY_MARKER);
+        }
+
+        final long seq;
+        lockForWrite();
+        try {
+            putUnderWriteLock(key, value, valueOffset);
+            seq = writeSeq;
+        } finally {
+            unlockForWrite();
+        }
+
+        if (conf.getDurabilityMode() == DurabilityMode.GROUP_COMMIT) {
+            awaitDurable(seq);
+        }
+    }
+
+    public CompletableFuture<Void> putAsync(int key, byte[] value) {
+        return putAsync(key, value, 0);
+    }
+
+    /**
+     * Writes a record without waiting for it to reach the WAL file. The returned future completes
+     * once the buffer holding the record has been flushed to the WAL file, and synced, unless the
+     * durability mode is {@link DurabilityMode#NONE}.
+     * <p>
+     * This never triggers a flush by itself. Buffers are flushed once they're full, on
+     * {@link #flush()}, or by the background worker once the buffer flush timeout has elapsed.
+     * <p>
+     * Dependent stages which aren't async are run by the thread flushing the buffer, and so
+     * should be kept short.
+     *
+     * @return A future which completes exceptionally if the record could not be written
+     */
+    public CompletableFuture<Void> putAsync(int key, byte[] value, int valueOffset) {
+        ensureWritable();
+
+        if (key == RESERVED_KEY_MARKER) {
+            throw new ReservedKeyException(RESERVED_KEY_MARKER);
+        }
+
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        lockForWrite();
+        try {
+            putUnderWriteLock(key, value, valueOffset);
+
+            // Queued while still holding the write lock, so that sequences stay in order.
+            synchronized (durabilitySync) {
+                if (pendingWritesFailure != null) {
+                    future.completeExceptionally(pendingWritesFailure);
+                } else if (durableWriteSeq >= writeSeq) {
+                    future.complete(null);
+                } else {
+                    pendingWrites.add(new PendingWrite(writeSeq, future));
+                }
             }
+        } catch (IOException e) {
+            future.completeExceptionally(e);
         } finally {
-            rwLock.readLock().unlock();
+            unlockForWrite();
         }
+        return future;
+    }
 
-        final BitSet keysRead = new BitSet(index.size());
+    public void putAll(final int[] keys, final byte[] values) throws IOException {
+        putAll(keys, values, conf.getValueSize());
+    }
 
-        final Consumer<ByteBuffer> entryConsumer = entry -> {
-            final int key = entry.getInt();
-            final boolean b = keysRead.get(key);
-            if (!b) {
+    /**
+     * Writes a batch of records. This is equivalent to calling {@link #put(int, byte[], int)} for
+     * every key, however, the write lock is acquired only once per write buffer worth of records.
+     * <p>
+     * All keys are validated before anything is written.
+     *
+     * @param keys        The keys to be written
+     * @param values      The values, laid out one after the other
+     * @param valueStride The distance in bytes between the start of two consecutive values, which
+     *                    must be at least the value size
+     */
+    public void putAll(final int[] keys, final byte[] values, final int valueStride)
+            throws IOException {
+        ensureWritable();
+
+        final int valueSize = conf.getValueSize();
+        if (valueStride < valueSize) {
+            throw new IllegalArgumentException("The value stride (" + valueStride
+                    + ") cannot be less than the value size (" + valueSize + ")!");
+        }
+        if (keys.length == 0) {
+            return;
+        }
+        if ((long) (keys.length - 1) * valueStride + valueSize > values.length) {
+            throw new IllegalArgumentException("Expected values for " + keys.length
+                    + " keys, but only " + values.length + " bytes were provided!");
+        }
+        for (int key : keys) {
+            if (key == RESERVED_KEY_MARKER) {
+                throw new ReservedKeyException(RESERVED_KEY_MARKER);
+            }
+        }
+
+        long seq = 0;
+        int i = 0;
+        while (i < keys.length) {
+            lockForWrite();
+            try {
+                // Fill up the remainder of the write buffer, then give readers a chance.
+                do {
+                    putUnderWriteLock(keys[i], values, i * valueStride);
+                    i++;
+                } while (i < keys.length && !buffer.isFull());
+                seq = writeSeq;
+            } finally {
+                unlockForWrite();
+            }
+        }
+
+        if (conf.getDurabilityMode() == DurabilityMode.GROUP_COMMIT) {
+            awaitDurable(seq);
+        }
+    }
+
+    private void ensureWritable() {
+        if (exceptionDuringBackgroundOps != null) {
+            throw new StormDBRuntimeException("Will not accept any further writes since the "
+                    + "last compaction resulted in an exception!", exceptionDuringBackgroundOps);
+        }
+    }
+
+    /**
+     * Always call this while holding the write lock.
+     */
+    private void putUnderWriteLock(final int key, final byte[] value, final int valueOffset)
+            throws IOException {
+        if (buffer.isFull()) {
+            sealBuffer();
+            // Let compaction thread eval if there is a need for compaction.
+            // If buffer length is too small, it might result in too many calls.
+            synchronized (compactionSync) {
+                compactionSync.notifyAll();
+            }
+        }
+
+        // Point the key at where the record will be appended, so that the index finds the key
+        // only once on this hot path. Optimistic readers which see the index before the record
+        // is there fail validation, since the write lock is held.
+        final long recordIndex = RecordUtil.addressToIndex(recordSize,
+                bytesInWalFile + buffer.nextAddress());
+        final long recordIndexForKey = index.putAndGetPrevious(key, recordIndex);
+        if (segments != null && recordIndexForKey != RESERVED_KEY_MARKER
+                && isInDataSegment(key)) {
+            segments.markPending(recordIndexForKey);
+        }
+
+        boolean updatedInPlace = false;
+        // Check if the key exists in the WAL file.
+        if ((recordIndexForKey != RESERVED_KEY_MARKER) && ((isCompactionInProgress() && compactionState.dataInNextWalFile.get(key)) || (!isCompactionInProgress() && dataInWalFile.get(key)))) {
+            long address =  RecordUtil.indexToAddress(recordSize, recordIndexForKey);
+            // Is the record in the buffer?
+            if (address >= bytesInWalFile) {
+                int addressToUpdateForKey = (int)(address - bytesInWalFile);
+                updatedInPlace = buffer.update(key, value, valueOffset, addressToUpdateForKey);
+            }
+        }
+
+        // Write to the write buffer.
+        if (updatedInPlace) {
+            index.put(key, recordIndexForKey);
+        } else {
+            buffer.add(key, value, valueOffset);
+        }
+
+        if (isCompactionInProgress()) {
+            compactionState.dataInNextWalFile.set(key);
+        } else {
+            dataInWalFile.set(key);
+        }
+
+        if (valueCache != null) {
+            valueCache.update(key, value, valueOffset);
+        }
+
+        writeSeq++;
+    }
+
+    /**
+     * @return Whether the current record of the key, if any, is in a data segment, rather than in
+     * a WAL file
+     */
+    private boolean isInDataSegment(final int key) {
+        if (isCompactionInProgress()) {
+            return !compactionState.dataInNextWalFile.get(key)
+                    && (compactionState.dataInNextFile.get(key) || !dataInWalFile.get(key));
+        }
+        return !dataInWalFile.get(key);
+    }
+
+    /**
+     * Blocks until the write identified by the given sequence has been synced to the WAL file.
+     * <p>
+     * The first writer to arrive becomes the leader of a batch. It waits for the batch to fill up
+     * (see {@link Config#getGroupCommitIntervalMs()} and {@link Config#getGroupCommitBytes()}), and
+     * then flushes the buffer, which syncs the WAL file once on behalf of every writer so far.
+     * Writers arriving while a leader is active simply wait for it. The leader only holds the write
+     * lock to seal the buffer, so readers and writers which don't wait for the batch aren't held up
+     * by the sync.
+     */
+    private void awaitDurable(final long seq) throws IOException {
+        final long start = System.nanoTime();
+        boolean leader = false;
+        try {
+            synchronized (durabilitySync) {
+                while (durableWriteSeq < seq) {
+                    if (!groupCommitLeaderActive) {
+                        groupCommitLeaderActive = true;
+                        leader = true;
+                        break;
+                    }
+                    if (pendingBytes() >= conf.getGroupCommitBytes()) {
+                        // Wake the leader up, the batch is full.
+                        durabilitySync.notifyAll();
+                    }
+                    durabilitySync.wait();
+                }
+            }
+
+            if (leader) {
                 try {
-                    consumer.accept(key, entry.array(), entry.position());
-                } catch (IOException e) {
-                    throw new StormDBRuntimeException(e);
+                    awaitGroupCommitBatch(start);
+                    flush();
+                } finally {
+                    synchronized (durabilitySync) {
+                        groupCommitLeaderActive = false;
+                        durabilitySync.notifyAll();
+                    }
                 }
-                keysRead.set(key);
             }
-        };
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the WAL file sync");
+        }
+
+        metrics.recordCommit(System.nanoTime() - start);
+    }
 
-        if (readInMemoryBuffer) {
-            while (inMemRecords.hasMoreElements()) {
-                final ByteBuffer entry = inMemRecords.nextElement();
-                entryConsumer.accept(entry);
+    private void awaitGroupCommitBatch(final long start) throws InterruptedException {
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(conf.getGroupCommitIntervalMs());
+        synchronized (durabilitySync) {
+            long remaining;
+            while (pendingBytes() < conf.getGroupCommitBytes()
+                    && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(durabilitySync, remaining);
             }
         }
+    }
+
+    private long pendingBytes() {
+        return (writeSeq - flushedWriteSeq) * recordSize;
+    }
 
-        final Consumer<List<RandomAccessFile>> returnFiles = files -> {
-            for (RandomAccessFile file : files) {
-                assert file instanceof RandomAccessFileWrapper;
-                filePool.returnObject(((RandomAccessFileWrapper) file).getFile(),
-                        (RandomAccessFileWrapper) file);
+    private void markDurable(final long seq) {
+        synchronized (durabilitySync) {
+            if (seq > durableWriteSeq) {
+                durableWriteSeq = seq;
             }
-        };
+            durabilitySync.notifyAll();
+        }
 
-        final Buffer reader = new Buffer(conf, true);
-        boolean returnDataFilesEarly = true;
-        try {
-            reader.readFromFiles(walFiles, true, entryConsumer);
-            returnDataFilesEarly = false;
-        } finally {
-            returnFiles.accept(walFiles);
-            if (returnDataFilesEarly) {
-                returnFiles.accept(dataFiles);
+        // Complete outside the lock, since dependent stages may run right away.
+        while (true) {
+            final PendingWrite write;
+            synchronized (durabilitySync) {
+                write = pendingWrites.peek();
+                if (write == null || write.seq > seq) {
+                    return;
+                }
+                pendingWrites.poll();
             }
+            write.future.complete(null);
         }
+    }
 
+    /**
+     * Fails every pending and future async write, since the WAL file can no longer be trusted.
+     */
+    private void failPendingWrites(final Throwable cause) {
+        final PendingWrite[] failed;
+        synchronized (durabilitySync) {
+            pendingWritesFailure = cause;
+            failed = pendingWrites.toArray(new PendingWrite[0]);
+            pendingWrites.clear();
+            durabilitySync.notifyAll();
+        }
+
+        for (PendingWrite write : failed) {
+            write.future.completeExceptionally(cause);
+        }
+    }
+
+    private static final class PendingWrite {
+
+        private final long seq;
+        private final CompletableFuture<Void> future;
+
+        private PendingWrite(final long seq, final CompletableFuture<Void> future) {
+            this.seq = seq;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Writes the contents of the write buffer to the WAL file, and waits until it's written.
+     * <p>
+     * The write lock is only held to seal the buffer. Readers and writers carry on while the
+     * flusher thread writes it (and syncs the WAL file, if enabled).
+     */
+    public void flush() throws IOException {
+        // Wait for a buffer which is still being written here, rather than while sealing.
+        awaitSealedBufferFlushed();
+        awaitSealedBufferFlushed(sealForFlush());
+    }
+
+    /**
+     * Hands the write buffer over to the flusher thread, if it holds any records.
+     *
+     * @return The write sequence which the flusher thread must have written for the flush to be
+     * complete
+     */
+    private long sealForFlush() throws IOException {
+        lockForWrite();
         try {
-            reader.readFromFiles(dataFiles, false, entryConsumer);
+            // walOut is initialised on the first write to the writeBuffer.
+            if (walOut != null && buffer.isDirty()) {
+                sealBuffer();
+
+                if (isCompactionInProgress() && compactionState.runningForTooLong()) {
+                    final long secondsSinceStart =
+                            (System.currentTimeMillis() - compactionState.getStart()) / 1000;
+                    exceptionDuringBackgroundOps = new StormDBRuntimeException(
+                            "The last compaction has been running for over " + secondsSinceStart
+                                    + " seconds!");
+                }
+            }
+            return writeSeq;
         } finally {
-            returnFiles.accept(dataFiles);
+            unlockForWrite();
         }
     }
 
-    public byte[] randomGet(final int key) throws IOException, StormDBException {
-        int recordIndex;
-        final RandomAccessFileWrapper f;
-        byte[] value;
+    /**
+     * Hands the active write buffer over to the flusher thread, and continues with an empty one.
+     * If the previously sealed buffer is still being written, this waits for it first.
+     * <p>
+     * Always call this while holding the write lock.
+     */
+    private void sealBuffer() throws IOException {
+        awaitSealedBufferFlushed();
+
+        buffer.sealPartial();
+        final int logicalBytes = buffer.getLogicalSize();
+        if (buffer.getPartialBlockRecords() != 0) {
+            final int blockSize = RecordUtil.blockSizeWithTrailer(recordSize);
+            latestWalBlocks.addPartialBlock(
+                    (int) ((bytesInWalFile + logicalBytes) / blockSize) - 1,
+                    buffer.getPartialBlockRecords());
+        }
+
+        Buffer next;
+        synchronized (flushSync) {
+            // Take the spare before publishing, since the flusher hands the sealed buffer back
+            // as the next spare once it's written.
+            next = spareBuffer;
+            spareBuffer = null;
+
+            sealedBufferBase = bytesInWalFile;
+            sealedBufferWriteSeq = writeSeq;
+            sealedBuffer = buffer;
+            flushSync.notifyAll();
+        }
+
+        if (next == null) {
+            next = new Buffer(conf, false);
+        }
+
+        bytesInWalFile += logicalBytes;
+        buffer = next;
+    }
+
+    /**
+     * Waits until the flusher thread has written the sealed buffer, if any.
+     */
+    private void awaitSealedBufferFlushed() throws IOException {
+        awaitSealedBufferFlushed(Long.MAX_VALUE);
+    }
+
+    /**
+     * Waits until the flusher thread has written the writes up to the given sequence. Buffers are
+     * written in order, so that's the case once no buffer with those writes is sealed.
+     */
+    private void awaitSealedBufferFlushed(final long seq) throws IOException {
+        synchronized (flushSync) {
+            try {
+                while (sealedBuffer != null && sealedBufferWriteSeq <= seq) {
+                    flushSync.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a buffer flush");
+            }
+
+            if (flushFailure != null) {
+                throw new IOException("Failed to write the buffer to the WAL file!",
+                        flushFailure);
+            }
+        }
+    }
+
+    private void runFlusher() {
+        while (true) {
+            final Buffer toFlush;
+            final long seq;
+            synchronized (flushSync) {
+                while (sealedBuffer == null && !shutDown) {
+                    try {
+                        flushSync.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (sealedBuffer == null) {
+                    return; // Shut down, and nothing left to flush.
+                }
+                toFlush = sealedBuffer;
+                seq = sealedBufferWriteSeq;
+            }
+
+            Throwable failure = null;
+            try {
+                toFlush.flush(walChannel);
+                if (isSyncEnabled()) {
+                    syncWal();
+                }
+            } catch (Throwable e) { // NOSONAR - there's nothing else that we can do.
+                LOG.error("Failed to write the buffer to the WAL file!", e);
+                exceptionDuringBackgroundOps = e;
+                failure = e;
+                synchronized (flushSync) {
+                    flushFailure = e;
+                }
+            }
+
+            // Before the buffer is released, so that the writes are durable once flush() returns.
+            if (failure == null) {
+                flushedWriteSeq = seq;
+                markDurable(seq);
+            } else {
+                failPendingWrites(failure);
+            }
+
+            synchronized (flushSync) {
+                toFlush.clear();
+                spareBuffer = toFlush;
+                sealedBuffer = null;
+                lastBufferFlushTimeMs = System.currentTimeMillis();
+                flushSync.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Copies the value at the given WAL address from the write buffers, if it's still in memory.
+     * <p>
+     * Always call this while holding the read lock.
+     *
+     * @return true if the value was found in memory, false if it must be read from the WAL file
+     */
+    private boolean readFromWriteBuffers(final long address, final byte[] value,
+            final int valueOffset) {
+        if (address >= bytesInWalFile) {
+            buffer.readValue((int) (address - bytesInWalFile), value, valueOffset);
+            return true;
+        }
+
+        final Buffer sealed = sealedBuffer;
+        if (sealed != null && address >= sealedBufferBase) {
+            sealed.readValue((int) (address - sealedBufferBase), value, valueOffset);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The logical length of the latest WAL file which is safe to read, i.e. excluding a
+     * sealed buffer which might be partially written
+     */
+    private long bytesWrittenToWalFile() {
+        final Buffer sealed = sealedBuffer;
+        return sealed != null ? sealedBufferBase : bytesInWalFile;
+    }
+
+    public void iterate(final EntryConsumer consumer) throws IOException {
+        iterate(true, true, 1, consumer);
+    }
+
+    /**
+     * Same as {@link #iterate(EntryConsumer)}, however, the data file is read by several threads.
+     * <p>
+     * The write buffers and the WAL files are read first, by the calling thread. The data file is
+     * then split into ranges of whole blocks, which are read concurrently on a fork/join pool.
+     * Records in the data file whose keys were found in the WAL files are skipped, so every key is
+     * still delivered exactly once, with its latest value.
+     *
+     * @param parallelism The number of threads to read the data file with
+     * @param consumer    Receives the records. It's called concurrently, so it must be thread
+     *                    safe
+     */
+    public void parallelIterate(final int parallelism, final EntryConsumer consumer)
+            throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism cannot be less than 1!");
+        }
+        iterate(true, true, parallelism, consumer);
+    }
+
+    /**
+     * Same as {@link #iterate(EntryConsumer)}, however, the records are passed a block at a time,
+     * along with a mask of the ones to use. See {@link BlockConsumer}.
+     */
+    public void iterateBlocks(final BlockConsumer consumer) throws IOException {
+        try (StormDBCursor cursor = cursor()) {
+            //noinspection StatementWithEmptyBody
+            while (cursor.nextBlock(consumer)) {
+            }
+        }
+    }
+
+    /**
+     * Opens a cursor over every key, with the latest values as of now. See {@link StormDBCursor}.
+     */
+    public StormDBCursor cursor() throws IOException {
+        return new StormDBCursor(openSnapshot(), true);
+    }
+
+    /**
+     * A stream of every key, with the latest values as of now. The stream reads the database
+     * files with handles of its own, so close it once it's done with, for example with
+     * try-with-resources.
+     * <p>
+     * A parallel stream splits the data file at block boundaries. It knows its exact size, so
+     * operations like {@link Stream#count()} and {@link Stream#toArray()} needn't buffer.
+     */
+    public Stream<StormDBEntry> stream() throws IOException {
+        final IterationSnapshot snapshot = openSnapshot();
+        final StormDBCursor cursor = new StormDBCursor(snapshot, false);
+        return StreamSupport.stream(new EntrySpliterator(snapshot, cursor), false)
+                .onClose(snapshot::close);
+    }
+
+    private IterationSnapshot openSnapshot() throws IOException {
+        return openSnapshot(true, true);
+    }
+
+    /**
+     * Captures what an iteration reads, for reading it later on.
+     *
+     * @param useLatestWalFile   Whether the WAL file which a compaction in progress writes to is
+     *                           read as well
+     * @param readInMemoryBuffer Whether the write buffers are read as well
+     */
+    private IterationSnapshot openSnapshot(final boolean useLatestWalFile,
+            final boolean readInMemoryBuffer) throws IOException {
+        final ArrayList<FileChannel> walFiles = new ArrayList<>(2);
+        final ArrayList<WalBlockTable> walFileBlocks = new ArrayList<>(2);
+        final ArrayList<Long> walFileLengths = new ArrayList<>(2);
+        final ArrayList<FileChannel> dataFiles = new ArrayList<>(1);
+        final ArrayList<long[]> dataFileDead = new ArrayList<>(1);
+
         rwLock.readLock().lock();
-        final long address;
         try {
-            recordIndex = index.get(key);
-            if (recordIndex == RESERVED_KEY_MARKER) { // No mapping value.
-                return null; // NOSONAR - returning null is a part of the interface.
-            }
-
-            value = new byte[conf.getValueSize()];
-
-            if (isCompactionInProgress() && compactionState.dataInNextWalFile.get(key)) {
-                address = RecordUtil.indexToAddress(recordSize, recordIndex);
-                if (address >= bytesInWalFile) {
-                    System.arraycopy(buffer.array(),
-                            (int) (address - bytesInWalFile + Config.KEY_SIZE),
-                            value, 0, conf.getValueSize());
-                    return value;
-                }
-                f = filePool.borrowObject(compactionState.nextWalFile);
-            } else if (isCompactionInProgress() && compactionState.dataInNextFile.get(key)) {
-                address = RecordUtil.indexToAddress(recordSize, recordIndex);
-                f = filePool.borrowObject(compactionState.nextDataFile);
-            } else if (dataInWalFile.get(key)) {
-                address = RecordUtil.indexToAddress(recordSize, recordIndex);
-                // If compaction is in progress, we can not read in-memory.
-                if (!isCompactionInProgress() && address >= bytesInWalFile) {
-                    System.arraycopy(buffer.array(),
-                            (int) (address - bytesInWalFile + Config.KEY_SIZE),
-                            value, 0, conf.getValueSize());
-                    return value;
-                }
-                f = filePool.borrowObject(walFile);
-            } else {
-                address = RecordUtil.indexToAddress(recordSize, recordIndex);
-                f = filePool.borrowObject(dataFile);
+            // Skip whatever part of the latest WAL file the flusher thread might be writing,
+            // it's read from the sealed buffer instead. The flusher may release that buffer at
+            // any time, so its records and the WAL length are taken together.
+            final ByteBuffer sealedRecords;
+            final long latestWalLength;
+            synchronized (flushSync) {
+                final Buffer sealed = sealedBuffer;
+                sealedRecords = readInMemoryBuffer && sealed != null ? sealed.copyRecords() : null;
+                latestWalLength = bytesWrittenToWalFile();
+            }
+
+            // Files are opened while holding the lock, so that a compaction can't replace them
+            // in the meantime.
+            final boolean readNextWalFile = isCompactionInProgress() && useLatestWalFile;
+            if (readNextWalFile) {
+                walFiles.add(FileChannel.open(compactionState.nextWalFile.toPath(),
+                        StandardOpenOption.READ));
+                walFileBlocks.add(compactionState.nextWalBlocks.copy());
+                walFileLengths.add(latestWalLength);
+            }
+
+            if (walFile.exists()) {
+                final FileChannel channel = FileChannel.open(walFile.toPath(),
+                        StandardOpenOption.READ);
+                walFiles.add(channel);
+                walFileBlocks.add(walBlocks.copy());
+                walFileLengths.add(isCompactionInProgress()
+                        ? walBlocks.toLogicalLength(channel.size()) : latestWalLength);
             }
+
+            if (segments != null) {
+                // Newest first, so that the latest record of a key is read first. The dead
+                // records stay as they are, see DataSegments.
+                final List<DataSegments.Segment> committed = segments.getSegments();
+                for (int i = committed.size() - 1; i >= 0; i--) {
+                    dataFiles.add(FileChannel.open(committed.get(i).file.toPath(),
+                            StandardOpenOption.READ));
+                    dataFileDead.add(committed.get(i).dead);
+                }
+            } else if (dataFile.exists()) {
+                dataFiles.add(FileChannel.open(dataFile.toPath(), StandardOpenOption.READ));
+                dataFileDead.add(null);
+            }
+
+            final CompressedBitmap superseded = dataInWalFile.copy();
+            if (readNextWalFile) {
+                superseded.or(compactionState.dataInNextWalFile);
+            }
+            return new IterationSnapshot(conf, readInMemoryBuffer ? buffer.copyRecords() : null,
+                    sealedRecords, walFiles, walFileBlocks, walFileLengths, dataFiles,
+                    dataFileDead, superseded, index.size());
+        } catch (IOException | RuntimeException e) {
+            for (FileChannel channel : walFiles) {
+                channel.close();
+            }
+            for (FileChannel channel : dataFiles) {
+                channel.close();
+            }
+            throw e;
         } finally {
             rwLock.readLock().unlock();
         }
+    }
+
+    /**
+     * Reads a snapshot with a cursor, and pushes its records to the given consumer. With a
+     * parallelism above 1, only the write buffers and the WAL files are read with the cursor,
+     * while the data file is read on a fork/join pool.
+     */
+    private void iterate(final boolean useLatestWalFile, final boolean readInMemoryBuffer,
+            final int parallelism, final EntryConsumer consumer) throws IOException {
+        try (IterationSnapshot snapshot = openSnapshot(useLatestWalFile, readInMemoryBuffer);
+                StormDBCursor cursor = parallelism == 1 ? new StormDBCursor(snapshot, false)
+                        : StormDBCursor.overHead(snapshot)) {
+            while (cursor.next()) {
+                cursor.accept(consumer);
+            }
+
+            if (parallelism > 1) {
+                for (int i = 0; i < snapshot.dataFiles.length; i++) {
+                    new ParallelDataFileReader(snapshot.dataFiles[i], conf, snapshot.superseded,
+                            snapshot.dataFileDead[i], consumer).read(parallelism);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the value of the given key.
+     *
+     * @return The value, or null if the key doesn't exist
+     */
+    public byte[] randomGet(final int key) throws IOException, StormDBException {
+        final byte[] value = new byte[conf.getValueSize()];
+        return randomGet(key, value, 0) ? value : null;
+    }
+
+    /**
+     * Reads the value of the given key into a buffer supplied by the caller.
+     * <p>
+     * On success, the value is written at the buffer's position, and the position is advanced by
+     * the value size. Heap buffers are written to directly; other buffers receive a copy from a
+     * per thread scratch array, so neither allocates.
+     *
+     * @return false if the key doesn't exist, in which case the position is left unchanged
+     */
+    public boolean randomGet(final int key, final ByteBuffer dest)
+            throws IOException, StormDBException {
+        final int valueSize = conf.getValueSize();
+        if (dest.remaining() < valueSize) {
+            throw new IllegalArgumentException("Expected space for a value of " + valueSize
+                    + " bytes, but only " + dest.remaining() + " bytes remain!");
+        }
+
+        if (dest.hasArray()) {
+            final int position = dest.position();
+            if (!randomGet(key, dest.array(), dest.arrayOffset() + position)) {
+                return false;
+            }
+            dest.position(position + valueSize);
+            return true;
+        }
+
+        final byte[] scratch = readContexts.get().scratchValue(valueSize);
+        if (!randomGet(key, scratch, 0)) {
+            return false;
+        }
+        dest.put(scratch, 0, valueSize);
+        return true;
+    }
+
+    /**
+     * Reads the value of the given key into an array supplied by the caller. The value is copied
+     * straight from the write buffers, the file or its memory mapped view, without allocating.
+     * <p>
+     * If the index supports it (see {@link LongIndexMap#supportsOptimisticReads()}), the record is
+     * first located without acquiring the read lock. The lookup is then validated against
+     * concurrent writers, and repeated under the read lock only if a writer intervened.
+     *
+     * @param dest   Receives the value
+     * @param offset The offset in {@code dest} at which the value begins
+     * @return false if the key doesn't exist
+     */
+    public boolean randomGet(final int key, final byte[] dest, final int offset)
+            throws IOException, StormDBException {
+        final int valueSize = conf.getValueSize();
+        if (offset < 0 || offset > dest.length - valueSize) {
+            throw new IllegalArgumentException("Expected space for a value of " + valueSize
+                    + " bytes at offset " + offset + ", but the array has only " + dest.length
+                    + " bytes!");
+        }
+
+        if (valueCache != null && valueCache.get(key, dest, offset)) {
+            return true;
+        }
+
+        final ReadContext context = readContexts.get();
+        boolean found = false;
+        boolean located = false;
+        boolean fromWriteBuffers = false;
+
+        // Identifies the state in which the key was looked up, for filling the value cache.
+        long stamp = optimisticReads ? readValidation.tryOptimisticRead() : 0;
+        if (stamp != 0) {
+            try {
+                final long recordIndex = index.get(key);
+                if (recordIndex != RESERVED_KEY_MARKER) {
+                    // A value copied here may be torn, but then validation fails, and it's
+                    // overwritten below.
+                    fromWriteBuffers = locate(key, recordIndex, dest, offset, context);
+                    found = true;
+                }
+                located = readValidation.validate(stamp);
+            } catch (RuntimeException | IOException e) {
+                // Inconsistent state seen mid-write, e.g. a file closed by compaction.
+                // If it was a genuine failure, it'll be thrown again under the read lock.
+                located = false;
+            }
+
+            if (!located) {
+                metrics.recordOptimisticReadRetry();
+                context.releaseChannel();
+            }
+        }
+
+        if (!located) {
+            rwLock.readLock().lock();
+            try {
+                // Writers are locked out, so this always succeeds.
+                stamp = readValidation.tryOptimisticRead();
+                final long recordIndex = index.get(key);
+                found = recordIndex != RESERVED_KEY_MARKER;
+                if (found) {
+                    fromWriteBuffers = locate(key, recordIndex, dest, offset, context);
+                }
+            } finally {
+                rwLock.readLock().unlock();
+            }
+        }
+
+        if (!found || fromWriteBuffers) {
+            return found;
+        }
+        if (context.channel == null) {
+            // Copied from a memory mapped file.
+            fillValueCache(key, dest, offset, stamp);
+            return true;
+        }
 
         try {
-            f.seek(address);
-            if (f.readInt() != key) {
+            final ByteBuffer record = context.record;
+            record.clear();
+            context.channel.readFully(record, context.address);
+            if (record.getInt(0) != key) {
                 throw new InconsistentDataException();
             }
-            final int bytesRead = f.read(value);
-            if (bytesRead != conf.getValueSize()) {
-                throw new StormDBException("Possible data corruption detected! "
-                        + "Re-open the database for automatic recovery!");
+            record.position(Config.KEY_SIZE);
+            record.get(dest, offset, valueSize);
+            fillValueCache(key, dest, offset, stamp);
+            return true;
+        } catch (EOFException e) {
+            throw new StormDBException("Possible data corruption detected! "
+                    + "Re-open the database for automatic recovery!");
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (ClosedChannelException e) {
+            // Another thread was interrupted while reading, and the file was replaced by a
+            // compaction before the channel could be reopened.
+            LOG.debug("Retrying a read of a replaced file", e);
+        } finally {
+            context.releaseChannel();
+        }
+
+        return randomGet(key, dest, offset);
+    }
+
+    private void fillValueCache(final int key, final byte[] value, final int offset,
+            final long stamp) {
+        if (valueCache != null) {
+            valueCache.fill(key, value, offset, stamp);
+        }
+    }
+
+    /**
+     * Reads the values of a batch of keys. All keys are looked up under a single acquisition of
+     * the read lock, i.e. against the same state of the index.
+     * <p>
+     * Values which are still in memory, or in a memory mapped file, are copied right away. The
+     * remaining records are grouped by the file they're in, and sorted by their address within the
+     * file. Records which lie close to each other are then read with a single positional read,
+     * after the read lock has been released.
+     *
+     * @param keys   The keys to be read
+     * @param out    Receives the values, laid out one after the other. The bytes reserved for keys
+     *               which don't exist are left untouched
+     * @param stride The distance in bytes between the start of two consecutive values, which must
+     *               be at least the value size
+     * @return The positions in {@code keys} of the keys which don't exist
+     */
+    public BitSet multiGet(final int[] keys, final byte[] out, final int stride)
+            throws IOException, StormDBException {
+        final int valueSize = conf.getValueSize();
+        if (stride < valueSize) {
+            throw new IllegalArgumentException("The value stride (" + stride
+                    + ") cannot be less than the value size (" + valueSize + ")!");
+        }
+        final BitSet missing = new BitSet(keys.length);
+        if (keys.length == 0) {
+            return missing;
+        }
+        if ((long) (keys.length - 1) * stride + valueSize > out.length) {
+            throw new IllegalArgumentException("Expected space for " + keys.length
+                    + " values, but only " + out.length + " bytes were provided!");
+        }
+
+        final ReadContext context = readContexts.get();
+        final long[] addresses = new long[keys.length];
+        final List<FileBatch> batches = new ArrayList<>(4);
+        try {
+            rwLock.readLock().lock();
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    final long recordIndex = index.get(keys[i]);
+                    if (recordIndex == RESERVED_KEY_MARKER) {
+                        missing.set(i);
+                        continue;
+                    }
+                    locate(keys[i], recordIndex, out, i * stride, context);
+                    if (context.channel != null) {
+                        addresses[i] = context.address;
+                        batchFor(batches, context).add(recordIndex, i);
+                    }
+                }
+            } finally {
+                rwLock.readLock().unlock();
+            }
+
+            final ByteBuffer readBuffer = context.batchBuffer(
+                    Math.max(Config.MULTI_GET_READ_SIZE, recordSize));
+            for (FileBatch batch : batches) {
+                readBatch(batch, keys, addresses, out, stride, readBuffer);
             }
-            return value;
+            return missing;
+        } catch (EOFException e) {
+            throw new StormDBException("Possible data corruption detected! "
+                    + "Re-open the database for automatic recovery!");
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (ClosedChannelException e) {
+            // See randomGet(int, byte[], int).
+            LOG.debug("Retrying a batched read of a replaced file", e);
         } finally {
-            filePool.returnObject(f.getFile(), f);
+            context.releaseChannel();
+            for (FileBatch batch : batches) {
+                batch.channel.release();
+            }
+        }
+
+        return multiGet(keys, out, stride);
+    }
+
+    /**
+     * Moves the channel retained in the context to the batch of records to be read from it.
+     */
+    private static FileBatch batchFor(final List<FileBatch> batches, final ReadContext context)
+            throws IOException {
+        for (FileBatch batch : batches) {
+            if (batch.channel == context.channel) {
+                context.releaseChannel(); // The batch holds a reference already.
+                return batch;
+            }
+        }
+        final FileBatch batch = new FileBatch(context.channel);
+        context.channel = null;
+        batches.add(batch);
+        return batch;
+    }
+
+    /**
+     * Reads the records of a batch in the order of their addresses, coalescing records which lie
+     * close to each other into a single read.
+     */
+    private void readBatch(final FileBatch batch, final int[] keys, final long[] addresses,
+            final byte[] out, final int stride, final ByteBuffer readBuffer) throws IOException {
+        final long[] entries = batch.entries;
+        final int size = batch.size;
+        if (batch.wide) {
+            sortByAddress(entries, size, addresses);
+        } else {
+            // Addresses are in the same order as record indices, even in a WAL file with partial
+            // blocks, so there's no need to sort by the addresses themselves.
+            Arrays.sort(entries, 0, size);
+        }
+
+        int start = 0;
+        while (start < size) {
+            final long readStart = addresses[FileBatch.position(entries[start])];
+            long readEnd = readStart + recordSize;
+            int end = start + 1;
+            while (end < size) {
+                final long address = addresses[FileBatch.position(entries[end])];
+                if (address + recordSize - readStart > readBuffer.capacity()
+                        || address - readEnd > Config.MULTI_GET_MAX_GAP) {
+                    break;
+                }
+                readEnd = Math.max(readEnd, address + recordSize); // Keys may repeat.
+                end++;
+            }
+
+            readBuffer.clear();
+            readBuffer.limit((int) (readEnd - readStart));
+            batch.channel.readFully(readBuffer, readStart);
+
+            for (int i = start; i < end; i++) {
+                final int position = FileBatch.position(entries[i]);
+                final int offset = (int) (addresses[position] - readStart);
+                if (readBuffer.getInt(offset) != keys[position]) {
+                    throw new InconsistentDataException();
+                }
+                readBuffer.position(offset + Config.KEY_SIZE);
+                readBuffer.get(out, position * stride, conf.getValueSize());
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Sorts the entries of a batch whose record indices are too far apart to be packed, which
+     * takes a file of more than {@link Integer#MAX_VALUE} records.
+     */
+    private static void sortByAddress(final long[] entries, final int size,
+            final long[] addresses) {
+        final Integer[] positions = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = FileBatch.position(entries[i]);
+        }
+        Arrays.sort(positions, (a, b) -> Long.compare(addresses[a], addresses[b]));
+        for (int i = 0; i < size; i++) {
+            entries[i] = positions[i];
+        }
+    }
+
+    /**
+     * Finds the record at the given index. This reads the index bitsets, the write buffers and
+     * the file state, so always call this while holding the read lock, or within an optimistic
+     * read which is validated afterwards.
+     * <p>
+     * If the record must be read from a file, the file's channel is retained in the context, along
+     * with the record's address. Retaining the channel here, instead of after validation, ensures
+     * that it can't be closed by the end of a compaction before it's read.
+     * <p>
+     * Otherwise, the value is copied already, either from the write buffers or from a memory
+     * mapped file.
+     *
+     * @return true if the value was copied from the write buffers
+     */
+    private boolean locate(final int key, final long recordIndex, final byte[] value,
+            final int valueOffset, final ReadContext context) throws IOException {
+        final long address;
+        final SharedFileChannel channel;
+        final MappedFile mappedFile;
+        if (isCompactionInProgress() && compactionState.dataInNextWalFile.get(key)) {
+            final long logicalAddress = RecordUtil.indexToAddress(recordSize, recordIndex);
+            if (readFromWriteBuffers(logicalAddress, value, valueOffset)) {
+                return true;
+            }
+            address = compactionState.nextWalBlocks.toPhysical(logicalAddress);
+            channel = compactionState.nextWalReader;
+            mappedFile = null;
+        } else if (isCompactionInProgress() && compactionState.dataInNextFile.get(key)
+                && segments == null) {
+            address = RecordUtil.indexToAddress(recordSize, recordIndex);
+            channel = compactionState.nextDataReader;
+            mappedFile = null;
+        } else if (dataInWalFile.get(key) && !(isCompactionInProgress()
+                && compactionState.dataInNextFile.get(key))) {
+            // Unless a compaction moved the record to a new data segment already.
+            final long logicalAddress = RecordUtil.indexToAddress(recordSize, recordIndex);
+            // If compaction is in progress, we can not read in-memory.
+            if (!isCompactionInProgress()
+                    && readFromWriteBuffers(logicalAddress, value, valueOffset)) {
+                return true;
+            }
+            address = walBlocks.toPhysical(logicalAddress);
+            channel = walReader;
+            mappedFile = mappedWalFile;
+        } else if (segments != null) {
+            // Including the segments which a compaction is writing, which aren't mapped yet.
+            final DataSegments.Segment segment = segments.segmentOf(recordIndex);
+            address = RecordUtil.indexToAddress(recordSize, segments.localIndex(recordIndex));
+            channel = segment.reader;
+            mappedFile = segment.mappedFile;
+        } else {
+            address = RecordUtil.indexToAddress(recordSize, recordIndex);
+            channel = dataReader;
+            mappedFile = mappedDataFile;
+        }
+
+        if (mappedFile != null) {
+            mappedFile.read(address, key, value, valueOffset);
+            return false;
+        }
+
+        if (!channel.retain()) {
+            throw new ClosedChannelException();
+        }
+        context.channel = channel;
+        context.address = address;
+        return false;
+    }
+
+    /**
+     * Per thread state for {@link #randomGet(int, byte[], int)} and
+     * {@link #multiGet(int[], byte[], int)}.
+     */
+    private static final class ReadContext {
+
+        private final ByteBuffer record;
+
+        /**
+         * Set by {@link #locate(int, long, byte[], int, ReadContext)}, if the record must be read from a
+         * file.
+         */
+        private SharedFileChannel channel;
+        private long address;
+
+        /**
+         * The buffer for coalesced reads of {@link #multiGet(int[], byte[], int)}. Allocated
+         * lazily.
+         */
+        private ByteBuffer batch;
+        /**
+         * Receives values for {@link #randomGet(int, ByteBuffer)} which can't be copied into the
+         * caller's buffer directly. Allocated lazily.
+         */
+        private byte[] scratch;
+
+        private ReadContext(final int recordSize) {
+            record = ByteBuffer.allocate(recordSize);
+        }
+
+        private byte[] scratchValue(final int valueSize) {
+            if (scratch == null) {
+                scratch = new byte[valueSize];
+            }
+            return scratch;
+        }
+
+        private ByteBuffer batchBuffer(final int capacity) {
+            if (batch == null) {
+                batch = ByteBuffer.allocate(capacity);
+            }
+            return batch;
+        }
+
+        private void releaseChannel() throws IOException {
+            if (channel != null) {
+                final SharedFileChannel retained = channel;
+                channel = null;
+                retained.release();
+            }
+        }
+    }
+
+    /**
+     * The records of a {@link #multiGet(int[], byte[], int)} which must be read from the same
+     * file.
+     */
+    private static final class FileBatch {
+
+        private final SharedFileChannel channel; // Retained until the batch has been read.
+        /**
+         * The record index relative to that of the first record in the upper half, and the
+         * position of the key in the lower half, so that sorting orders the records by their
+         * address.
+         */
+        private long[] entries = new long[16];
+        private int size;
+        private long firstRecordIndex;
+        /**
+         * Whether some record index is too far from the first one to be packed, in which case
+         * the upper halves are garbage, and the batch must be sorted by the addresses.
+         */
+        private boolean wide;
+
+        private FileBatch(final SharedFileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void add(final long recordIndex, final int position) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            if (size == 0) {
+                firstRecordIndex = recordIndex;
+            }
+            final long relative = recordIndex - firstRecordIndex;
+            wide |= relative != (int) relative;
+            entries[size++] = (relative << 32) | position;
+        }
+
+        private static int position(final long entry) {
+            return (int) entry;
         }
     }
 
     public void close() throws IOException, InterruptedException {
-        flush();
-        shutDown = true;
+        // Compactions are stopped first, since a compaction which commits reopens the readers.
+        closing = true;
         if (useExecutorService) {
             synchronized (instancesServed) {
                 instancesServed.remove(this);
@@ -731,6 +2370,52 @@ public class StormDB {
             }
             tWorker.join();
         }
+
+        flush();
+        // Waits for a compaction which the executor service started already.
+        synchronized (compactionLock) {
+            writeIndexSnapshot();
+        }
+        synchronized (flushSync) {
+            shutDown = true;
+            flushSync.notifyAll();
+        }
+        tFlusher.join();
+
+        synchronized (compactionLock) {
+            lockForWrite();
+            try {
+                closeReaders();
+                if (segments != null) {
+                    segments.closeReaders();
+                }
+                if (index instanceof Closeable) {
+                    // Only once compaction is done with it, e.g. to free memory held outside the
+                    // heap.
+                    ((Closeable) index).close();
+                }
+            } finally {
+                unlockForWrite();
+            }
+        }
+    }
+
+    /**
+     * @return Whether any of the shared read channels is open, which is only the case until the
+     * database is closed
+     */
+    boolean hasOpenReaders() {
+        if (walReader != null || dataReader != null) {
+            return true;
+        }
+        if (segments != null) {
+            for (DataSegments.Segment segment : segments.getSegments()) {
+                if (segment.reader != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     public static void shutDownExecutorService() throws InterruptedException {
@@ -751,6 +2436,10 @@ public class StormDB {
         return conf;
     }
 
+    public StormDBMetrics getMetrics() {
+        return metrics;
+    }
+
     public boolean isUsingExecutorService() {
         return useExecutorService;
     }
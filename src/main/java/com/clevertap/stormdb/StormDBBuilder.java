@@ -1,7 +1,10 @@
 package com.clevertap.stormdb;
 
 import com.clevertap.stormdb.exceptions.IncorrectConfigException;
+import com.clevertap.stormdb.maps.DenseIndexMap;
 import com.clevertap.stormdb.maps.IndexMap;
+import com.clevertap.stormdb.maps.LongIndexMap;
+import com.clevertap.stormdb.maps.PackedLongIndexMap;
 import java.io.IOException;
 import java.nio.file.Path;
 
@@ -115,6 +118,38 @@ public class StormDBBuilder {
         return this;
     }
 
+    /**
+     * Index the keys from 0 up to the given one, exclusive, by a {@link DenseIndexMap}, which
+     * stores them in an array addressed by the key, rather than in a hash map. This suits
+     * databases whose keys are mostly dense, such as sequential user ids: every key then takes
+     * 4 bytes, and a lookup needs no hash probe. Other keys are still supported, in a hash map.
+     * <p>
+     * Can't be combined with {@link #withIndexMap(IndexMap)}, nor with shards, which spread the
+     * keys across them.
+     *
+     * @param keyRange The number of keys to store in the array
+     */
+    public StormDBBuilder withDenseIndex(int keyRange) {
+        conf.denseIndexKeyRange = keyRange;
+        return this;
+    }
+
+    /**
+     * Option to specify an index map whose values are longs, such as a
+     * {@link PackedLongIndexMap}. An {@link IndexMap} holds int record indices, which cover
+     * {@link Integer#MAX_VALUE} records per file, and fails once a file grows past that. A long
+     * index map lifts that limit, for databases with very many or very large records.
+     * <p>
+     * Can't be combined with {@link #withIndexMap(IndexMap)} or {@link #withDenseIndex(int)},
+     * nor with shards.
+     *
+     * @param longIndexMap Custom map instance.
+     */
+    public StormDBBuilder withLongIndexMap(LongIndexMap longIndexMap) {
+        conf.longIndexMap = longIndexMap;
+        return this;
+    }
+
     /**
      * Set the database path.
      */
@@ -123,22 +158,192 @@ public class StormDBBuilder {
     }
 
     /**
-     * Set the maximum number of open files permitted. If you have many threads, setting this to a
-     * higher value (at least to the total number of threads) will improve the throughput of {@link
-     * StormDB#randomGet(int)}. Internally, a file pool is used.
-     * <p>
-     * Note: Since at any given point in time, a data file and a WAL file exist, there will be at
-     * most 2x open files in the system. During compaction, there will be 4x open files, however
-     * that's temporary.
+     * Set the maximum number of open files permitted.
      *
      * @param openFDCount The number of open files allowed, per file type
+     * @deprecated This has no effect anymore. All readers of a file share a single file channel,
+     * and read it with positional reads, so {@link StormDB#randomGet(int)} isn't limited by the
+     * number of open files.
      */
+    @Deprecated
     public StormDBBuilder withMaxOpenFDCount(int openFDCount) {
         conf.openFDCount = openFDCount;
         return this;
     }
 
+    /**
+     * Set when writes to the WAL file are forced to the storage device. See {@link DurabilityMode}.
+     * <p>
+     * Default: {@link DurabilityMode#NONE}
+     *
+     * @param durabilityMode The durability mode
+     */
+    public StormDBBuilder withDurabilityMode(DurabilityMode durabilityMode) {
+        conf.durabilityMode = durabilityMode;
+        return this;
+    }
+
+    /**
+     * Enable {@link DurabilityMode#GROUP_COMMIT}. A put will return only once its record has been
+     * synced to the WAL file. Concurrent puts share a single fsync, which is issued once either
+     * threshold below is reached.
+     * <p>
+     * Default: {@link Config#DEFAULT_GROUP_COMMIT_INTERVAL_MS} and
+     * {@link Config#DEFAULT_GROUP_COMMIT_BYTES}
+     *
+     * @param intervalMs The maximum time a batch waits for more writers, in milliseconds
+     * @param bytes      The number of pending bytes after which a batch is committed right away
+     */
+    public StormDBBuilder withGroupCommit(long intervalMs, int bytes) {
+        conf.durabilityMode = DurabilityMode.GROUP_COMMIT;
+        conf.groupCommitIntervalMs = intervalMs;
+        conf.groupCommitBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Split the key space across the given number of independent shards. Each shard has its own
+     * index, write buffer, WAL and data files, and compacts on its own. Use {@link #buildSharded()}
+     * to open a sharded database.
+     * <p>
+     * The shard count is persisted when the database is created, and cannot be changed later. When
+     * re-opening an existing sharded database, this may be omitted.
+     *
+     * @param shardCount The number of shards
+     */
+    public StormDBBuilder withShardCount(int shardCount) {
+        conf.shardCount = shardCount;
+        return this;
+    }
+
+    /**
+     * Serve {@link StormDB#randomGet(int)} from memory mapped views of the data and WAL files,
+     * instead of reading them with positional reads. A read is then a memory copy, rather than a
+     * system call, which helps when most of the files are in the operating system's page
+     * cache. Reading a page which isn't cached blocks the reader on a page fault instead.
+     * <p>
+     * Files replaced by a compaction stay mapped until their mappings are garbage collected, so
+     * their disk space may be reclaimed a little later.
+     * <p>
+     * Default: false
+     */
+    public StormDBBuilder withMemoryMappedReads() {
+        conf.memoryMappedReads = true;
+        return this;
+    }
+
+    /**
+     * Cache the values of frequently read keys off heap, so that {@link StormDB#randomGet(int)}
+     * doesn't have to read them from the data or WAL files. Puts update cached values in place.
+     * Once the cache is full, values are evicted with the CLOCK algorithm. See
+     * {@link StormDBMetrics#getValueCacheHitCount()} and friends for sizing it.
+     * <p>
+     * The size includes 16 bytes of bookkeeping per value, part of which is kept on the heap.
+     * For a sharded database, the size is split evenly across shards.
+     * <p>
+     * Default: 0 (disabled)
+     *
+     * @param sizeBytes The maximum size of the cache, in bytes
+     */
+    public StormDBBuilder withValueCache(long sizeBytes) {
+        conf.valueCacheBytes = sizeBytes;
+        return this;
+    }
+
+    /**
+     * Don't persist the index. By default, the index is written to a file named "index" when the
+     * database is closed, so that the next open reads it back, rather than rebuilding the index
+     * from the data and WAL files. Only the records written to the WAL file since are read then.
+     * Writers wait while the index is being written, which takes about as long as writing 8 bytes
+     * per key.
+     * <p>
+     * Every compaction also writes the index entries for the data file which it produces, while
+     * producing it, so that an open which follows a crash only has to read the WAL file. A
+     * snapshot is only read by the open which follows it.
+     * <p>
+     * Default: enabled
+     */
+    public StormDBBuilder withIndexSnapshotsDisabled() {
+        conf.indexSnapshots = false;
+        return this;
+    }
+
+    /**
+     * Read the data file with the given number of threads when the index has to be rebuilt on
+     * open, i.e. when there's no index snapshot to load. The file is split into ranges of whole
+     * blocks, which are read concurrently, while the opening thread puts their keys into the
+     * index, since an {@link IndexMap} needn't be thread safe. The WAL file is then read as
+     * usual.
+     * <p>
+     * This helps when reading the data file is the bottleneck, for example on SSDs, which serve
+     * concurrent reads faster. For a sharded database, every shard uses that many threads.
+     * <p>
+     * Default: {@link Config#DEFAULT_INDEX_REBUILD_PARALLELISM}
+     *
+     * @param parallelism The number of threads to read the data file with
+     */
+    public StormDBBuilder withIndexRebuildParallelism(int parallelism) {
+        conf.indexRebuildParallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Split the data into segments of the given size, instead of a single data file. Compaction
+     * then rewrites only the segments of which at least half is garbage, i.e. records superseded
+     * by newer ones, along with the WAL file, rather than the whole data file. This keeps the
+     * cost of a compaction in line with the amount of data written since the last one, when most
+     * of the data is never updated. As with a single data file, the records of the WAL file are
+     * written newest first, so that hot keys end up close to each other.
+     * <p>
+     * The segments are named "data.0", "data.1" and so on, and are listed in a file named
+     * "segments". The segment size is rounded down to whole blocks, and persisted when the
+     * segments are created. An existing data file is split into segments the first time the
+     * database is opened with this. A database with segments can't be opened without it.
+     * <p>
+     * Default: 0 (disabled)
+     *
+     * @param sizeBytes The maximum size of a segment, in bytes
+     */
+    public StormDBBuilder withDataSegmentSize(long sizeBytes) {
+        conf.dataSegmentSize = sizeBytes;
+        return this;
+    }
+
     public StormDB build() throws IOException {
+        validate();
+        if (conf.shardCount > 1) {
+            throw new IncorrectConfigException("A shard count of " + conf.shardCount
+                    + " requires buildSharded().");
+        }
+
+        return new StormDB(conf);
+    }
+
+    public ShardedStormDB buildSharded() throws IOException {
+        validate();
+        if (conf.shardCount != 0 && conf.shardCount < Config.MIN_SHARD_COUNT) {
+            throw new IncorrectConfigException("Shard count cannot be less than " +
+                    Config.MIN_SHARD_COUNT);
+        }
+        if (conf.shardCount > Config.MAX_SHARD_COUNT) {
+            throw new IncorrectConfigException("Shard count cannot be greater than " +
+                    Config.MAX_SHARD_COUNT);
+        }
+        if (conf.indexMap != null && conf.shardCount != 1) {
+            throw new IncorrectConfigException("A custom index map cannot be shared by shards.");
+        }
+        if (conf.denseIndexKeyRange != 0 && conf.shardCount != 1) {
+            throw new IncorrectConfigException("A dense index cannot be used with shards.");
+        }
+        if (conf.longIndexMap != null && conf.shardCount != 1) {
+            throw new IncorrectConfigException(
+                    "A custom long index map cannot be shared by shards.");
+        }
+
+        return new ShardedStormDB(conf);
+    }
+
+    private void validate() {
         if (conf.dbDir == null || conf.dbDir.isEmpty()) {
             throw new IncorrectConfigException("StormDB directory path cannot be empty or null.");
         }
@@ -174,6 +379,40 @@ public class StormDBBuilder {
                     Config.MIN_OPEN_FD_COUNT);
         }
 
-        return new StormDB(conf);
+        if (conf.durabilityMode == null) {
+            throw new IncorrectConfigException("Durability mode cannot be null.");
+        }
+        if (conf.groupCommitIntervalMs < 0) {
+            throw new IncorrectConfigException("Group commit interval cannot be less than 0");
+        }
+        if (conf.groupCommitBytes <= 0) {
+            throw new IncorrectConfigException("Group commit bytes must be greater than 0");
+        }
+        if (conf.valueCacheBytes < 0) {
+            throw new IncorrectConfigException("Value cache size cannot be less than 0");
+        }
+        if (conf.indexRebuildParallelism < 1) {
+            throw new IncorrectConfigException("Index rebuild parallelism cannot be less than 1");
+        }
+        if (conf.denseIndexKeyRange < 0) {
+            throw new IncorrectConfigException("Dense index key range cannot be less than 0");
+        }
+        if (conf.denseIndexKeyRange != 0 && conf.indexMap != null) {
+            throw new IncorrectConfigException(
+                    "A dense index cannot be combined with a custom index map.");
+        }
+        if (conf.longIndexMap != null
+                && (conf.indexMap != null || conf.denseIndexKeyRange != 0)) {
+            throw new IncorrectConfigException(
+                    "A long index map cannot be combined with another index map.");
+        }
+        if (conf.dataSegmentSize < 0) {
+            throw new IncorrectConfigException("Data segment size cannot be less than 0");
+        }
+        if (conf.dataSegmentSize > 0 && conf.valueSize > 0 && DataSegments
+                .recordsPerSegment(conf.dataSegmentSize, conf.valueSize) > Integer.MAX_VALUE) {
+            throw new IncorrectConfigException("A data segment cannot hold more than "
+                    + Integer.MAX_VALUE + " records");
+        }
     }
 }
@@ -0,0 +1,413 @@
+package com.clevertap.stormdb;
+
+import com.clevertap.stormdb.internal.CompressedBitmap;
+import com.clevertap.stormdb.utils.RecordUtil;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A pull based alternative to {@link StormDB#iterate(EntryConsumer)}. Every key is returned once,
+ * with its latest value as of the moment the cursor was opened:
+ * <pre>
+ * try (StormDBCursor cursor = db.cursor()) {
+ *     while (cursor.next()) {
+ *         final int key = cursor.key();
+ *         cursor.value(buffer);
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * Alternatively, {@link #nextBlock(BlockConsumer)} passes the records a block at a time.
+ * <p>
+ * The cursor reads the database files with handles of its own, which it holds only while it's
+ * open: they're released once it's closed, or once it's exhausted. Writes and compactions carry
+ * on in the meantime, without affecting the cursor.
+ * <p>
+ * Not thread safe.
+ */
+public class StormDBCursor implements Closeable {
+
+    private static final int STAGE_IN_MEM = 0;
+    private static final int STAGE_SEALED = 1;
+    private static final int STAGE_WAL = 2;
+    private static final int STAGE_DATA = 3;
+    private static final int STAGE_DONE = 4;
+
+    private final IterationSnapshot snapshot;
+    private final boolean ownsSnapshot;
+    private ByteBuffer chunk;
+    private boolean closed;
+
+    private int stage;
+
+    /**
+     * The blocks being read, from a file or from a write buffer, or null. They hold recordCount
+     * records, of which recordsVisited have been visited: the first ones when reading forwards,
+     * the last ones when reading backwards.
+     */
+    private ByteBuffer records;
+    private int recordCount;
+    private int recordsVisited;
+    private boolean reverse;
+    private final long[] live = new long[Config.RECORDS_PER_BLOCK / Long.SIZE];
+
+    /**
+     * Keys returned from the write buffers and the WAL files, which are read newest first.
+     */
+    private final CompressedBitmap keysRead;
+    private int walIndex = -1;
+    /**
+     * The blocks of the current WAL file which are yet to be read are [0, walBlock).
+     */
+    private long walBlock;
+
+    /**
+     * The blocks of the data file which are yet to be read are [nextDataBlock, dataEnd).
+     */
+    private long nextDataBlock;
+    private long dataEnd;
+    private int previousKey = StormDB.RESERVED_KEY_MARKER;
+    /**
+     * The dead records of the data segment being read, or null, and the index within the segment
+     * of the first record being read.
+     */
+    private long[] dead;
+    private long firstRecord;
+
+    private boolean positioned;
+    private int currentPosition;
+    private int currentKey;
+
+    /**
+     * @param ownsSnapshot Whether the snapshot is closed along with this cursor
+     */
+    StormDBCursor(final IterationSnapshot snapshot, final boolean ownsSnapshot) {
+        this(snapshot, ownsSnapshot, STAGE_IN_MEM, new CompressedBitmap(), 0,
+                snapshot.dataFileBlocks);
+    }
+
+    /**
+     * @return A cursor over the write buffers and the WAL files of the snapshot, but not the data
+     * file, which doesn't own the snapshot
+     */
+    static StormDBCursor overHead(final IterationSnapshot snapshot) {
+        return new StormDBCursor(snapshot, false, STAGE_IN_MEM, new CompressedBitmap(), 0, 0);
+    }
+
+    private StormDBCursor(final IterationSnapshot snapshot, final boolean ownsSnapshot,
+            final int stage, final CompressedBitmap keysRead, final long startDataBlock,
+            final long endDataBlock) {
+        this.snapshot = snapshot;
+        this.ownsSnapshot = ownsSnapshot;
+        this.stage = stage;
+        this.keysRead = keysRead;
+        nextDataBlock = startDataBlock;
+        dataEnd = endDataBlock;
+    }
+
+    /**
+     * Moves to the next key.
+     *
+     * @return false if there are no more keys
+     */
+    public boolean next() throws IOException {
+        checkOpen();
+        positioned = false;
+        while (true) {
+            while (recordsVisited < recordCount) {
+                final int index = reverse ? recordCount - 1 - recordsVisited : recordsVisited;
+                recordsVisited++;
+                final int position = (int) RecordUtil.indexToAddress(snapshot.recordSize, index);
+                final int key = records.getInt(position);
+                if (accept(key, index)) {
+                    positioned = true;
+                    currentPosition = position;
+                    currentKey = key;
+                    return true;
+                }
+            }
+            if (!loadRecords()) {
+                release();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Passes the records of the next block, or of what's left of it after calls to
+     * {@link #next()}, to the given consumer. Blocks without any live records are skipped.
+     *
+     * @return false if there are no more blocks
+     */
+    public boolean nextBlock(final BlockConsumer consumer) throws IOException {
+        checkOpen();
+        positioned = false;
+        final int recordSize = snapshot.recordSize;
+        while (true) {
+            while (recordsVisited < recordCount) {
+                // The unvisited records of the block which is next in the reading direction.
+                final int first;
+                final int count;
+                if (reverse) {
+                    final int end = recordCount - recordsVisited;
+                    first = (end - 1) / Config.RECORDS_PER_BLOCK * Config.RECORDS_PER_BLOCK;
+                    count = end - first;
+                } else {
+                    first = recordsVisited;
+                    count = Math.min(Config.RECORDS_PER_BLOCK - first % Config.RECORDS_PER_BLOCK,
+                            recordCount - first);
+                }
+                recordsVisited += count;
+
+                final int base = (int) RecordUtil.indexToAddress(recordSize, first);
+                Arrays.fill(live, 0);
+                boolean anyLive = false;
+                // Newer records come later within a block, so the head is checked backwards.
+                for (int j = 0; j < count; j++) {
+                    final int i = reverse ? count - 1 - j : j;
+                    if (accept(records.getInt(base + i * recordSize), first + i)) {
+                        live[i >>> 6] |= 1L << i;
+                        anyLive = true;
+                    }
+                }
+                if (anyLive) {
+                    consumer.accept(records.array(), records.arrayOffset() + base, count, live);
+                    return true;
+                }
+            }
+            if (!loadRecords()) {
+                release();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return The current key
+     */
+    public int key() {
+        checkPositioned();
+        return currentKey;
+    }
+
+    /**
+     * Copies the value of the current key to the given buffer, at its position, and advances the
+     * position by the value size.
+     */
+    public void value(final ByteBuffer dest) {
+        checkPositioned();
+        final int valueSize = snapshot.valueSize;
+        if (dest.remaining() < valueSize) {
+            throw new IllegalArgumentException("Expected space for a value of " + valueSize
+                    + " bytes, but only " + dest.remaining() + " bytes remain!");
+        }
+        dest.put(records.array(), records.arrayOffset() + currentPosition + Config.KEY_SIZE,
+                valueSize);
+    }
+
+    /**
+     * Passes the current key and its value to the given consumer, without copying the value.
+     */
+    void accept(final EntryConsumer consumer) throws IOException {
+        checkPositioned();
+        consumer.accept(currentKey, records.array(),
+                records.arrayOffset() + currentPosition + Config.KEY_SIZE);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The cursor is closed!");
+        }
+    }
+
+    private void checkPositioned() {
+        if (!positioned) {
+            throw new IllegalStateException("The cursor isn't positioned at a key!");
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        release();
+    }
+
+    private void release() {
+        positioned = false;
+        setRecords(null, 0, false);
+        chunk = null;
+        stage = STAGE_DONE;
+        if (ownsSnapshot) {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Splits off the second half of the data file blocks which are yet to be read.
+     *
+     * @return A cursor over the split off blocks, which shares this cursor's snapshot without
+     * owning it, or null if fewer than two blocks remain
+     */
+    StormDBCursor trySplit() {
+        final long remaining = dataEnd - nextDataBlock;
+        if (closed || remaining < 2) {
+            return null;
+        }
+        final long middle = nextDataBlock + remaining / 2;
+        final StormDBCursor split = new StormDBCursor(snapshot, false, STAGE_DATA, null, middle,
+                dataEnd);
+        dataEnd = middle;
+        return split;
+    }
+
+    long getNextDataBlock() {
+        return nextDataBlock;
+    }
+
+    long getDataEnd() {
+        return dataEnd;
+    }
+
+    /**
+     * @param index The index of the record within the records being read
+     */
+    private boolean accept(final int key, final int index) {
+        if (stage != STAGE_DATA) {
+            if (keysRead.get(key)) {
+                return false;
+            }
+            keysRead.set(key);
+            return true;
+        }
+
+        if (dead != null) {
+            return !DataSegments.isSet(dead, firstRecord + index)
+                    && !snapshot.superseded.get(key);
+        }
+
+        // The last block of a data file is padded by repeating its last record.
+        if (key == previousKey) {
+            return false;
+        }
+        previousKey = key;
+        return !snapshot.superseded.get(key);
+    }
+
+    private void setRecords(final ByteBuffer buffer, final int bytes, final boolean reverse) {
+        records = buffer;
+        recordCount = bytes > 0 ? (int) RecordUtil.addressToIndex(snapshot.recordSize, bytes) : 0;
+        recordsVisited = 0;
+        this.reverse = reverse;
+    }
+
+    /**
+     * Moves on to the next batch of records.
+     *
+     * @return false if there are no more
+     */
+    private boolean loadRecords() throws IOException {
+        setRecords(null, 0, false);
+        while (true) {
+            switch (stage) {
+                case STAGE_IN_MEM:
+                    stage = STAGE_SEALED;
+                    loadInMemRecords(snapshot.inMemRecords);
+                    break;
+                case STAGE_SEALED:
+                    stage = STAGE_WAL;
+                    loadInMemRecords(snapshot.sealedRecords);
+                    break;
+                case STAGE_WAL:
+                    if (walBlock > 0) {
+                        readWalBlocks();
+                    } else if (++walIndex < snapshot.walFiles.length) {
+                        walBlock = snapshot.walFileLengths[walIndex] / snapshot.blockSize;
+                    } else {
+                        stage = STAGE_DATA;
+                    }
+                    break;
+                case STAGE_DATA:
+                    if (nextDataBlock < dataEnd) {
+                        readDataBlocks();
+                    } else {
+                        stage = STAGE_DONE;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+            if (recordCount > 0) {
+                return true;
+            }
+        }
+    }
+
+    private void loadInMemRecords(final ByteBuffer buffer) {
+        if (buffer != null) {
+            setRecords(buffer, buffer.limit(), true);
+        }
+    }
+
+    /**
+     * Reads the last run of blocks of the current WAL file which haven't been read yet. A run
+     * never spans a partial block other than its last one, since the records after a partial
+     * block aren't aligned.
+     */
+    private void readWalBlocks() throws IOException {
+        final WalBlockTable blocks = snapshot.walFileBlocks[walIndex];
+        final int blockSize = snapshot.blockSize;
+        final long end = walBlock;
+        final long start = Math.max(end - snapshot.blocksPerRead,
+                blocks.previousPartialBlock((int) end - 1) + 1);
+        final long physicalStart = blocks.toPhysical(start * blockSize);
+        final int bytes = (int) (blocks.toPhysical(end * blockSize) - physicalStart);
+
+        final ByteBuffer buffer = read(snapshot.walFiles[walIndex], physicalStart, bytes);
+        final int recordBytes = blocks.isPartial((int) end - 1)
+                ? bytes - WalBlockTable.PARTIAL_BLOCK_TRAILER_SIZE : bytes;
+        setRecords(buffer, recordBytes, true);
+        walBlock = start;
+    }
+
+    /**
+     * Reads the next run of blocks of the data file which holds the next block. A run never spans
+     * two data files.
+     */
+    private void readDataBlocks() throws IOException {
+        final int file = snapshot.dataFileAt(nextDataBlock);
+        final long fileEnd = snapshot.dataFileStarts[file + 1];
+        final long localBlock = nextDataBlock - snapshot.dataFileStarts[file];
+        final int blocks = (int) Math.min(snapshot.blocksPerRead,
+                Math.min(dataEnd, fileEnd) - nextDataBlock);
+        final int bytes = blocks * snapshot.blockSize;
+        final ByteBuffer buffer = read(snapshot.dataFiles[file], localBlock * snapshot.blockSize,
+                bytes);
+        setRecords(buffer, bytes, false);
+        dead = snapshot.dataFileDead[file];
+        firstRecord = localBlock * Config.RECORDS_PER_BLOCK;
+        nextDataBlock += blocks;
+    }
+
+    /**
+     * Reads with positional reads, since cursors which were split from one another share their
+     * channels.
+     */
+    private ByteBuffer read(final FileChannel channel, final long position, final int bytes)
+            throws IOException {
+        if (chunk == null || chunk.capacity() < bytes) {
+            chunk = ByteBuffer.allocate(bytes);
+        }
+        chunk.clear();
+        chunk.limit(bytes);
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk, position + chunk.position()) == -1) {
+                throw new EOFException("Attempted to read beyond the end of " + channel);
+            }
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,27 @@
+package com.clevertap.stormdb;
+
+/**
+ * A key and a copy of its value, as returned by {@link StormDB#stream()}.
+ */
+public class StormDBEntry {
+
+    private final int key;
+    private final byte[] value;
+
+    StormDBEntry(final int key, final byte[] value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    /**
+     * @return The value. It's a copy which belongs to this entry, so it's returned without
+     * copying it again
+     */
+    public byte[] getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,138 @@
+package com.clevertap.stormdb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime counters for a {@link StormDB} instance. All values are cumulative since the database
+ * was opened.
+ */
+public class StormDBMetrics {
+
+    private final LongAdder walSyncCount = new LongAdder();
+    private final LongAdder walSyncTimeNanos = new LongAdder();
+    private final AtomicLong maxWalSyncTimeNanos = new AtomicLong();
+
+    private final LongAdder commitCount = new LongAdder();
+    private final LongAdder commitLatencyNanos = new LongAdder();
+    private final AtomicLong maxCommitLatencyNanos = new AtomicLong();
+
+    private final LongAdder optimisticReadRetryCount = new LongAdder();
+
+    private final LongAdder valueCacheHitCount = new LongAdder();
+    private final LongAdder valueCacheMissCount = new LongAdder();
+    private final LongAdder valueCacheEvictionCount = new LongAdder();
+
+    StormDBMetrics() {
+    }
+
+    void recordWalSync(final long nanos) {
+        walSyncCount.increment();
+        walSyncTimeNanos.add(nanos);
+        updateMax(maxWalSyncTimeNanos, nanos);
+    }
+
+    void recordCommit(final long nanos) {
+        commitCount.increment();
+        commitLatencyNanos.add(nanos);
+        updateMax(maxCommitLatencyNanos, nanos);
+    }
+
+    void recordOptimisticReadRetry() {
+        optimisticReadRetryCount.increment();
+    }
+
+    void recordValueCacheHit() {
+        valueCacheHitCount.increment();
+    }
+
+    void recordValueCacheMiss() {
+        valueCacheMissCount.increment();
+    }
+
+    void recordValueCacheEviction() {
+        valueCacheEvictionCount.increment();
+    }
+
+    private static void updateMax(final AtomicLong max, final long value) {
+        long current;
+        while ((current = max.get()) < value) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The number of times the WAL file was forced to the storage device
+     */
+    public long getWalSyncCount() {
+        return walSyncCount.sum();
+    }
+
+    /**
+     * @return The total time spent in forcing the WAL file to the storage device
+     */
+    public long getWalSyncTimeNanos() {
+        return walSyncTimeNanos.sum();
+    }
+
+    public long getMaxWalSyncTimeNanos() {
+        return maxWalSyncTimeNanos.get();
+    }
+
+    /**
+     * @return The number of puts which waited for their record to become durable (only applicable
+     * to {@link DurabilityMode#GROUP_COMMIT})
+     */
+    public long getCommitCount() {
+        return commitCount.sum();
+    }
+
+    /**
+     * @return The total time puts spent waiting for their record to become durable
+     */
+    public long getCommitLatencyNanos() {
+        return commitLatencyNanos.sum();
+    }
+
+    public long getMaxCommitLatencyNanos() {
+        return maxCommitLatencyNanos.get();
+    }
+
+    public double getAverageCommitLatencyNanos() {
+        final long commits = getCommitCount();
+        return commits == 0 ? 0 : (double) getCommitLatencyNanos() / commits;
+    }
+
+    /**
+     * @return The number of lock free reads which had to be repeated under the read lock, since a
+     * writer intervened
+     */
+    public long getOptimisticReadRetryCount() {
+        return optimisticReadRetryCount.sum();
+    }
+
+    /**
+     * @return The number of reads served by the value cache (see
+     * {@link StormDBBuilder#withValueCache(long)})
+     */
+    public long getValueCacheHitCount() {
+        return valueCacheHitCount.sum();
+    }
+
+    /**
+     * @return The number of reads which didn't find their key in the value cache, including reads
+     * of keys which don't exist
+     */
+    public long getValueCacheMissCount() {
+        return valueCacheMissCount.sum();
+    }
+
+    /**
+     * @return The number of values evicted from the value cache to make room for others
+     */
+    public long getValueCacheEvictionCount() {
+        return valueCacheEvictionCount.sum();
+    }
+}
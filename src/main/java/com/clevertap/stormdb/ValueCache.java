@@ -0,0 +1,280 @@
+package com.clevertap.stormdb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An off heap cache of values, keyed by key, which serves reads of hot keys without touching the
+ * index or the files. Since entries are keyed by key rather than by address, they remain valid
+ * across compactions.
+ * <p>
+ * Values are kept in direct memory, in slabs of fixed size slots, which are allocated as the cache
+ * fills up. Once the cache is full, a value is evicted using the CLOCK algorithm: every read marks
+ * its entry as referenced, and the clock hand skips (and clears) referenced entries on its way to
+ * a victim. New entries start out unreferenced, so values which are read only once are the first
+ * to go.
+ * <p>
+ * The cache is split into segments, each with its own lock, so that concurrent readers don't
+ * contend on a single lock.
+ * <p>
+ * Writers must update the cache (see {@link #update(int, byte[], int)}) while holding the write
+ * mode of the given {@link StampedLock}. Readers fill the cache only if no writer intervened since
+ * they looked the key up (see {@link #fill(int, byte[], int, long)}), so a value which was read
+ * from a file can't overwrite a newer one.
+ * <p>
+ * Thread safe.
+ */
+class ValueCache {
+
+    /**
+     * Bookkeeping bytes per entry, which count against the cache size: the key, the referenced
+     * flag and up to three hash table slots.
+     */
+    static final int ENTRY_OVERHEAD = 16;
+    private static final int MAX_SEGMENTS = 64;
+    private static final int MIN_ENTRIES_PER_SEGMENT = 1024;
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final StampedLock writes;
+    private final StormDBMetrics metrics;
+
+    /**
+     * @param sizeBytes The total number of bytes the cache may use, including bookkeeping
+     * @param valueSize The size of every value
+     * @param writes    The lock held in write mode by writers, see above
+     */
+    ValueCache(final long sizeBytes, final int valueSize, final StampedLock writes,
+            final StormDBMetrics metrics) {
+        this.writes = writes;
+        this.metrics = metrics;
+
+        final long entries = sizeBytes / (valueSize + ENTRY_OVERHEAD);
+        final int segmentCount = (int) Math.min(MAX_SEGMENTS,
+                Math.max(1, Long.highestOneBit(entries / MIN_ENTRIES_PER_SEGMENT)));
+        final int entriesPerSegment = (int) Math.min(entries / segmentCount, 1 << 29);
+
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(entriesPerSegment, valueSize);
+        }
+        // The upper bits of the hash pick the segment, the lower bits the hash table slot.
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+    }
+
+    private static int hash(final int key) {
+        // The murmur3 finaliser, so that sequential keys are spread evenly.
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private Segment segmentFor(final int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    /**
+     * Copies the cached value of the given key, and marks it as referenced.
+     *
+     * @return false if the key isn't cached
+     */
+    boolean get(final int key, final byte[] dest, final int offset) {
+        final int hash = hash(key);
+        final boolean hit = segmentFor(hash).get(key, hash, dest, offset);
+        if (hit) {
+            metrics.recordValueCacheHit();
+        } else {
+            metrics.recordValueCacheMiss();
+        }
+        return hit;
+    }
+
+    /**
+     * Caches a value which was read from a file, evicting another if the cache is full.
+     *
+     * @param stamp A stamp of the writes lock, obtained before the key was looked up in the index
+     */
+    void fill(final int key, final byte[] value, final int offset, final long stamp) {
+        final int hash = hash(key);
+        final Segment segment = segmentFor(hash);
+        final boolean evicted;
+        synchronized (segment) {
+            // Validate under the segment's lock, so that a writer can't update the cache in the
+            // meantime.
+            if (!writes.validate(stamp)) {
+                return;
+            }
+            evicted = segment.put(key, hash, value, offset);
+        }
+        if (evicted) {
+            metrics.recordValueCacheEviction();
+        }
+    }
+
+    /**
+     * Replaces the cached value of the given key, if it's cached. Always call this while holding
+     * the write mode of the writes lock.
+     */
+    void update(final int key, final byte[] value, final int offset) {
+        final int hash = hash(key);
+        segmentFor(hash).update(key, hash, value, offset);
+    }
+
+    /**
+     * A CLOCK cache with a fixed number of entries, backed by an open addressing hash table with
+     * linear probing.
+     */
+    private static final class Segment {
+
+        private final int capacity;
+        private final int valueSize;
+        private final int entriesPerSlab;
+        private final ByteBuffer[] slabs;
+
+        private final int[] keys;
+        private final boolean[] referenced;
+        private int size;
+        private int hand;
+
+        /**
+         * Maps the hash of a key to the index of its entry plus one, so that zero marks a free
+         * slot.
+         */
+        private final int[] table;
+        private final int mask;
+
+        private Segment(final int capacity, final int valueSize) {
+            this.capacity = capacity;
+            this.valueSize = valueSize;
+            entriesPerSlab = Math.max(1, SLAB_SIZE / valueSize);
+            slabs = new ByteBuffer[(capacity + entriesPerSlab - 1) / entriesPerSlab];
+            keys = new int[capacity];
+            referenced = new boolean[capacity];
+            // At most half full, so that probe sequences stay short.
+            table = new int[Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) * 2];
+            mask = table.length - 1;
+        }
+
+        /**
+         * @return The position of the key in the hash table, or -1 if it isn't cached
+         */
+        private int find(final int key, final int hash) {
+            int pos = hash & mask;
+            while (table[pos] != 0) {
+                if (keys[table[pos] - 1] == key) {
+                    return pos;
+                }
+                pos = (pos + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Positions the slab which holds the given entry at the start of its value. Slabs are only
+         * used while holding the segment's lock, so their positions can be shared.
+         */
+        private ByteBuffer slabAt(final int entry) {
+            final int slab = entry / entriesPerSlab;
+            if (slabs[slab] == null) {
+                final int entries = Math.min(entriesPerSlab, capacity - slab * entriesPerSlab);
+                slabs[slab] = ByteBuffer.allocateDirect(entries * valueSize);
+            }
+            slabs[slab].position((entry % entriesPerSlab) * valueSize);
+            return slabs[slab];
+        }
+
+        private synchronized boolean get(final int key, final int hash, final byte[] dest,
+                final int offset) {
+            final int pos = find(key, hash);
+            if (pos == -1) {
+                return false;
+            }
+            final int entry = table[pos] - 1;
+            referenced[entry] = true;
+            slabAt(entry).get(dest, offset, valueSize);
+            return true;
+        }
+
+        private synchronized void update(final int key, final int hash, final byte[] value,
+                final int offset) {
+            final int pos = find(key, hash);
+            if (pos != -1) {
+                slabAt(table[pos] - 1).put(value, offset, valueSize);
+            }
+        }
+
+        /**
+         * Always call this while holding the segment's lock.
+         *
+         * @return true if another entry was evicted to make room
+         */
+        private boolean put(final int key, final int hash, final byte[] value, final int offset) {
+            if (capacity == 0) {
+                return false;
+            }
+            final int existing = find(key, hash);
+            if (existing != -1) {
+                slabAt(table[existing] - 1).put(value, offset, valueSize);
+                return false;
+            }
+
+            final int entry;
+            final boolean evicted = size == capacity;
+            if (evicted) {
+                entry = evict();
+            } else {
+                entry = size++;
+            }
+
+            keys[entry] = key;
+            referenced[entry] = false;
+            int pos = hash & mask;
+            while (table[pos] != 0) {
+                pos = (pos + 1) & mask;
+            }
+            table[pos] = entry + 1;
+            slabAt(entry).put(value, offset, valueSize);
+            return evicted;
+        }
+
+        /**
+         * Advances the clock hand to the first unreferenced entry, and removes it.
+         *
+         * @return The index of the evicted entry
+         */
+        private int evict() {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % capacity;
+            }
+            final int victim = hand;
+            hand = (hand + 1) % capacity;
+            remove(find(keys[victim], hash(keys[victim])));
+            return victim;
+        }
+
+        /**
+         * Frees the given hash table slot, shifting back the entries which follow it in their
+         * probe sequence, so that no tombstones are needed.
+         */
+        private void remove(final int pos) {
+            int hole = pos;
+            int next = (hole + 1) & mask;
+            while (table[next] != 0) {
+                final int ideal = hash(keys[table[next] - 1]) & mask;
+                // Move the entry into the hole, unless the hole lies before its ideal slot.
+                if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                    table[hole] = table[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            table[hole] = 0;
+        }
+    }
+}
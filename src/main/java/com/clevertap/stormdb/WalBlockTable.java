@@ -0,0 +1,171 @@
+package com.clevertap.stormdb;
+
+import static com.clevertap.stormdb.Config.RECORDS_PER_BLOCK;
+
+import com.clevertap.stormdb.utils.RecordUtil;
+import java.util.Arrays;
+
+/**
+ * Keeps track of the partial blocks in a WAL file.
+ * <p>
+ * Records in the WAL file are addressed as if every block was complete, i.e. a partial block
+ * still occupies {@link Config#RECORDS_PER_BLOCK} record indices. These logical addresses are
+ * translated to file offsets by subtracting the bytes that all preceding partial blocks didn't
+ * need. Partial blocks are only written when a write buffer is flushed before it's full, so this
+ * table stays small.
+ * <p>
+ * A partial block is laid out as: partial sync marker | N records | N (4 bytes) | CRC32 (4 bytes).
+ * <p>
+ * Not thread safe.
+ */
+class WalBlockTable {
+
+    static final int PARTIAL_BLOCK_TRAILER_SIZE = Config.KEY_SIZE + Config.CRC_SIZE;
+
+    private final int recordSize;
+    private final int blockSize;
+
+    private int[] partialBlocks = new int[8]; // Ascending.
+    private int[] recordCounts = new int[8];
+    private long[] bytesMissingAfter = new long[8]; // Cumulative, including the block itself.
+    private int size;
+
+    WalBlockTable(final int recordSize) {
+        this.recordSize = recordSize;
+        this.blockSize = RecordUtil.blockSizeWithTrailer(recordSize);
+    }
+
+    private WalBlockTable(final WalBlockTable source) {
+        this.recordSize = source.recordSize;
+        this.blockSize = source.blockSize;
+        this.partialBlocks = Arrays.copyOf(source.partialBlocks, source.size);
+        this.recordCounts = Arrays.copyOf(source.recordCounts, source.size);
+        this.bytesMissingAfter = Arrays.copyOf(source.bytesMissingAfter, source.size);
+        this.size = source.size;
+    }
+
+    static int partialBlockSize(final int recordSize, final int records) {
+        return recordSize + records * recordSize + PARTIAL_BLOCK_TRAILER_SIZE;
+    }
+
+    /**
+     * Records that the given block holds fewer than {@link Config#RECORDS_PER_BLOCK} records.
+     * Blocks must be added in ascending order.
+     */
+    void addPartialBlock(final int block, final int records) {
+        if (records <= 0 || records >= RECORDS_PER_BLOCK) {
+            throw new IllegalArgumentException("Invalid record count for a partial block: "
+                    + records);
+        }
+        if (size > 0 && partialBlocks[size - 1] >= block) {
+            throw new IllegalArgumentException("Partial blocks must be added in order!");
+        }
+        if (size == partialBlocks.length) {
+            partialBlocks = Arrays.copyOf(partialBlocks, size * 2);
+            recordCounts = Arrays.copyOf(recordCounts, size * 2);
+            bytesMissingAfter = Arrays.copyOf(bytesMissingAfter, size * 2);
+        }
+        final long missing = blockSize - partialBlockSize(recordSize, records);
+        partialBlocks[size] = block;
+        recordCounts[size] = records;
+        bytesMissingAfter[size] = (size == 0 ? 0 : bytesMissingAfter[size - 1]) + missing;
+        size++;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return A copy which may be read without holding the lock that guards this table
+     */
+    WalBlockTable copy() {
+        return new WalBlockTable(this);
+    }
+
+    int getPartialBlockCount() {
+        return size;
+    }
+
+    /**
+     * @return The number of partial blocks strictly before the given block
+     */
+    private int partialBlocksBefore(final int block) {
+        final int i = Arrays.binarySearch(partialBlocks, 0, size, block);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    boolean isPartial(final int block) {
+        return Arrays.binarySearch(partialBlocks, 0, size, block) >= 0;
+    }
+
+    int recordsInBlock(final int block) {
+        final int i = Arrays.binarySearch(partialBlocks, 0, size, block);
+        return i >= 0 ? recordCounts[i] : RECORDS_PER_BLOCK;
+    }
+
+    /**
+     * @return The first partial block at or after the given block, or {@link Integer#MAX_VALUE}
+     */
+    int nextPartialBlock(final int fromBlock) {
+        final int i = partialBlocksBefore(fromBlock);
+        return i < size ? partialBlocks[i] : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return The last partial block strictly before the given block, or -1
+     */
+    int previousPartialBlock(final int beforeBlock) {
+        final int i = partialBlocksBefore(beforeBlock);
+        return i > 0 ? partialBlocks[i - 1] : -1;
+    }
+
+    /**
+     * Translates a logical address (see {@link RecordUtil#indexToAddress(int, long)}) to an offset
+     * in the WAL file.
+     */
+    long toPhysical(final long logicalAddress) {
+        final int i = partialBlocksBefore((int) (logicalAddress / blockSize));
+        return i == 0 ? logicalAddress : logicalAddress - bytesMissingAfter[i - 1];
+    }
+
+    /**
+     * Translates the length of a WAL file to the logical address at which the next block begins.
+     */
+    long toLogicalLength(final long physicalLength) {
+        return size == 0 ? physicalLength : physicalLength + bytesMissingAfter[size - 1];
+    }
+
+    /**
+     * Translates an offset in the WAL file to a logical address, like
+     * {@link #toLogicalLength(long)}, however, the offset may be anywhere in the file.
+     *
+     * @return The logical address, or -1 if no block begins at the given offset
+     */
+    long toLogical(final long physicalAddress) {
+        long missing = 0;
+        for (int i = 0; i < size; i++) {
+            final long partialBlockEnd = (partialBlocks[i] + 1L) * blockSize - bytesMissingAfter[i];
+            if (partialBlockEnd > physicalAddress) {
+                break;
+            }
+            missing = bytesMissingAfter[i];
+        }
+        final long logicalAddress = physicalAddress + missing;
+        return logicalAddress % blockSize == 0 ? logicalAddress : -1;
+    }
+
+    /**
+     * Skips the record indices that partial blocks don't use.
+     *
+     * @return The given record index if it holds a record, else the first index of the next block
+     */
+    long nextRecordIndex(final long recordIndex) {
+        // Blocks are numbered by ints, which covers terabytes of WAL file.
+        final int block = Math.toIntExact(recordIndex / RECORDS_PER_BLOCK);
+        if (recordIndex % RECORDS_PER_BLOCK < recordsInBlock(block)) {
+            return recordIndex;
+        }
+        return (block + 1L) * RECORDS_PER_BLOCK;
+    }
+}
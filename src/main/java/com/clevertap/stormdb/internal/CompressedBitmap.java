@@ -0,0 +1,256 @@
+package com.clevertap.stormdb.internal;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A set of int keys, which covers the whole 32 bit key space, including negative keys. Unlike
+ * {@link java.util.BitSet}, its memory grows with the number of keys, rather than with the largest
+ * key.
+ * <p>
+ * The layout follows Roaring bitmaps: the upper 16 bits of a key select a container, which holds
+ * the lower 16 bits. Containers are kept in a sorted array. A container with up to
+ * {@value #MAX_ARRAY_CONTAINER_SIZE} keys is a sorted array of them (2 bytes per key), beyond
+ * which it becomes a bitmap of all 65536 possible keys (8 KB).
+ * <p>
+ * Keys can only be added, never removed.
+ * <p>
+ * Not thread safe. However, a reader racing with a writer may only see a wrong result or a
+ * {@link RuntimeException}, and never loops, so that optimistic readers can validate afterwards.
+ */
+public class CompressedBitmap {
+
+    static final int MAX_ARRAY_CONTAINER_SIZE = 4096;
+
+    private char[] highs = new char[4];
+    private Container[] containers = new Container[4];
+    private int size;
+
+    public CompressedBitmap() {
+    }
+
+    private CompressedBitmap(final CompressedBitmap source) {
+        highs = Arrays.copyOf(source.highs, Math.max(source.size, 4));
+        containers = new Container[highs.length];
+        for (int i = 0; i < source.size; i++) {
+            containers[i] = source.containers[i].copy();
+        }
+        size = source.size;
+    }
+
+    /**
+     * @return A deep copy, which is unaffected by later changes to this set
+     */
+    public CompressedBitmap copy() {
+        return new CompressedBitmap(this);
+    }
+
+    private static char high(final int key) {
+        return (char) (key >>> 16);
+    }
+
+    private static char low(final int key) {
+        return (char) key;
+    }
+
+    /**
+     * @return The index of the container, or (-(insertion point) - 1) if there's none
+     */
+    private int find(final char high) {
+        return Arrays.binarySearch(highs, 0, size, high);
+    }
+
+    public boolean get(final int key) {
+        final int i = find(high(key));
+        return i >= 0 && containers[i].contains(low(key));
+    }
+
+    public void set(final int key) {
+        final char high = high(key);
+        int i = find(high);
+        if (i < 0) {
+            i = -i - 1;
+            if (size == highs.length) {
+                highs = Arrays.copyOf(highs, size * 2);
+                containers = Arrays.copyOf(containers, size * 2);
+            }
+            System.arraycopy(highs, i, highs, i + 1, size - i);
+            System.arraycopy(containers, i, containers, i + 1, size - i);
+            highs[i] = high;
+            containers[i] = new ArrayContainer();
+            size++;
+        }
+
+        final Container container = containers[i];
+        final Container updated = container.add(low(key));
+        if (updated != container) {
+            containers[i] = updated;
+        }
+    }
+
+    /**
+     * Adds all keys of the given set to this one.
+     */
+    public void or(final CompressedBitmap other) {
+        other.forEach(this::set);
+    }
+
+    /**
+     * Passes every key to the given consumer.
+     */
+    public void forEach(final IntConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            final int high = highs[i] << 16;
+            containers[i].forEach(low -> consumer.accept(high | low));
+        }
+    }
+
+    /**
+     * @return The number of keys in this set
+     */
+    public long cardinality() {
+        long cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * The lower 16 bits of the keys which share their upper 16 bits.
+     */
+    private abstract static class Container {
+
+        abstract boolean contains(char value);
+
+        /**
+         * @return This container, or the one which replaces it
+         */
+        abstract Container add(char value);
+
+        abstract int cardinality();
+
+        abstract Container copy();
+
+        /**
+         * Passes every value, in ascending order.
+         */
+        abstract void forEach(IntConsumer consumer);
+    }
+
+    private static final class ArrayContainer extends Container {
+
+        private char[] values = new char[4];
+        private int cardinality;
+
+        @Override
+        boolean contains(final char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        Container add(final char value) {
+            int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) {
+                return this;
+            }
+            if (cardinality == MAX_ARRAY_CONTAINER_SIZE) {
+                return toBitmap().add(value);
+            }
+
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values,
+                        Math.min(cardinality * 2, MAX_ARRAY_CONTAINER_SIZE));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = value;
+            cardinality++;
+            return this;
+        }
+
+        private BitmapContainer toBitmap() {
+            final BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container copy() {
+            final ArrayContainer copy = new ArrayContainer();
+            copy.values = Arrays.copyOf(values, Math.max(cardinality, 1));
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        @Override
+        void forEach(final IntConsumer consumer) {
+            for (int i = 0; i < cardinality; i++) {
+                consumer.accept(values[i]);
+            }
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+
+        private final long[] words;
+        private int cardinality;
+
+        private BitmapContainer() {
+            words = new long[(1 << 16) / Long.SIZE];
+        }
+
+        private BitmapContainer(final BitmapContainer source) {
+            words = source.words.clone();
+            cardinality = source.cardinality;
+        }
+
+        @Override
+        boolean contains(final char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container add(final char value) {
+            final long word = words[value >>> 6];
+            final long updated = word | (1L << value);
+            if (updated != word) {
+                words[value >>> 6] = updated;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(this);
+        }
+
+        @Override
+        void forEach(final IntConsumer consumer) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    consumer.accept(i * Long.SIZE + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.clevertap.stormdb.internal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+
+/**
+ * Allocates, accesses and frees native memory, which unlike a direct buffer is freed as soon as
+ * it's no longer needed, rather than when the garbage collector gets to it, and isn't limited to
+ * 2 GB.
+ * <p>
+ * Backed by {@code sun.misc.Unsafe}, which is looked up reflectively, so that nothing depends on
+ * it at compile time. Accesses aren't bounds checked: reading or writing outside of an allocation,
+ * or after it's been freed, crashes the JVM.
+ */
+public final class NativeMemory {
+
+    private static final MethodHandle ALLOCATE_MEMORY;
+    private static final MethodHandle FREE_MEMORY;
+    private static final MethodHandle SET_MEMORY;
+    private static final MethodHandle GET_LONG;
+    private static final MethodHandle PUT_LONG;
+
+    static {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            final Object unsafe = field.get(null);
+
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            ALLOCATE_MEMORY = lookup.unreflect(unsafeClass.getMethod("allocateMemory", long.class))
+                    .bindTo(unsafe);
+            FREE_MEMORY = lookup.unreflect(unsafeClass.getMethod("freeMemory", long.class))
+                    .bindTo(unsafe);
+            SET_MEMORY = lookup.unreflect(unsafeClass.getMethod("setMemory", long.class,
+                    long.class, byte.class)).bindTo(unsafe);
+            GET_LONG = lookup.unreflect(unsafeClass.getMethod("getLong", long.class))
+                    .bindTo(unsafe);
+            PUT_LONG = lookup.unreflect(unsafeClass.getMethod("putLong", long.class, long.class))
+                    .bindTo(unsafe);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private NativeMemory() {
+    }
+
+    /**
+     * @return The address of a new allocation of the given size, whose contents are undefined
+     * @throws OutOfMemoryError If there's not enough native memory
+     */
+    public static long allocate(final long bytes) {
+        try {
+            return (long) ALLOCATE_MEMORY.invokeExact(bytes);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public static void free(final long address) {
+        try {
+            FREE_MEMORY.invokeExact(address);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Sets every byte of the given range to the given value.
+     */
+    public static void fill(final long address, final long bytes, final byte value) {
+        try {
+            SET_MEMORY.invokeExact(address, bytes, value);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public static long getLong(final long address) {
+        try {
+            return (long) GET_LONG.invokeExact(address);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public static void putLong(final long address, final long value) {
+        try {
+            PUT_LONG.invokeExact(address, value);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * None of the methods throw checked exceptions, so whatever they throw is unchecked.
+     */
+    private static RuntimeException rethrow(final Throwable e) {
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw new IllegalStateException(e);
+    }
+}
@@ -0,0 +1,162 @@
+package com.clevertap.stormdb.internal;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A read only channel to a file, shared by all of its readers. Reads are positional, so readers
+ * neither need a handle of their own, nor do they contend on a file pointer.
+ * <p>
+ * The channel is reference counted. The owner holds the first reference, and gives it up via
+ * {@link #close()} once the file has been superseded. Readers {@link #retain()} the channel
+ * before use and {@link #release()} it afterwards, so the file stays open until the last reader
+ * is done with it, even if it has been renamed or deleted in the meantime.
+ * <p>
+ * Interrupting a thread which is reading a {@link FileChannel} closes the channel, which would
+ * fail every other reader as well. Therefore, the channel is reopened, as long as the owner hasn't
+ * closed it. The owner must close it before the file is renamed or replaced, so that a reopened
+ * channel always refers to the same file.
+ */
+public class SharedFileChannel implements Closeable {
+
+    private final File file;
+    private volatile FileChannel channel;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private boolean closed = false; // Guarded by this.
+
+    public SharedFileChannel(final File file) throws IOException {
+        this.file = file;
+        channel = open();
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return False if the channel has already been released by everybody, in which case it
+     * must not be used
+     */
+    public boolean retain() {
+        int current;
+        do {
+            current = references.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    public void release() throws IOException {
+        if (references.decrementAndGet() == 0) {
+            synchronized (this) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Gives up the owner's reference. The channel is closed once all readers release it.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        release();
+    }
+
+    /**
+     * Reads bytes from the given position until the buffer is full.
+     *
+     * @throws EOFException If the file ends before the buffer is full
+     */
+    public void readFully(final ByteBuffer dst, final long position) throws IOException {
+        long next = position;
+        while (dst.hasRemaining()) {
+            final FileChannel current = channel;
+            final int bytesRead;
+            try {
+                bytesRead = current.read(dst, next);
+            } catch (ClosedByInterruptException e) {
+                reopen(current);
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (!reopen(current)) {
+                    throw e;
+                }
+                continue;
+            }
+
+            if (bytesRead == -1) {
+                throw new EOFException("Attempted to read beyond the end of " + file);
+            }
+            next += bytesRead;
+        }
+    }
+
+    public long size() throws IOException {
+        while (true) {
+            final FileChannel current = channel;
+            try {
+                return current.size();
+            } catch (ClosedByInterruptException e) {
+                reopen(current);
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (!reopen(current)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public MappedByteBuffer map(final long position, final long size) throws IOException {
+        while (true) {
+            final FileChannel current = channel;
+            try {
+                return current.map(MapMode.READ_ONLY, position, size);
+            } catch (ClosedByInterruptException e) {
+                reopen(current);
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (!reopen(current)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces a channel which was closed underneath its readers, i.e. by an interrupt.
+     *
+     * @return False if the channel was closed deliberately
+     */
+    private synchronized boolean reopen(final FileChannel failed) throws IOException {
+        if (closed || references.get() == 0) {
+            return false;
+        }
+        if (channel == failed) {
+            channel = open();
+        }
+        return true;
+    }
+}
@@ -22,13 +22,48 @@ public class DefaultIndexMap implements IndexMap {
         indexMap.put(key, indexValue);
     }
 
+    @Override
+    public int putAndGetPrevious(int key, int indexValue) {
+        return indexMap.put(key, indexValue);
+    }
+
     @Override
     public int get(int key) {
         return indexMap.get(key);
     }
 
+    @Override
+    public void ensureCapacity(int keys) {
+        indexMap.ensureCapacity(keys);
+    }
+
+    /**
+     * Trove keeps a key, a value and a state byte per slot.
+     */
+    @Override
+    public long memoryUsageBytes() {
+        return (long) indexMap.capacity() * (Integer.BYTES * 2 + 1);
+    }
+
     @Override
     public int size() {
         return indexMap.size();
     }
+
+    @Override
+    public void forEach(IndexEntryConsumer consumer) {
+        indexMap.forEachEntry((key, indexValue) -> {
+            consumer.accept(key, indexValue);
+            return true;
+        });
+    }
+
+    /**
+     * Lookups in an open addressing map are bounded by its capacity. A racing rehash may swap
+     * the underlying arrays, which at worst surfaces as an out of bounds index.
+     */
+    @Override
+    public boolean supportsOptimisticReads() {
+        return true;
+    }
 }
@@ -0,0 +1,145 @@
+package com.clevertap.stormdb.maps;
+
+import com.clevertap.stormdb.StormDB;
+import java.util.Arrays;
+
+/**
+ * An {@link IndexMap} for keys which are mostly dense, such as sequential ids from 0 up: the index
+ * values of keys in [0, key range) are stored in an int array addressed by the key itself, so that
+ * a lookup is two array loads rather than a hash probe, and every key takes 4 bytes. Keys outside
+ * of that range, such as negative ones, go to an overflow hash map.
+ * <p>
+ * The array is split into pages of {@value #PAGE_SIZE} keys, which are allocated when the first key
+ * of theirs is put. A key range which is much larger than the keys in use therefore costs little,
+ * as long as the keys are clustered. Keys scattered across the range are better off in a hash map.
+ * <p>
+ * Not thread safe. Lookups may race with puts if the overflow map supports it, see
+ * {@link #supportsOptimisticReads()}.
+ */
+public class DenseIndexMap implements IndexMap {
+
+    static final int PAGE_SHIFT = 16;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int DEFAULT_OVERFLOW_CAPACITY = 1024;
+
+    private final int keyRange;
+    private final int[][] pages;
+    private final IndexMap overflow;
+    private int denseSize;
+    private int allocatedPages;
+
+    /**
+     * @param keyRange The keys from 0 up to this one, exclusive, are stored in the array
+     */
+    public DenseIndexMap(final int keyRange) {
+        this(keyRange, new IncrementalIndexMap(DEFAULT_OVERFLOW_CAPACITY, 0.75f));
+    }
+
+    /**
+     * @param keyRange The keys from 0 up to this one, exclusive, are stored in the array
+     * @param overflow The map for all other keys
+     */
+    public DenseIndexMap(final int keyRange, final IndexMap overflow) {
+        if (keyRange <= 0) {
+            throw new IllegalArgumentException("Key range must be greater than 0");
+        }
+        if (overflow == null) {
+            throw new IllegalArgumentException("Overflow map cannot be null");
+        }
+        this.keyRange = keyRange;
+        pages = new int[(int) (((long) keyRange + PAGE_MASK) >>> PAGE_SHIFT)][];
+        this.overflow = overflow;
+    }
+
+    private boolean isDense(final int key) {
+        return key >= 0 && key < keyRange;
+    }
+
+    private int[] pageFor(final int key) {
+        int[] page = pages[key >>> PAGE_SHIFT];
+        if (page == null) {
+            page = new int[PAGE_SIZE];
+            Arrays.fill(page, StormDB.RESERVED_KEY_MARKER);
+            pages[key >>> PAGE_SHIFT] = page;
+            allocatedPages++;
+        }
+        return page;
+    }
+
+    @Override
+    public void put(final int key, final int indexValue) {
+        if (isDense(key)) {
+            putAndGetPrevious(key, indexValue);
+        } else {
+            overflow.put(key, indexValue);
+        }
+    }
+
+    @Override
+    public int putAndGetPrevious(final int key, final int indexValue) {
+        if (!isDense(key)) {
+            return overflow.putAndGetPrevious(key, indexValue);
+        }
+
+        final int[] page = pageFor(key);
+        final int previous = page[key & PAGE_MASK];
+        if (previous == StormDB.RESERVED_KEY_MARKER) {
+            denseSize++;
+        }
+        page[key & PAGE_MASK] = indexValue;
+        return previous;
+    }
+
+    @Override
+    public int get(final int key) {
+        if (!isDense(key)) {
+            return overflow.get(key);
+        }
+        final int[] page = pages[key >>> PAGE_SHIFT];
+        return page == null ? StormDB.RESERVED_KEY_MARKER : page[key & PAGE_MASK];
+    }
+
+    @Override
+    public int size() {
+        return denseSize + overflow.size();
+    }
+
+    @Override
+    public void forEach(final IndexEntryConsumer consumer) {
+        for (int p = 0; p < pages.length; p++) {
+            final int[] page = pages[p];
+            if (page == null) {
+                continue;
+            }
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                if (page[i] != StormDB.RESERVED_KEY_MARKER) {
+                    consumer.accept((p << PAGE_SHIFT) | i, page[i]);
+                }
+            }
+        }
+        overflow.forEach(consumer);
+    }
+
+    /**
+     * @return The bytes of the pages in use and of the page table, plus those of the overflow map,
+     * or -1 if the overflow map doesn't know its own
+     */
+    @Override
+    public long memoryUsageBytes() {
+        final long overflowBytes = overflow.memoryUsageBytes();
+        if (overflowBytes == -1) {
+            return -1;
+        }
+        return (long) allocatedPages * PAGE_SIZE * Integer.BYTES
+                + (long) pages.length * Long.BYTES + overflowBytes;
+    }
+
+    /**
+     * Lookups in the array are bounded, and at worst miss a page which is being added.
+     */
+    @Override
+    public boolean supportsOptimisticReads() {
+        return overflow.supportsOptimisticReads();
+    }
+}
@@ -0,0 +1,291 @@
+package com.clevertap.stormdb.maps;
+
+import com.clevertap.stormdb.StormDB;
+
+/**
+ * An {@link IndexMap} which grows without ever rehashing all of its entries in one go, so that no
+ * single {@link #put(int, int)}, which StormDB calls under its write lock, stalls readers and
+ * writers for long.
+ * <p>
+ * It's an open addressing hash table with linear probing, in which every slot is a long holding
+ * the complement of the key in its upper 32 bits and of the index value in its lower 32 bits.
+ * Once the table is filled
+ * up to the load factor, a table twice the size takes over: new entries go there, and every
+ * following put moves a few slots of the previous table along, while lookups check both. The
+ * step is large enough for the previous table to be drained before the new one needs to grow.
+ * The previous table is dropped once it's drained, so while growing, the map briefly needs the
+ * memory of both.
+ * <p>
+ * A slot of 0, which would hold {@link StormDB#RESERVED_KEY_MARKER}, is free, which is why that key
+ * can't be put. A new table is therefore free as allocated, and growing needn't fill it. Not
+ * thread safe, apart from {@link #supportsOptimisticReads()}.
+ */
+public class IncrementalIndexMap implements IndexMap {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 100_000;
+    private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+    private static final int MAX_SLOTS = 1 << 30;
+    // The complement of RESERVED_KEY_MARKER in both halves.
+    private static final long FREE_SLOT = 0L;
+
+    private final float loadFactor;
+    private final int migrationStep;
+
+    private Table current;
+    private Table previous; // Null unless it's being drained into the current table.
+    private int migrated; // The slots of the previous table before this one have been moved.
+    private int used; // The slots taken in the current table.
+    private int resizeThreshold;
+    private int size;
+
+    public IncrementalIndexMap() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * @param initialCapacity The number of keys to make room for up front
+     * @param loadFactor      How full a table may get before a larger one takes over, in (0, 1)
+     */
+    public IncrementalIndexMap(final int initialCapacity, final float loadFactor) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Initial capacity cannot be less than 0");
+        }
+        if (!(loadFactor > 0 && loadFactor < 1)) {
+            throw new IllegalArgumentException("Load factor must be between 0 and 1, but was "
+                    + loadFactor);
+        }
+        this.loadFactor = loadFactor;
+        // A previous table of n slots holds at most loadFactor * n entries, and the current one
+        // grows after 2 * loadFactor * n. Moving this many slots per put drains the previous table
+        // within loadFactor * n / 2 puts, well before that.
+        migrationStep = (int) Math.ceil(2 / loadFactor);
+
+        final long slots = slotsFor(initialCapacity);
+        if (slots > MAX_SLOTS) {
+            throw new IllegalArgumentException("Initial capacity " + initialCapacity
+                    + " is too large for a load factor of " + loadFactor);
+        }
+        setCurrent(new Table((int) slots));
+    }
+
+    /**
+     * @return The smallest power of two number of slots which holds the given number of keys
+     */
+    private long slotsFor(final int keys) {
+        final long needed = Math.max(2, (long) Math.ceil(keys / (double) loadFactor) + 1);
+        return Long.highestOneBit(needed - 1) << 1;
+    }
+
+    private static int hash(final int key) {
+        // The murmur3 finaliser, so that sequential keys are spread evenly.
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int keyOf(final long slot) {
+        return ~(int) (slot >>> 32);
+    }
+
+    private static int valueOf(final long slot) {
+        return ~(int) slot;
+    }
+
+    private static long slotOf(final int key, final int indexValue) {
+        return ~(((long) key << 32) | (indexValue & 0xFFFFFFFFL));
+    }
+
+    private void setCurrent(final Table table) {
+        current = table;
+        used = 0;
+        resizeThreshold = (int) (table.slots.length * (double) loadFactor);
+    }
+
+    @Override
+    public void put(final int key, final int indexValue) {
+        putAndGetPrevious(key, indexValue);
+    }
+
+    @Override
+    public int putAndGetPrevious(final int key, final int indexValue) {
+        if (key == StormDB.RESERVED_KEY_MARKER) {
+            throw new IllegalArgumentException("Key " + key + " is reserved!");
+        }
+        if (previous != null) {
+            migrate(migrationStep);
+        }
+
+        int pos = current.find(key);
+        final long slot = current.slots[pos];
+        if (slot != FREE_SLOT) {
+            current.slots[pos] = slotOf(key, indexValue);
+            return valueOf(slot);
+        }
+
+        if (used >= resizeThreshold) {
+            grow();
+            pos = current.find(key);
+        }
+        // A key which is still in the previous table is only being updated.
+        final long previousSlot = previous == null ? FREE_SLOT : previous.lookup(key);
+        if (previousSlot == FREE_SLOT) {
+            size++;
+        }
+        current.slots[pos] = slotOf(key, indexValue);
+        used++;
+        return previousSlot == FREE_SLOT ? StormDB.RESERVED_KEY_MARKER : valueOf(previousSlot);
+    }
+
+    /**
+     * Makes room for the given number of keys right away, by moving every entry to a table which
+     * is large enough, unless the current table is already.
+     */
+    @Override
+    public void ensureCapacity(final int keys) {
+        final long slots = Math.min(slotsFor(keys), MAX_SLOTS);
+        if (slots <= current.slots.length) {
+            return;
+        }
+        if (previous != null) {
+            migrate(previous.slots.length);
+        }
+        previous = current;
+        migrated = 0;
+        setCurrent(new Table((int) slots));
+        migrate(previous.slots.length);
+    }
+
+    private void grow() {
+        if (previous != null) {
+            // Can't happen with the chosen step, but rather finish it off than let the current
+            // table fill up.
+            migrate(previous.slots.length);
+        }
+        final int slots = current.slots.length;
+        if (slots == MAX_SLOTS) {
+            throw new IllegalStateException("Cannot hold more than " + size + " keys with a load"
+                    + " factor of " + loadFactor);
+        }
+        // Readers may check the current table and then the previous one at any time, so make the
+        // current table the previous one first.
+        previous = current;
+        migrated = 0;
+        setCurrent(new Table(slots * 2));
+    }
+
+    /**
+     * Moves up to the given number of slots of the previous table to the current one, unless the
+     * current table already has the key, since whatever's there is newer.
+     */
+    private void migrate(final int count) {
+        final long[] slots = previous.slots;
+        final int end = (int) Math.min((long) migrated + count, slots.length);
+        for (int i = migrated; i < end; i++) {
+            final long slot = slots[i];
+            if (slot != FREE_SLOT) {
+                final int pos = current.find(keyOf(slot));
+                if (current.slots[pos] == FREE_SLOT) {
+                    current.slots[pos] = slot;
+                    used++;
+                }
+            }
+        }
+        migrated = end;
+        if (end == slots.length) {
+            previous = null;
+            migrated = 0;
+        }
+    }
+
+    @Override
+    public int get(final int key) {
+        final Table currentTable = current;
+        final Table previousTable = previous;
+        long slot = currentTable.lookup(key);
+        if (slot == FREE_SLOT && previousTable != null) {
+            slot = previousTable.lookup(key);
+        }
+        return slot == FREE_SLOT ? StormDB.RESERVED_KEY_MARKER : valueOf(slot);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(final IndexEntryConsumer consumer) {
+        for (long slot : current.slots) {
+            if (slot != FREE_SLOT) {
+                consumer.accept(keyOf(slot), valueOf(slot));
+            }
+        }
+        if (previous != null) {
+            final long[] slots = previous.slots;
+            for (int i = migrated; i < slots.length; i++) {
+                final long slot = slots[i];
+                if (slot != FREE_SLOT && current.slots[current.find(keyOf(slot))] == FREE_SLOT) {
+                    consumer.accept(keyOf(slot), valueOf(slot));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The bytes of the tables, which while growing includes the one being drained
+     */
+    @Override
+    public long memoryUsageBytes() {
+        final Table previousTable = previous;
+        return ((long) current.slots.length
+                + (previousTable == null ? 0 : previousTable.slots.length)) * Long.BYTES;
+    }
+
+    /**
+     * Lookups probe at most every slot of the tables they saw, which are only ever replaced as a
+     * whole. A racing put may at worst make them miss an entry, or see one it's moving.
+     */
+    @Override
+    public boolean supportsOptimisticReads() {
+        return true;
+    }
+
+    private static final class Table {
+
+        private final long[] slots;
+        private final int mask;
+
+        private Table(final int slots) {
+            this.slots = new long[slots];
+            mask = slots - 1;
+        }
+
+        /**
+         * @return The position of the key's slot, or of the free slot where it would go, or of
+         * some other slot if a racing writer filled the table up
+         */
+        private int find(final int key) {
+            int pos = hash(key) & mask;
+            for (int probes = 0; probes < slots.length; probes++) {
+                final long slot = slots[pos];
+                if (slot == FREE_SLOT || keyOf(slot) == key) {
+                    return pos;
+                }
+                pos = (pos + 1) & mask;
+            }
+            return pos;
+        }
+
+        /**
+         * @return The key's slot, or {@link #FREE_SLOT} if it's not in this table
+         */
+        private long lookup(final int key) {
+            final long slot = slots[find(key)];
+            return slot != FREE_SLOT && keyOf(slot) == key ? slot : FREE_SLOT;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.clevertap.stormdb.maps;
+
+/**
+ * Receives the entries of an {@link IndexMap}, see {@link IndexMap#forEach(IndexEntryConsumer)}.
+ */
+@FunctionalInterface
+public interface IndexEntryConsumer {
+
+    void accept(int key, int indexValue);
+}
@@ -22,8 +22,77 @@ public interface IndexMap {
     int get(int key);
 
 
+    /**
+     * Puts the key/index pair, and returns the index value it replaces, as {@link #get(int)} would
+     * have before. StormDB calls this for every write, so implementations should find the key's
+     * slot only once.
+     * <p>
+     * The default looks the key up and then puts it.
+     *
+     * @param key        The key to be inserted
+     * @param indexValue The index mapping for the key
+     * @return The previous index value, or {@link StormDB#RESERVED_KEY_MARKER} if there was none
+     */
+    default int putAndGetPrevious(int key, int indexValue) {
+        final int previous = get(key);
+        put(key, indexValue);
+        return previous;
+    }
+
+
     /**
      * @return Size of the index.
      */
     int size();
+
+
+    /**
+     * Passes every entry to the given consumer. StormDB uses this to persist the index, so that it
+     * needn't be rebuilt from the files on the next open. No {@link #put(int, int)} runs
+     * concurrently.
+     * <p>
+     * Custom implementations which don't support this may keep the default, in which case the
+     * index is always rebuilt from the files.
+     *
+     * @throws UnsupportedOperationException If iterating isn't supported
+     */
+    default void forEach(IndexEntryConsumer consumer) {
+        throw new UnsupportedOperationException(getClass().getName()
+                + " doesn't support iterating its entries");
+    }
+
+    /**
+     * A hint that about this many keys are going to be put, so that the map can make room for them
+     * at once, rather than grow step by step. StormDB calls this when it's opened, before building
+     * the index, with the number of keys it expects from the files.
+     * <p>
+     * The default ignores the hint.
+     *
+     * @param keys The number of keys expected in total
+     */
+    default void ensureCapacity(int keys) {
+    }
+
+    /**
+     * @return The approximate number of bytes this map holds, on or off the heap, or -1 if it's
+     * unknown, which is the default
+     */
+    default long memoryUsageBytes() {
+        return -1;
+    }
+
+    /**
+     * StormDB may call {@link #get(int)} without holding any lock, while another thread is in
+     * {@link #put(int, int)}. The value returned by such a call is discarded whenever a write
+     * intervened, so it may be anything, however, the call must neither block forever nor corrupt
+     * the map. It may throw a {@link RuntimeException}.
+     * <p>
+     * Custom implementations which can't guarantee this should leave this disabled, in which case
+     * every lookup is done under the read lock.
+     *
+     * @return Whether {@link #get(int)} may race with {@link #put(int, int)}
+     */
+    default boolean supportsOptimisticReads() {
+        return false;
+    }
 }
@@ -0,0 +1,84 @@
+package com.clevertap.stormdb.maps;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Lets StormDB keep its index in an {@link IndexMap}. Since an {@link IndexMap} holds int index
+ * values, the database is then limited to {@link Integer#MAX_VALUE} records per file: a put
+ * beyond that fails, rather than silently truncating the record index. Use a
+ * {@link LongIndexMap}, such as {@link PackedLongIndexMap}, to go further.
+ */
+public class IntIndexMapAdapter implements LongIndexMap, Closeable {
+
+    private final IndexMap map;
+
+    public IntIndexMapAdapter(final IndexMap map) {
+        if (map == null) {
+            throw new IllegalArgumentException("Index map cannot be null");
+        }
+        this.map = map;
+    }
+
+    public IndexMap getIndexMap() {
+        return map;
+    }
+
+    private static int toInt(final long indexValue) {
+        if (indexValue > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Index value " + indexValue
+                    + " exceeds the range of an IndexMap, use a LongIndexMap instead!");
+        }
+        return (int) indexValue;
+    }
+
+    @Override
+    public void put(final int key, final long indexValue) {
+        map.put(key, toInt(indexValue));
+    }
+
+    @Override
+    public long get(final int key) {
+        return map.get(key);
+    }
+
+    @Override
+    public long putAndGetPrevious(final int key, final long indexValue) {
+        return map.putAndGetPrevious(key, toInt(indexValue));
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void forEach(final LongIndexEntryConsumer consumer) {
+        map.forEach(consumer::accept);
+    }
+
+    @Override
+    public void ensureCapacity(final int keys) {
+        map.ensureCapacity(keys);
+    }
+
+    @Override
+    public long memoryUsageBytes() {
+        return map.memoryUsageBytes();
+    }
+
+    @Override
+    public boolean supportsOptimisticReads() {
+        return map.supportsOptimisticReads();
+    }
+
+    /**
+     * Closes the map, if it's {@link Closeable}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (map instanceof Closeable) {
+            ((Closeable) map).close();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.clevertap.stormdb.maps;
+
+/**
+ * Receives the entries of a {@link LongIndexMap}, see
+ * {@link LongIndexMap#forEach(LongIndexEntryConsumer)}.
+ */
+@FunctionalInterface
+public interface LongIndexEntryConsumer {
+
+    void accept(int key, long indexValue);
+}
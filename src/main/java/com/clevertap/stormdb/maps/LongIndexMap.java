@@ -0,0 +1,74 @@
+package com.clevertap.stormdb.maps;
+
+import com.clevertap.stormdb.StormDB;
+
+/**
+ * Like {@link IndexMap}, but with long index values, i.e. record indices, so that the data file
+ * and the WAL file of a database may hold more than {@link Integer#MAX_VALUE} records each.
+ * <p>
+ * StormDB keeps its index in one of these. An {@link IndexMap} is wrapped by
+ * {@link IntIndexMapAdapter}, which refuses index values beyond the int range.
+ */
+public interface LongIndexMap {
+
+    /**
+     * Key {@link StormDB#RESERVED_KEY_MARKER} is reserved and custom implementations must make
+     * sure reserved keys are not used.
+     *
+     * @param key        The key to be inserted
+     * @param indexValue The index mapping for the key, which is never negative
+     */
+    void put(int key, long indexValue);
+
+    /**
+     * @param key The key whose index value is to be retrieved.
+     * @return The index value for the key, or {@link StormDB#RESERVED_KEY_MARKER} if there's none
+     */
+    long get(int key);
+
+    /**
+     * See {@link IndexMap#putAndGetPrevious(int, int)}.
+     *
+     * @return The previous index value, or {@link StormDB#RESERVED_KEY_MARKER} if there was none
+     */
+    default long putAndGetPrevious(int key, long indexValue) {
+        final long previous = get(key);
+        put(key, indexValue);
+        return previous;
+    }
+
+    /**
+     * @return Size of the index.
+     */
+    int size();
+
+    /**
+     * See {@link IndexMap#forEach(IndexEntryConsumer)}.
+     *
+     * @throws UnsupportedOperationException If iterating isn't supported
+     */
+    default void forEach(LongIndexEntryConsumer consumer) {
+        throw new UnsupportedOperationException(getClass().getName()
+                + " doesn't support iterating its entries");
+    }
+
+    /**
+     * See {@link IndexMap#ensureCapacity(int)}.
+     */
+    default void ensureCapacity(int keys) {
+    }
+
+    /**
+     * See {@link IndexMap#memoryUsageBytes()}.
+     */
+    default long memoryUsageBytes() {
+        return -1;
+    }
+
+    /**
+     * See {@link IndexMap#supportsOptimisticReads()}.
+     */
+    default boolean supportsOptimisticReads() {
+        return false;
+    }
+}
@@ -0,0 +1,211 @@
+package com.clevertap.stormdb.maps;
+
+import com.clevertap.stormdb.StormDB;
+import com.clevertap.stormdb.internal.NativeMemory;
+import java.io.Closeable;
+
+/**
+ * An {@link IndexMap} which keeps its entries off the Java heap, so that an index of hundreds of
+ * millions of keys neither needs a huge heap, nor lengthens garbage collections.
+ * <p>
+ * The entries live in a single block of native memory: an open addressing hash table with linear
+ * probing, in which every slot is a long holding the key in its upper 32 bits and the index value
+ * in its lower 32 bits. A slot whose key is {@link StormDB#RESERVED_KEY_MARKER} is free, which is
+ * why that key can't be put. The table doubles once it's filled up to the load factor.
+ * <p>
+ * The memory is freed explicitly, rather than by the garbage collector: a table as soon as it's
+ * been replaced by a larger one, and the last one by {@link #close()}, which StormDB calls when
+ * it's closed. See {@link #memoryUsageBytes()} for how much is allocated.
+ * <p>
+ * Not thread safe. Since freed memory must never be read, lookups always take StormDB's read lock,
+ * see {@link #supportsOptimisticReads()}.
+ */
+public class OffHeapIndexMap implements IndexMap, Closeable {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 100_000;
+    private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+    private static final long MAX_SLOTS = 1L << 32;
+    private static final long FREE_SLOT = -1L; // RESERVED_KEY_MARKER in both halves.
+
+    private final float loadFactor;
+
+    private long address;
+    private long slots;
+    private long mask;
+    private int size;
+    private int resizeThreshold;
+
+    public OffHeapIndexMap() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * @param initialCapacity The number of keys to make room for up front
+     * @param loadFactor      How full the table may get before it doubles, in (0, 1)
+     */
+    public OffHeapIndexMap(final int initialCapacity, final float loadFactor) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Initial capacity cannot be less than 0");
+        }
+        if (!(loadFactor > 0 && loadFactor < 1)) {
+            throw new IllegalArgumentException("Load factor must be between 0 and 1, but was "
+                    + loadFactor);
+        }
+        this.loadFactor = loadFactor;
+        allocate(slotsFor(initialCapacity));
+    }
+
+    private static int hash(final int key) {
+        // The murmur3 finaliser, so that sequential keys are spread evenly.
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return The smallest power of two number of slots which holds the given number of keys
+     */
+    private long slotsFor(final long keys) {
+        final long needed = Math.max(2, (long) Math.ceil(keys / (double) loadFactor) + 1);
+        final long slots = Long.highestOneBit(needed - 1) << 1;
+        if (slots > MAX_SLOTS) {
+            throw new IllegalStateException("Cannot hold " + keys + " keys with a load factor of "
+                    + loadFactor);
+        }
+        return slots;
+    }
+
+    private void allocate(final long slots) {
+        final long bytes = slots * Long.BYTES;
+        address = NativeMemory.allocate(bytes);
+        NativeMemory.fill(address, bytes, (byte) 0xFF); // Every slot is free.
+        this.slots = slots;
+        mask = slots - 1;
+        resizeThreshold = (int) Math.min(Integer.MAX_VALUE, (long) (slots * (double) loadFactor));
+    }
+
+    private static int keyOf(final long slot) {
+        return (int) (slot >>> 32);
+    }
+
+    private static long slotOf(final int key, final int indexValue) {
+        return ((long) key << 32) | (indexValue & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return The address of the key's slot, or of the free slot where it would go
+     */
+    private long find(final long tableAddress, final long tableMask, final int key) {
+        long pos = hash(key) & tableMask;
+        while (true) {
+            final long slotAddress = tableAddress + pos * Long.BYTES;
+            final long slot = NativeMemory.getLong(slotAddress);
+            if (slot == FREE_SLOT || keyOf(slot) == key) {
+                return slotAddress;
+            }
+            pos = (pos + 1) & tableMask;
+        }
+    }
+
+    private void checkOpen() {
+        if (address == 0) {
+            throw new IllegalStateException("The index map is closed!");
+        }
+    }
+
+    @Override
+    public void put(final int key, final int indexValue) {
+        putAndGetPrevious(key, indexValue);
+    }
+
+    @Override
+    public int putAndGetPrevious(final int key, final int indexValue) {
+        checkOpen();
+        if (key == StormDB.RESERVED_KEY_MARKER) {
+            throw new IllegalArgumentException("Key " + key + " is reserved!");
+        }
+
+        final long slotAddress = find(address, mask, key);
+        final long slot = NativeMemory.getLong(slotAddress);
+        if (slot == FREE_SLOT) {
+            if (size == resizeThreshold) {
+                resize((long) size + 1);
+                return putAndGetPrevious(key, indexValue);
+            }
+            size++;
+        }
+        NativeMemory.putLong(slotAddress, slotOf(key, indexValue));
+        return slot == FREE_SLOT ? StormDB.RESERVED_KEY_MARKER : (int) slot;
+    }
+
+    @Override
+    public void ensureCapacity(final int keys) {
+        checkOpen();
+        if (keys > resizeThreshold) {
+            resize(keys);
+        }
+    }
+
+    /**
+     * Moves the entries to a new table, which holds at least the given number of keys.
+     */
+    private void resize(final long keys) {
+        final long oldAddress = address;
+        final long oldSlots = slots;
+        allocate(slotsFor(keys));
+        for (long i = 0; i < oldSlots; i++) {
+            final long slot = NativeMemory.getLong(oldAddress + i * Long.BYTES);
+            if (slot != FREE_SLOT) {
+                NativeMemory.putLong(find(address, mask, keyOf(slot)), slot);
+            }
+        }
+        NativeMemory.free(oldAddress);
+    }
+
+    @Override
+    public int get(final int key) {
+        checkOpen();
+        final long slot = NativeMemory.getLong(find(address, mask, key));
+        return slot == FREE_SLOT ? StormDB.RESERVED_KEY_MARKER : (int) slot;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(final IndexEntryConsumer consumer) {
+        checkOpen();
+        for (long i = 0; i < slots; i++) {
+            final long slot = NativeMemory.getLong(address + i * Long.BYTES);
+            if (slot != FREE_SLOT) {
+                consumer.accept(keyOf(slot), (int) slot);
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes of native memory held by this map, or 0 once it's closed
+     */
+    @Override
+    public long memoryUsageBytes() {
+        return address == 0 ? 0 : slots * Long.BYTES;
+    }
+
+    /**
+     * Frees the native memory. The map can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (address != 0) {
+            NativeMemory.free(address);
+            address = 0;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.clevertap.stormdb.maps;
+
+import com.clevertap.stormdb.StormDB;
+import java.util.Arrays;
+
+/**
+ * A {@link LongIndexMap} for databases whose files hold more than {@link Integer#MAX_VALUE}
+ * records. Index values are packed into 40 bits, which covers a trillion records, so that every
+ * slot takes 9 bytes: a 4 byte key, and the index value split into a 4 byte and a 1 byte half.
+ * <p>
+ * It's an open addressing hash table with linear probing, which doubles once it's filled up to
+ * the load factor. A slot whose key is {@link StormDB#RESERVED_KEY_MARKER} is free, which is why
+ * that key can't be put.
+ * <p>
+ * Not thread safe, apart from {@link #supportsOptimisticReads()}.
+ */
+public class PackedLongIndexMap implements LongIndexMap {
+
+    public static final long MAX_INDEX_VALUE = (1L << 40) - 1;
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 100_000;
+    private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+    private static final int MAX_SLOTS = 1 << 30;
+
+    private final float loadFactor;
+
+    private Table table;
+    private int size;
+    private int resizeThreshold;
+
+    public PackedLongIndexMap() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * @param initialCapacity The number of keys to make room for up front
+     * @param loadFactor      How full the table may get before it doubles, in (0, 1)
+     */
+    public PackedLongIndexMap(final int initialCapacity, final float loadFactor) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Initial capacity cannot be less than 0");
+        }
+        if (!(loadFactor > 0 && loadFactor < 1)) {
+            throw new IllegalArgumentException("Load factor must be between 0 and 1, but was "
+                    + loadFactor);
+        }
+        this.loadFactor = loadFactor;
+        final long slots = slotsFor(initialCapacity);
+        if (slots > MAX_SLOTS) {
+            throw new IllegalArgumentException("Initial capacity " + initialCapacity
+                    + " is too large for a load factor of " + loadFactor);
+        }
+        setTable(new Table((int) slots));
+    }
+
+    private static int hash(final int key) {
+        // The murmur3 finaliser, so that sequential keys are spread evenly.
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return The smallest power of two number of slots which holds the given number of keys
+     */
+    private long slotsFor(final long keys) {
+        final long needed = Math.max(2, (long) Math.ceil(keys / (double) loadFactor) + 1);
+        return Long.highestOneBit(needed - 1) << 1;
+    }
+
+    private void setTable(final Table table) {
+        this.table = table;
+        resizeThreshold = (int) (table.keys.length * (double) loadFactor);
+    }
+
+    @Override
+    public void put(final int key, final long indexValue) {
+        putAndGetPrevious(key, indexValue);
+    }
+
+    @Override
+    public long putAndGetPrevious(final int key, final long indexValue) {
+        if (key == StormDB.RESERVED_KEY_MARKER) {
+            throw new IllegalArgumentException("Key " + key + " is reserved!");
+        }
+        if (indexValue < 0 || indexValue > MAX_INDEX_VALUE) {
+            throw new IllegalArgumentException("Index value " + indexValue
+                    + " is out of range!");
+        }
+
+        final int pos = table.find(key);
+        if (table.keys[pos] == key) {
+            final long previous = table.valueAt(pos);
+            table.setValue(pos, indexValue);
+            return previous;
+        }
+        if (size == resizeThreshold) {
+            resize((long) size + 1);
+            return putAndGetPrevious(key, indexValue);
+        }
+        table.setValue(pos, indexValue);
+        table.keys[pos] = key;
+        size++;
+        return StormDB.RESERVED_KEY_MARKER;
+    }
+
+    @Override
+    public void ensureCapacity(final int keys) {
+        if (keys > resizeThreshold) {
+            resize(keys);
+        }
+    }
+
+    /**
+     * Moves the entries to a new table, which holds at least the given number of keys.
+     */
+    private void resize(final long keys) {
+        final long slots = slotsFor(keys);
+        if (slots > MAX_SLOTS) {
+            throw new IllegalStateException("Cannot hold " + keys + " keys with a load factor of "
+                    + loadFactor);
+        }
+        final Table old = table;
+        final Table resized = new Table((int) slots);
+        for (int i = 0; i < old.keys.length; i++) {
+            final int key = old.keys[i];
+            if (key != StormDB.RESERVED_KEY_MARKER) {
+                final int pos = resized.find(key);
+                resized.keys[pos] = key;
+                resized.lows[pos] = old.lows[i];
+                resized.highs[pos] = old.highs[i];
+            }
+        }
+        setTable(resized);
+    }
+
+    @Override
+    public long get(final int key) {
+        final Table current = table;
+        final int pos = current.find(key);
+        return current.keys[pos] == key && key != StormDB.RESERVED_KEY_MARKER
+                ? current.valueAt(pos) : StormDB.RESERVED_KEY_MARKER;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(final LongIndexEntryConsumer consumer) {
+        final int[] keys = table.keys;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != StormDB.RESERVED_KEY_MARKER) {
+                consumer.accept(keys[i], table.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * @return The bytes of the key, low and high arrays
+     */
+    @Override
+    public long memoryUsageBytes() {
+        return (long) table.keys.length * (Integer.BYTES * 2 + 1);
+    }
+
+    /**
+     * Lookups probe at most every slot of the table they saw, which is only ever replaced as a
+     * whole. A racing put may at worst make them see a key before its index value.
+     */
+    @Override
+    public boolean supportsOptimisticReads() {
+        return true;
+    }
+
+    private static final class Table {
+
+        private final int[] keys;
+        private final int[] lows;
+        private final byte[] highs;
+        private final int mask;
+
+        private Table(final int slots) {
+            keys = new int[slots];
+            Arrays.fill(keys, StormDB.RESERVED_KEY_MARKER);
+            lows = new int[slots];
+            highs = new byte[slots];
+            mask = slots - 1;
+        }
+
+        /**
+         * @return The position of the key's slot, or of the free slot where it would go, or of
+         * some other slot if a racing writer filled the table up
+         */
+        private int find(final int key) {
+            int pos = hash(key) & mask;
+            for (int probes = 0; probes < keys.length; probes++) {
+                final int slotKey = keys[pos];
+                if (slotKey == StormDB.RESERVED_KEY_MARKER || slotKey == key) {
+                    return pos;
+                }
+                pos = (pos + 1) & mask;
+            }
+            return pos;
+        }
+
+        private long valueAt(final int pos) {
+            return ((highs[pos] & 0xFFL) << 32) | (lows[pos] & 0xFFFFFFFFL);
+        }
+
+        private void setValue(final int pos, final long indexValue) {
+            lows[pos] = (int) indexValue;
+            highs[pos] = (byte) (indexValue >>> 32);
+        }
+    }
+}
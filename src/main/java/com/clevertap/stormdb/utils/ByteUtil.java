@@ -1,5 +1,6 @@
 package com.clevertap.stormdb.utils;
 
+import java.nio.ByteBuffer;
 import java.util.Deque;
 
 /**
@@ -24,6 +25,27 @@ public class ByteUtil {
                 | data[offset + 3] & 0xFF;
     }
 
+    /**
+     * Copies bytes from an absolute index of a buffer. Neither the buffer's position is used, nor
+     * is a view of the buffer allocated, so it's safe to call concurrently with other readers.
+     *
+     * @param src        The buffer to copy from
+     * @param srcIndex   The index of the first byte in the buffer
+     * @param dest       The array to copy to
+     * @param destOffset The offset of the first byte in the array
+     * @param length     The number of bytes to copy
+     */
+    public static void copy(final ByteBuffer src, final int srcIndex, final byte[] dest,
+            final int destOffset, final int length) {
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + srcIndex, dest, destOffset, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            dest[destOffset + i] = src.get(srcIndex + i);
+        }
+    }
+
     public static boolean arrayEquals(byte[] primitiveBytes, Deque<Byte> bytes) {
         if (bytes == null || primitiveBytes == null) {
             return false;
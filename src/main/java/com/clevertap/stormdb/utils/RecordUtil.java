@@ -34,11 +34,11 @@ public class RecordUtil {
      * @param address The absolute record address
      * @return An index for addressing this record
      */
-    public static int addressToIndex(final int recordSize, long address) {
+    public static long addressToIndex(final int recordSize, long address) {
         final int blockSize = blockSizeWithTrailer(recordSize);
         // Account for the sync marker kv pair before the start of the current block.
         address -= recordSize;
-        final int blocksBefore = (int) (address / blockSize);
+        final long blocksBefore = address / blockSize;
         final int recordInCurrentBlock = (int) ((address % blockSize) / recordSize);
         return blocksBefore * RECORDS_PER_BLOCK + recordInCurrentBlock;
     }
@@ -5,6 +5,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertSame;
 
+import com.clevertap.stormdb.utils.RecordUtil;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -18,6 +19,7 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
 /**
  * Created by Jude Pereira, at 16:02 on 16/07/2020.
@@ -174,4 +176,91 @@ class BlockUtilTest {
                     message);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes WAL buffers of the given sizes, each followed by the given garbage.
+     *
+     * @return The bytes of the valid blocks only
+     */
+    private byte[] writeWal(final File file, final int valueSize, final int[] flushes,
+            final byte[] garbage, final WalBlockTable expectedBlocks) throws IOException {
+        dbConfig.valueSize = valueSize;
+        final Buffer buffer = new Buffer(dbConfig, false);
+        final int blockSize = RecordUtil.blockSizeWithTrailer(valueSize + Config.KEY_SIZE);
+        final ByteArrayOutputStream valid = new ByteArrayOutputStream();
+        long logicalLength = 0;
+        int key = 0;
+        try (final FileOutputStream out = new FileOutputStream(file)) {
+            for (int records : flushes) {
+                for (int i = 0; i < records; i++) {
+                    final byte[] value = new byte[valueSize];
+                    ThreadLocalRandom.current().nextBytes(value);
+                    buffer.add(key++, value, 0);
+                }
+                buffer.sealPartial();
+                if (buffer.getPartialBlockRecords() != 0) {
+                    expectedBlocks.addPartialBlock(
+                            (int) ((logicalLength + buffer.getLogicalSize()) / blockSize) - 1,
+                            buffer.getPartialBlockRecords());
+                }
+                logicalLength += buffer.getLogicalSize();
+                buffer.flush(valid);
+                buffer.flush(out);
+                buffer.clear();
+                out.write(garbage);
+            }
+        }
+        return valid.toByteArray();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 8, 100})
+    void verifyWalWithPartialBlocks(final int valueSize) throws IOException {
+        final File tempFile = Files.createTempFile("stormdb_", "_block_util").toFile();
+        tempFile.deleteOnExit();
+
+        final int[] flushes = {1, 130, 128, 127, 3};
+        final WalBlockTable expected = new WalBlockTable(valueSize + Config.KEY_SIZE);
+        writeWal(tempFile, valueSize, flushes, new byte[0], expected);
+        assertEquals(4, expected.getPartialBlockCount());
+
+        final WalBlockTable actual = new WalBlockTable(valueSize + Config.KEY_SIZE);
+        assertSame(tempFile, BlockUtil.verifyBlocks(tempFile, valueSize, actual));
+        assertEquals(expected.getPartialBlockCount(), actual.getPartialBlockCount());
+        assertEquals(expected.toLogicalLength(tempFile.length()),
+                actual.toLogicalLength(tempFile.length()));
+        for (int block = 0; block < 8; block++) {
+            assertEquals(expected.recordsInBlock(block), actual.recordsInBlock(block));
+        }
+
+        // Data files never contain partial blocks, so they're dropped.
+        final File recovered = BlockUtil.verifyBlocks(tempFile, valueSize);
+        final int blockSize = RecordUtil.blockSizeWithTrailer(valueSize + Config.KEY_SIZE);
+        assertEquals(2L * blockSize, recovered.length());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void recoverWalWithPartialBlocks(final boolean randomizeGarbage) throws IOException {
+        final int valueSize = 16;
+        final File tempFile = Files.createTempFile("stormdb_", "_block_util").toFile();
+        tempFile.deleteOnExit();
+
+        final byte[] garbage = new byte[100];
+        if (randomizeGarbage) {
+            ThreadLocalRandom.current().nextBytes(garbage);
+        }
+
+        final int[] flushes = {1, 130, 128, 127, 3, 50};
+        final WalBlockTable expected = new WalBlockTable(valueSize + Config.KEY_SIZE);
+        final byte[] validBlocks = writeWal(tempFile, valueSize, flushes, garbage, expected);
+
+        final WalBlockTable actual = new WalBlockTable(valueSize + Config.KEY_SIZE);
+        final File recovered = BlockUtil.verifyBlocks(tempFile, valueSize, actual);
+        assertNotSame(tempFile, recovered);
+        assertArrayEquals(validBlocks, Files.readAllBytes(recovered.toPath()));
+        assertEquals(expected.getPartialBlockCount(), actual.getPartialBlockCount());
+        assertEquals(expected.toLogicalLength(recovered.length()),
+                actual.toLogicalLength(recovered.length()));
+    }
+}
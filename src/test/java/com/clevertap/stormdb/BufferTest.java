@@ -6,7 +6,6 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
-import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -31,6 +30,7 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.concurrent.ThreadLocalRandom;
@@ -184,10 +184,16 @@ class BufferTest {
 
     @Test
     void verifyArrayNotNull() throws ValueSizeTooLargeException {
-        final Buffer buf = newWriteBuffer(100);
+        final Buffer buf = newReadBuffer(100);
         assertNotNull(buf.array());
     }
 
+    @Test
+    void verifyWriteBufferIsDirect() throws ValueSizeTooLargeException {
+        assertTrue(newWriteBuffer(100).isDirect());
+        assertFalse(newReadBuffer(100).isDirect());
+    }
+
     @Test
     void verifyEmptyFlush() throws ValueSizeTooLargeException, IOException {
         final Buffer buf = newWriteBuffer(100);
@@ -209,11 +215,44 @@ class BufferTest {
     }
 
     @Test
-    void clear() {
+    void clear() throws IOException {
         final Buffer buffer = newWriteBuffer(10);
-        final byte[] oldArray = buffer.array();
+        final byte[] value = new byte[10];
+        Arrays.fill(value, (byte) 7);
+        buffer.add(1, value, 0);
+        final ByteArrayOutputStream first = new ByteArrayOutputStream();
+        buffer.flush(first);
+
         buffer.clear();
-        assertNotSame(oldArray, buffer.array());
+        assertFalse(buffer.isDirty());
+
+        // The buffer is reused, and produces exactly the same block again.
+        buffer.add(1, value, 0);
+        final ByteArrayOutputStream second = new ByteArrayOutputStream();
+        buffer.flush(second);
+        assertArrayEquals(first.toByteArray(), second.toByteArray());
+    }
+
+    @Test
+    void flushToChannel() throws IOException {
+        final Buffer buffer = newWriteBuffer(10);
+        final Buffer expected = newWriteBuffer(10);
+        for (int i = 0; i < Config.RECORDS_PER_BLOCK + 3; i++) {
+            final byte[] value = new byte[10];
+            ThreadLocalRandom.current().nextBytes(value);
+            buffer.add(i, value, 0);
+            expected.add(i, value, 0);
+        }
+
+        final ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+        expected.flush(expectedOut);
+
+        final Path tmpPath = Files.createTempFile("stormdb_", "_buffer");
+        tmpPath.toFile().deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(tmpPath.toFile())) {
+            assertEquals(expectedOut.size(), buffer.flush(out.getChannel()));
+        }
+        assertArrayEquals(expectedOut.toByteArray(), Files.readAllBytes(tmpPath));
     }
 
     private static Stream<Arguments> provideIteratorTestCases() {
@@ -396,4 +435,151 @@ class BufferTest {
         assertTrue(buffer.update(10, new byte[28], 0, 32)); // 32 because first will be RESERVED_KEY_MARKER
         assertFalse(buffer.update(10, new byte[28], 0, 64));
     }
-}
\ No newline at end of file
+
+    @Test
+    void updateKeepsClosedBlocksValid() throws IOException {
+        final int valueSize = 8;
+        final int recordSize = valueSize + KEY_SIZE;
+        final Buffer buffer = newWriteBuffer(valueSize);
+        for (int i = 0; i < Config.RECORDS_PER_BLOCK + 3; i++) {
+            buffer.add(i, new byte[valueSize], 0);
+        }
+
+        // Records in the closed first block, and in the open second one.
+        final byte[] value = {1, 2, 3, 4, 5, 6, 7, 8};
+        assertTrue(buffer.update(5, value, 0, (int) RecordUtil.indexToAddress(recordSize, 5)));
+        assertTrue(buffer.update(Config.RECORDS_PER_BLOCK + 1, value, 0, (int) RecordUtil
+                .indexToAddress(recordSize, Config.RECORDS_PER_BLOCK + 1)));
+
+        final File file = Files.createTempFile("stormdb_", "_wal").toFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            buffer.flush(out);
+        }
+        final long length = file.length();
+        assertSame(file, BlockUtil.verifyBlocks(file, valueSize));
+        assertEquals(length, file.length());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4, 8, 100})
+    void sealPartial(final int valueSize) throws IOException {
+        final int recordSize = valueSize + KEY_SIZE;
+        final Buffer buffer = newWriteBuffer(valueSize);
+        final int records = Config.RECORDS_PER_BLOCK + 3;
+        for (int i = 0; i < records; i++) {
+            buffer.add(i, new byte[valueSize], 0);
+        }
+
+        final int blockSize = RecordUtil.blockSizeWithTrailer(recordSize);
+        final int expectedBytes = blockSize + WalBlockTable.partialBlockSize(recordSize, 3);
+        assertEquals(expectedBytes, buffer.sealPartial());
+        assertEquals(3, buffer.getPartialBlockRecords());
+        assertEquals(2 * blockSize, buffer.getLogicalSize());
+
+        // Sealing again, or flushing, doesn't pad the partial block.
+        assertEquals(expectedBytes, buffer.seal());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(expectedBytes, buffer.flush(out));
+
+        final ByteBuffer written = ByteBuffer.wrap(out.toByteArray());
+        written.position(blockSize);
+        final byte[] marker = new byte[recordSize];
+        written.get(marker);
+        assertArrayEquals(Buffer.getPartialSyncMarker(valueSize), marker);
+        written.position(expectedBytes - WalBlockTable.PARTIAL_BLOCK_TRAILER_SIZE);
+        assertEquals(3, written.getInt());
+
+        // Only the real records are iterated over.
+        final Enumeration<ByteBuffer> iterator = buffer.snapshotIterator(false);
+        int count = 0;
+        while (iterator.hasMoreElements()) {
+            assertEquals(count++, iterator.nextElement().getInt());
+        }
+        assertEquals(records, count);
+
+        buffer.clear();
+        assertEquals(0, buffer.getPartialBlockRecords());
+        buffer.add(1, new byte[valueSize], 0);
+        assertEquals(blockSize, buffer.flush(new ByteArrayOutputStream()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void readFromWalFile(final boolean reverse) throws IOException {
+        final int valueSize = 8;
+        final int recordSize = valueSize + KEY_SIZE;
+        final int blockSize = RecordUtil.blockSizeWithTrailer(recordSize);
+        dbConfig.maxBufferSize = 4 * Config.RECORDS_PER_BLOCK * recordSize;
+        final Buffer buffer = newWriteBuffer(valueSize);
+        final Buffer reader = newReadBuffer(valueSize);
+        dbConfig.maxBufferSize = new Config().getMaxBufferSize();
+
+        final Path tmpPath = Files.createTempFile("stormdb_", "_wal");
+        tmpPath.toFile().deleteOnExit();
+        final WalBlockTable blocks = new WalBlockTable(recordSize);
+        final ArrayList<Integer> expectedKeys = new ArrayList<>();
+        final ArrayList<Long> recordIndices = new ArrayList<>();
+        final ArrayList<Long> physicalFlushEnds = new ArrayList<>();
+        final ArrayList<Long> logicalFlushEnds = new ArrayList<>();
+
+        // Buffers of varying sizes, some ending with a partial block, some not.
+        final int[] flushes = {1, 127, 128, 129, 300, 512, 5, 256, 1};
+        long logicalLength = 0;
+        int key = 0;
+        try (FileOutputStream out = new FileOutputStream(tmpPath.toFile())) {
+            for (int records : flushes) {
+                for (int i = 0; i < records; i++) {
+                    final int address = buffer.add(key,
+                            ByteBuffer.allocate(valueSize).putLong(key).array(), 0);
+                    recordIndices.add(RecordUtil.addressToIndex(recordSize,
+                            logicalLength + address));
+                    expectedKeys.add(key++);
+                }
+                buffer.sealPartial();
+                if (buffer.getPartialBlockRecords() != 0) {
+                    blocks.addPartialBlock(
+                            (int) ((logicalLength + buffer.getLogicalSize()) / blockSize) - 1,
+                            buffer.getPartialBlockRecords());
+                }
+                logicalLength += buffer.getLogicalSize();
+                buffer.flush(out.getChannel());
+                buffer.clear();
+                physicalFlushEnds.add(out.getChannel().position());
+                logicalFlushEnds.add(logicalLength);
+            }
+        }
+        assertEquals(logicalLength, blocks.toLogicalLength(tmpPath.toFile().length()));
+
+        // Every prefix which ends with a block translates, but offsets within blocks don't.
+        assertEquals(0, blocks.toLogical(0));
+        for (int i = 0; i < physicalFlushEnds.size(); i++) {
+            assertEquals(logicalFlushEnds.get(i), blocks.toLogical(physicalFlushEnds.get(i)));
+            assertEquals(-1, blocks.toLogical(physicalFlushEnds.get(i) - recordSize));
+        }
+
+        final ArrayList<Integer> actualKeys = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(tmpPath.toFile(), "r")) {
+            reader.readFromWalFile(raf, blocks, logicalLength, reverse, record -> {
+                final int k = record.getInt();
+                assertEquals(k, record.getLong());
+                actualKeys.add(k);
+            });
+
+            // Random access through the table.
+            long expectedIndex = 0;
+            for (int k = 0; k < key; k++) {
+                final long recordIndex = recordIndices.get(k);
+                // The same index that's derived when the index is rebuilt from the file.
+                expectedIndex = blocks.nextRecordIndex(expectedIndex);
+                assertEquals(expectedIndex++, recordIndex);
+                raf.seek(blocks.toPhysical(RecordUtil.indexToAddress(recordSize, recordIndex)));
+                assertEquals(k, raf.readInt());
+            }
+        }
+
+        if (reverse) {
+            Collections.reverse(expectedKeys);
+        }
+        assertEquals(expectedKeys, actualKeys);
+    }
+}
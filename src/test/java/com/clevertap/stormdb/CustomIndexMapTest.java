@@ -1,6 +1,7 @@
 package com.clevertap.stormdb;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.clevertap.stormdb.exceptions.StormDBException;
 import com.clevertap.stormdb.maps.IndexMap;
@@ -62,4 +63,80 @@ class CustomIndexMapTest {
 
     }
 
+    @Test
+    void testWritesFindTheKeyOnce() throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int valueSize = 8;
+        final HashMap<Integer, Integer> kvCache = new HashMap<>();
+        // put, get, putAndGetPrevious, ensureCapacity and its largest hint.
+        final int[] activityCount = {0, 0, 0, 0, 0};
+        final IndexMap index = new IndexMap() {
+            @Override
+            public void put(int key, int indexValue) {
+                activityCount[0]++;
+                kvCache.put(key, indexValue);
+            }
+
+            @Override
+            public int get(int key) {
+                activityCount[1]++;
+                return kvCache.getOrDefault(key, StormDB.RESERVED_KEY_MARKER);
+            }
+
+            @Override
+            public int putAndGetPrevious(int key, int indexValue) {
+                activityCount[2]++;
+                final Integer previous = kvCache.put(key, indexValue);
+                return previous == null ? StormDB.RESERVED_KEY_MARKER : previous;
+            }
+
+            @Override
+            public void ensureCapacity(int keys) {
+                activityCount[3]++;
+                activityCount[4] = Math.max(activityCount[4], keys);
+            }
+
+            @Override
+            public int size() {
+                return kvCache.size();
+            }
+        };
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled()
+                .withIndexSnapshotsDisabled()
+                .withIndexMap(index);
+
+        StormDB db = builder.build();
+        final int keys = 1000;
+        for (int key = 0; key < keys; key++) {
+            db.put(key, ByteBuffer.allocate(valueSize).putLong(key).array());
+        }
+        assertEquals(keys, activityCount[2]);
+        assertEquals(0, activityCount[0]);
+        assertEquals(0, activityCount[1]);
+
+        // Updating a record which is still in the write buffer points the key back at it.
+        db.put(keys - 1, ByteBuffer.allocate(valueSize).putLong(-1).array());
+        assertEquals(keys + 1, activityCount[2]);
+        assertEquals(1, activityCount[0]);
+        assertEquals(-1, ByteBuffer.wrap(db.randomGet(keys - 1)).getLong());
+        db.compact();
+        db.close();
+
+        // Rebuilding the index makes room for every key up front.
+        kvCache.clear();
+        activityCount[3] = 0;
+        activityCount[4] = 0;
+        db = builder.build();
+        assertEquals(1, activityCount[3]);
+        assertTrue(activityCount[4] >= keys);
+        assertEquals(keys, db.size());
+        for (int key = 0; key < keys - 1; key++) {
+            assertEquals(key, ByteBuffer.wrap(db.randomGet(key)).getLong());
+        }
+        db.close();
+    }
+
 }
@@ -0,0 +1,423 @@
+package com.clevertap.stormdb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.clevertap.stormdb.exceptions.IncorrectConfigException;
+import com.clevertap.stormdb.exceptions.StormDBException;
+import com.clevertap.stormdb.utils.RecordUtil;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class DataSegmentsTest {
+
+    private static final int VALUE_SIZE = 8;
+    private static final int BLOCK_SIZE = RecordUtil.blockSizeWithTrailer(
+            VALUE_SIZE + Config.KEY_SIZE);
+    /**
+     * Four blocks, i.e. 512 records.
+     */
+    private static final long SEGMENT_SIZE = 4L * BLOCK_SIZE;
+    private static final int RECORDS_PER_SEGMENT = 4 * Config.RECORDS_PER_BLOCK;
+
+    private static StormDBBuilder builder(final Path path) {
+        return new StormDBBuilder()
+                .withDbDir(path)
+                .withValueSize(VALUE_SIZE)
+                .withAutoCompactDisabled()
+                .withDataSegmentSize(SEGMENT_SIZE);
+    }
+
+    private static byte[] value(final long v) {
+        return ByteBuffer.allocate(VALUE_SIZE).putLong(v).array();
+    }
+
+    private static long toLong(final byte[] value) {
+        return ByteBuffer.wrap(value).getLong();
+    }
+
+    private static Set<String> segmentFiles(final Path path) {
+        final Set<String> files = new HashSet<>();
+        for (File file : path.toFile().listFiles()) {
+            if (file.getName().matches("data\\.\\d+")) {
+                files.add(file.getName());
+            }
+        }
+        return files;
+    }
+
+    private static Set<String> setOf(final String... names) {
+        return Stream.of(names).collect(Collectors.toSet());
+    }
+
+    private static void copyDir(final Path from, final Path to) throws IOException {
+        Files.createDirectories(to);
+        for (File file : from.toFile().listFiles()) {
+            Files.copy(file.toPath(), to.resolve(file.getName()),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void verify(final StormDB db, final Map<Integer, Long> expected)
+            throws IOException, StormDBException {
+        assertEquals(expected.size(), db.size());
+
+        final int[] keys = new int[expected.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), toLong(db.randomGet(entry.getKey())),
+                    "key=" + entry.getKey());
+            keys[i++] = entry.getKey();
+        }
+        final byte[] values = new byte[keys.length * VALUE_SIZE];
+        final BitSet missing = db.multiGet(keys, values, VALUE_SIZE);
+        assertTrue(missing.isEmpty());
+        for (i = 0; i < keys.length; i++) {
+            assertEquals((long) expected.get(keys[i]),
+                    ByteBuffer.wrap(values, i * VALUE_SIZE, VALUE_SIZE).getLong());
+        }
+
+        final Map<Integer, Long> iterated = new HashMap<>();
+        db.iterate((key, data, offset) -> assertNull(iterated.put(key,
+                ByteBuffer.wrap(data, offset, VALUE_SIZE).getLong())));
+        assertEquals(expected, iterated);
+
+        final Map<Integer, Long> parallel = new ConcurrentHashMap<>();
+        db.parallelIterate(4, (key, data, offset) -> assertNull(parallel.put(key,
+                ByteBuffer.wrap(data, offset, VALUE_SIZE).getLong())));
+        assertEquals(expected, parallel);
+
+        final Map<Integer, Long> cursored = new HashMap<>();
+        try (StormDBCursor cursor = db.cursor()) {
+            final ByteBuffer value = ByteBuffer.allocate(VALUE_SIZE);
+            while (cursor.next()) {
+                value.clear();
+                cursor.value(value);
+                assertNull(cursored.put(cursor.key(), value.getLong(0)));
+            }
+        }
+        assertEquals(expected, cursored);
+
+        final Map<Integer, Long> blocks = new HashMap<>();
+        db.iterateBlocks((data, offset, records, live) -> {
+            for (int r = 0; r < records; r++) {
+                if ((live[r >>> 6] & (1L << r)) != 0) {
+                    final ByteBuffer record = ByteBuffer.wrap(data,
+                            offset + r * (VALUE_SIZE + Config.KEY_SIZE),
+                            VALUE_SIZE + Config.KEY_SIZE);
+                    assertNull(blocks.put(record.getInt(), record.getLong()));
+                }
+            }
+        });
+        assertEquals(expected, blocks);
+
+        try (Stream<StormDBEntry> stream = db.stream()) {
+            final Map<Integer, Long> streamed = stream.parallel().collect(Collectors.toMap(
+                    StormDBEntry::getKey, entry -> toLong(entry.getValue())));
+            assertEquals(expected, streamed);
+        }
+    }
+
+    @Test
+    void testRandomWorkload() throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final Random random = new Random(42);
+        final Map<Integer, Long> expected = new HashMap<>();
+        StormDB db = builder(path).build();
+
+        for (int round = 0; round < 30; round++) {
+            // A mix of rounds which touch a few hot keys, and rounds which touch all of them.
+            final int keyRange = round % 3 == 0 ? 6000 : 300;
+            for (int i = 0; i < 1500; i++) {
+                final int key = random.nextInt(keyRange);
+                final long v = random.nextLong();
+                db.put(key, value(v));
+                expected.put(key, v);
+            }
+            if (round % 5 == 4) {
+                verify(db, expected);
+            }
+            db.compact();
+        }
+        for (int key = 0; key < 100; key++) {
+            db.put(key, value(-key));
+            expected.put(key, (long) -key);
+        }
+        verify(db, expected);
+        // Only the segments which were mostly garbage were rewritten along the way.
+        assertTrue(segmentFiles(path).size() < 30);
+        db.close();
+
+        // Loaded from the index snapshot, and then rebuilt from the files.
+        for (int parallelism : new int[]{0, 1, 4}) {
+            final StormDBBuilder builder = builder(path);
+            if (parallelism > 0) {
+                builder.withIndexSnapshotsDisabled().withIndexRebuildParallelism(parallelism);
+            }
+            db = builder.build();
+            verify(db, expected);
+
+            // The dead records are tracked, whichever way the index was built.
+            for (int key = 0; key < 6000; key += 7) {
+                db.put(key, value(key));
+                expected.put(key, (long) key);
+            }
+            db.compact();
+            verify(db, expected);
+            db.close();
+        }
+    }
+
+    @Test
+    void testCompactionWhileWriting() throws IOException, StormDBException,
+            InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final StormDB db = builder(path)
+                .withMaxBufferSize(4 * 1024) // Many small compactions.
+                .build();
+        final int keys = 5000;
+        final long[] latest = new long[keys];
+        for (int key = 0; key < keys; key++) {
+            db.put(key, value(key));
+            latest[key] = key;
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread compactor = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    db.compact();
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        compactor.start();
+
+        final Random random = new Random(7);
+        try {
+            for (int i = 0; i < 100_000; i++) {
+                final int key = random.nextInt(keys);
+                if (random.nextBoolean()) {
+                    latest[key] = random.nextLong();
+                    db.put(key, value(latest[key]));
+                } else {
+                    assertEquals(latest[key], toLong(db.randomGet(key)), "key=" + key);
+                }
+            }
+        } finally {
+            done.set(true);
+            compactor.join();
+        }
+        assertNull(failure.get());
+
+        final Map<Integer, Long> expected = new HashMap<>();
+        for (int key = 0; key < keys; key++) {
+            expected.put(key, latest[key]);
+        }
+        verify(db, expected);
+        db.compact();
+        verify(db, expected);
+        db.close();
+    }
+
+    @Test
+    void testOnlyGarbageSegmentsAreRewritten() throws IOException, StormDBException,
+            InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final StormDB db = builder(path).build();
+        final int keys = 4 * RECORDS_PER_SEGMENT;
+        for (int key = 0; key < keys; key++) {
+            db.put(key, value(key));
+        }
+        db.compact();
+        assertEquals(setOf("data.0", "data.1", "data.2", "data.3"), segmentFiles(path));
+        assertFalse(new File(path.toFile(), "data").exists());
+
+        // The WAL file is read newest first, so the segment in the first slot holds the last
+        // keys, more than half of which are now updated.
+        for (int key = keys - 1; key >= 1700; key--) {
+            db.put(key, value(-key));
+        }
+        db.compact();
+        assertEquals(setOf("data.1", "data.2", "data.3", "data.4"), segmentFiles(path));
+        for (String name : new String[]{"data.1", "data.2", "data.3"}) {
+            assertEquals(SEGMENT_SIZE, new File(path.toFile(), name).length());
+        }
+
+        // Hot keys first: the key which was written last leads the new segment.
+        try (RandomAccessFile in = new RandomAccessFile(new File(path.toFile(), "data.4"), "r")) {
+            // Past the sync marker which begins the block.
+            in.seek(VALUE_SIZE + Config.KEY_SIZE);
+            assertEquals(1700, in.readInt());
+        }
+
+        final Map<Integer, Long> expected = new HashMap<>();
+        for (int key = 0; key < keys; key++) {
+            expected.put(key, key >= 1700 ? -key : (long) key);
+        }
+        verify(db, expected);
+        db.close();
+    }
+
+    /**
+     * Prepares a database whose next compaction rewrites a single segment, and copies it to the
+     * "before" directory. Then, the compaction is run in the "after" directory.
+     */
+    private static Map<Integer, Long> prepareCompaction(final Path before, final Path after)
+            throws IOException, InterruptedException {
+        StormDB db = builder(after).withIndexSnapshotsDisabled().build();
+        final Map<Integer, Long> expected = new HashMap<>();
+        final int keys = 4 * RECORDS_PER_SEGMENT;
+        for (int key = 0; key < keys; key++) {
+            db.put(key, value(key));
+            expected.put(key, (long) key);
+        }
+        db.compact();
+        for (int key = keys - 1; key >= 1700; key--) {
+            db.put(key, value(-key));
+            expected.put(key, (long) -key);
+        }
+        db.close();
+        copyDir(after, before);
+
+        db = builder(after).withIndexSnapshotsDisabled().build();
+        db.compact();
+        db.close();
+        assertEquals(setOf("data.1", "data.2", "data.3", "data.4"), segmentFiles(after));
+        return expected;
+    }
+
+    @Test
+    void testInterruptedCommitRollsForward() throws IOException, StormDBException,
+            InterruptedException {
+        final Path before = Files.createTempDirectory("stormdb");
+        final Path path = Files.createTempDirectory("stormdb");
+        final Map<Integer, Long> expected = prepareCompaction(before, path);
+
+        // The WAL file was replaced, but the manifest wasn't yet.
+        Files.move(path.resolve(DataSegments.FILE_NAME),
+                path.resolve(DataSegments.FILE_NAME + ".next"));
+        Files.copy(before.resolve(DataSegments.FILE_NAME), path.resolve(DataSegments.FILE_NAME));
+        Files.copy(before.resolve("data.0"), path.resolve("data.0"));
+
+        final StormDB db = builder(path).build();
+        assertEquals(setOf("data.1", "data.2", "data.3", "data.4"), segmentFiles(path));
+        assertFalse(new File(path.toFile(), DataSegments.FILE_NAME + ".next").exists());
+        verify(db, expected);
+        db.close();
+    }
+
+    @Test
+    void testInterruptedCommitRollsBack() throws IOException, StormDBException,
+            InterruptedException {
+        final Path before = Files.createTempDirectory("stormdb");
+        final Path after = Files.createTempDirectory("stormdb");
+        final Map<Integer, Long> expected = prepareCompaction(before, after);
+
+        // The next manifest and the new segment were written, but the WAL file wasn't replaced.
+        Files.copy(after.resolve(DataSegments.FILE_NAME),
+                before.resolve(DataSegments.FILE_NAME + ".next"));
+        Files.copy(after.resolve("data.4"), before.resolve("data.4"));
+        Files.createFile(before.resolve("wal.next"));
+
+        final StormDB db = builder(before).build();
+        assertEquals(setOf("data.0", "data.1", "data.2", "data.3"), segmentFiles(before));
+        assertFalse(new File(before.toFile(), DataSegments.FILE_NAME + ".next").exists());
+        verify(db, expected);
+
+        // The compaction can simply be repeated.
+        db.compact();
+        assertEquals(setOf("data.1", "data.2", "data.3", "data.4"), segmentFiles(before));
+        verify(db, expected);
+        db.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void testSplitsExistingDataFile(final boolean indexSnapshots)
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        StormDB db = new StormDBBuilder()
+                .withDbDir(path)
+                .withValueSize(VALUE_SIZE)
+                .withAutoCompactDisabled()
+                .build();
+        final Map<Integer, Long> expected = new HashMap<>();
+        for (int key = 0; key < 1300; key++) {
+            db.put(key, value(key));
+            expected.put(key, (long) key);
+        }
+        db.compact();
+        for (int key = 0; key < 1300; key += 3) {
+            db.put(key, value(-key));
+            expected.put(key, (long) -key);
+        }
+        db.close();
+
+        final StormDBBuilder builder = builder(path);
+        if (!indexSnapshots) {
+            builder.withIndexSnapshotsDisabled();
+        }
+        db = builder.build();
+        assertFalse(new File(path.toFile(), "data").exists());
+        // 1300 records, the last of which is repeated to pad the last block.
+        assertEquals(setOf("data.0", "data.1", "data.2"), segmentFiles(path));
+        verify(db, expected);
+        db.compact();
+        verify(db, expected);
+        db.close();
+
+        // Once split, the data file can't be opened as a single data file anymore.
+        assertThrows(IncorrectConfigException.class, () -> new StormDBBuilder()
+                .withDbDir(path)
+                .withValueSize(VALUE_SIZE)
+                .build());
+    }
+
+    @Test
+    void testInvalidConfig() throws IOException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        assertThrows(IncorrectConfigException.class, () -> builder(path)
+                .withDataSegmentSize(-1)
+                .build());
+        assertThrows(IncorrectConfigException.class, () -> builder(path)
+                .withDataSegmentSize(Long.MAX_VALUE)
+                .build());
+
+        final StormDB db = builder(path).build();
+        db.put(1, value(1));
+        db.compact();
+        db.close();
+
+        // The records per segment are persisted, since they determine the record indices.
+        assertThrows(IncorrectConfigException.class, () -> builder(path)
+                .withDataSegmentSize(2 * SEGMENT_SIZE)
+                .build());
+        // Sizes are rounded down to whole blocks.
+        builder(path).withDataSegmentSize(SEGMENT_SIZE + BLOCK_SIZE - 1).build().close();
+    }
+}
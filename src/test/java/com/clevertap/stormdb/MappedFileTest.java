@@ -0,0 +1,87 @@
+package com.clevertap.stormdb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.clevertap.stormdb.exceptions.InconsistentDataException;
+import com.clevertap.stormdb.internal.SharedFileChannel;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class MappedFileTest {
+
+    private static final int VALUE_SIZE = 8;
+    private static final int RECORD_SIZE = VALUE_SIZE + Config.KEY_SIZE;
+
+    private static void append(final File file, final int fromKey, final int toKey)
+            throws IOException {
+        try (final FileOutputStream out = new FileOutputStream(file, true)) {
+            for (int key = fromKey; key < toKey; key++) {
+                out.write(ByteBuffer.allocate(RECORD_SIZE).putInt(key).putLong(key * 10L)
+                        .array());
+            }
+        }
+    }
+
+    private static void assertRecords(final MappedFile mappedFile, final int toKey)
+            throws IOException {
+        final byte[] value = new byte[VALUE_SIZE];
+        for (int key = 0; key < toKey; key++) {
+            mappedFile.read((long) key * RECORD_SIZE, key, value, 0);
+            assertArrayEquals(ByteBuffer.allocate(VALUE_SIZE).putLong(key * 10L).array(), value);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {RECORD_SIZE, 100, 1000, 1024 * 1024})
+    void readAcrossSegmentsAsTheFileGrows(final int segmentSize) throws IOException {
+        final File file = Files.createTempFile("stormdb_", "_mapped").toFile();
+        file.deleteOnExit();
+        append(file, 0, 50);
+
+        try (final SharedFileChannel channel = new SharedFileChannel(file);
+                final MappedFile mappedFile = new MappedFile(channel, RECORD_SIZE, segmentSize)) {
+            assertRecords(mappedFile, 50);
+
+            // Records beyond the mapped length are mapped on demand.
+            append(file, 50, 500);
+            assertRecords(mappedFile, 500);
+
+            final byte[] value = new byte[VALUE_SIZE];
+            assertThrows(EOFException.class,
+                    () -> mappedFile.read(500L * RECORD_SIZE, 500, value, 0));
+            assertThrows(InconsistentDataException.class,
+                    () -> mappedFile.read(RECORD_SIZE, 2, value, 0));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {100, 1024 * 1024})
+    void readTheOriginalFileAfterItIsReplaced(final int segmentSize) throws IOException {
+        final File file = Files.createTempFile("stormdb_", "_mapped").toFile();
+        file.deleteOnExit();
+        append(file, 0, 100);
+
+        try (final SharedFileChannel channel = new SharedFileChannel(file);
+                final MappedFile mappedFile = new MappedFile(channel, RECORD_SIZE, segmentSize)) {
+            assertRecords(mappedFile, 10);
+
+            // The owner's reference is given up before the file is replaced, like compaction does.
+            channel.close();
+            final File replacement = Files.createTempFile("stormdb_", "_mapped").toFile();
+            append(replacement, 1000, 1100);
+            Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            // Including the parts which weren't mapped before the file was replaced.
+            assertRecords(mappedFile, 100);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.clevertap.stormdb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.clevertap.stormdb.exceptions.IncorrectConfigException;
+import com.clevertap.stormdb.exceptions.StormDBException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class ShardedStormDBTest {
+
+    private static final int VALUE_SIZE = 8;
+
+    private static ShardedStormDB open(final Path path, final int shardCount) throws IOException {
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(VALUE_SIZE)
+                .withAutoCompactDisabled();
+        if (shardCount != 0) {
+            builder.withShardCount(shardCount);
+        }
+        return builder.buildSharded();
+    }
+
+    private static byte[] value(final long v) {
+        return ByteBuffer.allocate(VALUE_SIZE).putLong(v).array();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4, 7})
+    void putGetIterate(final int shardCount)
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final ShardedStormDB db = open(path, shardCount);
+        assertEquals(shardCount, db.getShardCount());
+
+        final int records = 50_000;
+        for (int i = 0; i < records; i++) {
+            db.put(i, value(i));
+        }
+        // Overwrite half of them.
+        for (int i = 0; i < records; i += 2) {
+            db.put(i, value(-i));
+        }
+        assertEquals(records, db.size());
+
+        db.compact();
+
+        for (int i = 0; i < records; i++) {
+            assertEquals(i % 2 == 0 ? -i : i, ByteBuffer.wrap(db.randomGet(i)).getLong());
+        }
+        assertNull(db.randomGet(records));
+
+        final BitSet seen = new BitSet();
+        db.iterate((key, data, offset) -> {
+            assertTrue(!seen.get(key));
+            seen.set(key);
+            assertEquals(key % 2 == 0 ? -key : key, ByteBuffer.wrap(data, offset, VALUE_SIZE)
+                    .getLong());
+        });
+        assertEquals(records, seen.cardinality());
+
+        db.close();
+    }
+
+    @Test
+    void keysAreSpreadAcrossShards() throws IOException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int shardCount = 4;
+        final ShardedStormDB db = open(path, shardCount);
+
+        final int records = 4000;
+        final int[] keys = new int[records];
+        final ByteBuffer values = ByteBuffer.allocate(records * VALUE_SIZE);
+        for (int i = 0; i < records; i++) {
+            keys[i] = i;
+            values.putLong(i);
+        }
+        db.putAll(keys, values.array());
+        db.flush();
+
+        for (int i = 0; i < shardCount; i++) {
+            final File wal = new File(path.toFile(), "shard-" + i + File.separator + "wal");
+            assertTrue(wal.length() > 0);
+        }
+        db.close();
+    }
+
+    @Test
+    void multiGetAcrossShards() throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final ShardedStormDB db = open(path, 4);
+        for (int i = 0; i < 1000; i++) {
+            db.put(i, value(i));
+        }
+
+        final int[] keys = {999, 5, 1000, 0, 5, -3};
+        final int stride = VALUE_SIZE + 1;
+        final byte[] out = new byte[keys.length * stride];
+        final BitSet missing = db.multiGet(keys, out, stride);
+
+        assertEquals(2, missing.cardinality());
+        assertTrue(missing.get(2));
+        assertTrue(missing.get(5));
+        for (int i : new int[]{0, 1, 3, 4}) {
+            assertEquals(keys[i], ByteBuffer.wrap(out, i * stride, VALUE_SIZE).getLong());
+        }
+        db.close();
+    }
+
+    @Test
+    void streamAcrossShards() throws IOException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final ShardedStormDB db = open(path, 4);
+        for (int i = 0; i < 1000; i++) {
+            db.put(i, value(i));
+        }
+
+        final BitSet keys = new BitSet();
+        try (Stream<StormDBEntry> stream = db.stream()) {
+            stream.parallel().forEach(entry -> {
+                assertEquals(entry.getKey(), ByteBuffer.wrap(entry.getValue()).getLong());
+                synchronized (keys) {
+                    keys.set(entry.getKey());
+                }
+            });
+        }
+        assertEquals(1000, keys.cardinality());
+        db.close();
+    }
+
+    @Test
+    void reopenUsesPersistedShardCount()
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        ShardedStormDB db = open(path, 5);
+        for (int i = 0; i < 1000; i++) {
+            db.put(i, value(i));
+        }
+        db.close();
+
+        // The persisted count is used when none is provided.
+        db = open(path, 0);
+        assertEquals(5, db.getShardCount());
+        assertEquals(1000, db.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, ByteBuffer.wrap(db.randomGet(i)).getLong());
+        }
+        db.close();
+
+        // A different count would lose keys.
+        assertThrows(IncorrectConfigException.class, () -> open(path, 3));
+
+        // The root directory is not an unsharded database.
+        assertThrows(IncorrectConfigException.class, () -> new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(VALUE_SIZE)
+                .build());
+    }
+
+    @Test
+    void invalidConfiguration() throws IOException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+
+        // New databases need an explicit shard count.
+        assertThrows(IncorrectConfigException.class, () -> open(path, 0));
+
+        assertThrows(IncorrectConfigException.class,
+                () -> open(Files.createTempDirectory("stormdb"), -1));
+        assertThrows(IncorrectConfigException.class,
+                () -> open(Files.createTempDirectory("stormdb"), Config.MAX_SHARD_COUNT + 1));
+
+        assertThrows(IncorrectConfigException.class, () -> new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(VALUE_SIZE)
+                .withShardCount(2)
+                .build());
+
+        // An unsharded database cannot be opened as a sharded one.
+        final Path unsharded = Files.createTempDirectory("stormdb");
+        new StormDBBuilder()
+                .withDbDir(unsharded.toString())
+                .withValueSize(VALUE_SIZE)
+                .build()
+                .close();
+        assertThrows(IncorrectConfigException.class, () -> open(unsharded, 2));
+    }
+}
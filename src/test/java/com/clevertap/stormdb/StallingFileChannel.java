@@ -0,0 +1,145 @@
+package com.clevertap.stormdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A {@link FileChannel} whose writes and syncs block until {@link #release()} is called, so that
+ * tests can hold the flusher thread in the middle of a WAL write.
+ */
+class StallingFileChannel extends FileChannel {
+
+    private final FileChannel delegate;
+    private final CountDownLatch stalled = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    StallingFileChannel(final FileChannel delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Waits until a write or a sync is blocked.
+     */
+    void awaitStalled() throws InterruptedException {
+        stalled.await();
+    }
+
+    void release() {
+        released.countDown();
+    }
+
+    private void stall() throws IOException {
+        stalled.countDown();
+        try {
+            released.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        stall();
+        return delegate.write(src);
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length)
+            throws IOException {
+        stall();
+        return delegate.write(srcs, offset, length);
+    }
+
+    @Override
+    public int write(final ByteBuffer src, final long position) throws IOException {
+        stall();
+        return delegate.write(src, position);
+    }
+
+    @Override
+    public void force(final boolean metaData) throws IOException {
+        stall();
+        delegate.force(metaData);
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        return delegate.read(dst);
+    }
+
+    @Override
+    public long read(final ByteBuffer[] dsts, final int offset, final int length)
+            throws IOException {
+        return delegate.read(dsts, offset, length);
+    }
+
+    @Override
+    public int read(final ByteBuffer dst, final long position) throws IOException {
+        return delegate.read(dst, position);
+    }
+
+    @Override
+    public long position() throws IOException {
+        return delegate.position();
+    }
+
+    @Override
+    public FileChannel position(final long newPosition) throws IOException {
+        delegate.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return delegate.size();
+    }
+
+    @Override
+    public FileChannel truncate(final long size) throws IOException {
+        delegate.truncate(size);
+        return this;
+    }
+
+    @Override
+    public long transferTo(final long position, final long count, final WritableByteChannel target)
+            throws IOException {
+        return delegate.transferTo(position, count, target);
+    }
+
+    @Override
+    public long transferFrom(final ReadableByteChannel src, final long position, final long count)
+            throws IOException {
+        return delegate.transferFrom(src, position, count);
+    }
+
+    @Override
+    public MappedByteBuffer map(final MapMode mode, final long position, final long size)
+            throws IOException {
+        return delegate.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock lock(final long position, final long size, final boolean shared)
+            throws IOException {
+        return delegate.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(final long position, final long size, final boolean shared)
+            throws IOException {
+        return delegate.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        delegate.close();
+    }
+}
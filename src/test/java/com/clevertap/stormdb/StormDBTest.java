@@ -8,30 +8,53 @@ import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.mockito.Mockito.when;
 
 import com.clevertap.stormdb.exceptions.IncorrectConfigException;
 import com.clevertap.stormdb.exceptions.ReservedKeyException;
 import com.clevertap.stormdb.exceptions.StormDBException;
 import com.clevertap.stormdb.exceptions.StormDBRuntimeException;
+import com.clevertap.stormdb.maps.DefaultIndexMap;
+import com.clevertap.stormdb.maps.IndexMap;
+import com.clevertap.stormdb.utils.RecordUtil;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
 import org.junit.jupiter.params.provider.ValueSource;
 import org.mockito.Mockito;
 
@@ -484,6 +507,18 @@ class StormDBTest {
                     .withMaxOpenFDCount(invalidOpenFds);
             assertThrows(IncorrectConfigException.class, builder::build);
         }
+
+        builder = new StormDBBuilder().withDbDir(path).withValueSize(10)
+                .withDurabilityMode(null);
+        assertThrows(IncorrectConfigException.class, builder::build);
+
+        builder = new StormDBBuilder().withDbDir(path).withValueSize(10)
+                .withGroupCommit(-1, 1024);
+        assertThrows(IncorrectConfigException.class, builder::build);
+
+        builder = new StormDBBuilder().withDbDir(path).withValueSize(10)
+                .withGroupCommit(5, 0);
+        assertThrows(IncorrectConfigException.class, builder::build);
     }
 
     @Test
@@ -753,4 +788,1525 @@ class StormDBTest {
         });
         assertEquals(3, db.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testFlushDurability() throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+
+        final int valueSize = 8;
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled()
+                .withDurabilityMode(DurabilityMode.FLUSH)
+                .build();
+
+        final ByteBuffer value = ByteBuffer.allocate(valueSize);
+        value.putLong(42);
+        db.put(1, value.array());
+        assertEquals(0, db.getMetrics().getWalSyncCount());
+
+        db.flush();
+        assertEquals(1, db.getMetrics().getWalSyncCount());
+
+        // Nothing new to flush.
+        db.flush();
+        assertEquals(1, db.getMetrics().getWalSyncCount());
+
+        // Puts don't wait for durability in this mode.
+        assertEquals(0, db.getMetrics().getCommitCount());
+        db.close();
+    }
+
+    @Test
+    void testGroupCommit() throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+
+        final int valueSize = 8;
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled()
+                .withGroupCommit(5, 64 * 1024)
+                .build();
+
+        final int threads = 8;
+        final int recordsPerThread = 100;
+        final ExecutorService service = Executors.newFixedThreadPool(threads);
+        final ArrayList<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(service.submit(() -> {
+                for (int i = 0; i < recordsPerThread; i++) {
+                    final int key = thread * recordsPerThread + i;
+                    final ByteBuffer value = ByteBuffer.allocate(valueSize);
+                    value.putLong(key);
+                    db.put(key, value.array());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new AssertionError(e);
+            }
+        }
+        service.shutdown();
+
+        final int totalRecords = threads * recordsPerThread;
+        final StormDBMetrics metrics = db.getMetrics();
+        assertEquals(totalRecords, metrics.getCommitCount());
+        assertTrue(metrics.getWalSyncCount() > 0);
+        // Concurrent writers must have shared fsyncs.
+        assertTrue(metrics.getWalSyncCount() < totalRecords);
+        assertTrue(metrics.getMaxCommitLatencyNanos() > 0);
+
+        // Every acknowledged put must already be in the WAL file.
+        assertTrue(new File(path.toFile(), "wal").length()
+                >= (long) totalRecords * (valueSize + Config.KEY_SIZE));
+        db.close();
+
+        final StormDB reopened = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled()
+                .build();
+        assertEquals(totalRecords, reopened.size());
+        for (int i = 0; i < totalRecords; i++) {
+            assertEquals(i, ByteBuffer.wrap(reopened.randomGet(i)).getLong());
+        }
+        reopened.close();
+    }
+
+    @Test
+    void testReadsWhileGroupCommitting() throws Exception {
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(Files.createTempDirectory("stormdb").toString())
+                .withValueSize(8)
+                .withAutoCompactDisabled()
+                .withGroupCommit(1, 64 * 1024)
+                .build();
+        db.put(1, ByteBuffer.allocate(8).putLong(1).array());
+
+        final StallingFileChannel channel = new StallingFileChannel(db.walChannel);
+        db.walChannel = channel;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // Leads a batch of its own, which is held up in the flusher thread.
+            final Future<?> commit = executor.submit(() -> {
+                db.put(2, ByteBuffer.allocate(8).putLong(2).array());
+                return null;
+            });
+            channel.awaitStalled();
+
+            final CompletableFuture<Void> asyncPut = executor.submit(() -> {
+                assertEquals(1, ByteBuffer.wrap(db.randomGet(1)).getLong());
+                assertEquals(2, ByteBuffer.wrap(db.randomGet(2)).getLong());
+                return db.putAsync(3, ByteBuffer.allocate(8).putLong(3).array());
+            }).get(10, TimeUnit.SECONDS);
+            assertFalse(commit.isDone());
+
+            channel.release();
+            commit.get();
+            db.flush();
+            asyncPut.get();
+        } finally {
+            channel.release();
+            executor.shutdown();
+        }
+        assertEquals(3, ByteBuffer.wrap(db.randomGet(3)).getLong());
+        db.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 8})
+    void testParallelIterate(final int parallelism)
+            throws IOException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int valueSize = 8;
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withMaxBufferSize(16 * 1024) // Many small ranges.
+                .withAutoCompactDisabled()
+                .build();
+
+        // The data file holds every key, some of which are superseded by the WAL file and the
+        // write buffer. The data file ends with a padded block.
+        final int records = 100_000 + 17;
+        for (int i = 0; i < records; i++) {
+            db.put(i, ByteBuffer.allocate(valueSize).putLong(i).array());
+        }
+        db.compact();
+        for (int i = 0; i < records; i += 3) {
+            db.put(i, ByteBuffer.allocate(valueSize).putLong(-i).array());
+        }
+        db.flush();
+        for (int i = 0; i < records; i += 5) {
+            db.put(i, ByteBuffer.allocate(valueSize).putLong(-i * 10L).array());
+        }
+
+        final AtomicIntegerArray deliveries = new AtomicIntegerArray(records);
+        db.parallelIterate(parallelism, (key, data, offset) -> {
+            final long expected = key % 5 == 0 ? -key * 10L : key % 3 == 0 ? -key : key;
+            assertEquals(expected, ByteBuffer.wrap(data, offset, valueSize).getLong());
+            deliveries.incrementAndGet(key);
+        });
+        for (int i = 0; i < records; i++) {
+            assertEquals(1, deliveries.get(i), "key=" + i);
+        }
+
+        assertThrows(IllegalArgumentException.class,
+                () -> db.parallelIterate(0, (key, data, offset) -> {
+                }));
+        db.close();
+    }
+
+    /**
+     * Fills a database whose data file holds every key, some of which are superseded by the WAL
+     * file and the write buffer. The data file ends with a padded block, and the WAL file with a
+     * partial block.
+     */
+    private static StormDB openLayeredDb(final int records, final int valueSize)
+            throws IOException {
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(Files.createTempDirectory("stormdb").toString())
+                .withValueSize(valueSize)
+                .withMaxBufferSize(16 * 1024) // Many small reads.
+                .withAutoCompactDisabled()
+                .build();
+        for (int i = 0; i < records; i++) {
+            db.put(i, ByteBuffer.allocate(valueSize).putLong(i).array());
+        }
+        db.compact();
+        for (int i = 0; i < records; i += 3) {
+            db.put(i, ByteBuffer.allocate(valueSize).putLong(-i).array());
+        }
+        db.flush();
+        for (int i = 0; i < records; i += 5) {
+            db.put(i, ByteBuffer.allocate(valueSize).putLong(-i * 10L).array());
+        }
+        return db;
+    }
+
+    private static long expectedLayeredValue(final int key) {
+        return key % 5 == 0 ? -key * 10L : key % 3 == 0 ? -key : key;
+    }
+
+    @Test
+    void testCursor() throws IOException, InterruptedException {
+        final int records = 20_000 + 17;
+        final StormDB db = openLayeredDb(records, 8);
+        final ByteBuffer value = ByteBuffer.allocate(8);
+
+        final int[] deliveries = new int[records];
+        try (StormDBCursor cursor = db.cursor()) {
+            assertThrows(IllegalStateException.class, cursor::key);
+
+            // Neither writes nor a compaction affect an open cursor.
+            db.put(0, ByteBuffer.allocate(8).putLong(42).array());
+            db.put(records, ByteBuffer.allocate(8).putLong(42).array());
+            db.compact();
+
+            while (cursor.next()) {
+                final int key = cursor.key();
+                value.clear();
+                cursor.value(value);
+                assertEquals(expectedLayeredValue(key), value.getLong(0), "key=" + key);
+                deliveries[key]++;
+            }
+            assertFalse(cursor.next());
+            assertThrows(IllegalStateException.class, cursor::key);
+        }
+        for (int i = 0; i < records; i++) {
+            assertEquals(1, deliveries[i], "key=" + i);
+        }
+
+        final StormDBCursor cursor = db.cursor();
+        assertTrue(cursor.next());
+        assertThrows(IllegalArgumentException.class, () -> cursor.value(ByteBuffer.allocate(7)));
+        cursor.close();
+        cursor.close();
+        assertThrows(IllegalStateException.class, cursor::next);
+        db.close();
+    }
+
+    @Test
+    void testIterateBlocks() throws IOException, InterruptedException {
+        final int records = 20_000 + 17;
+        final int valueSize = 8;
+        final int recordSize = valueSize + Config.KEY_SIZE;
+        final StormDB db = openLayeredDb(records, valueSize);
+
+        final int[] deliveries = new int[records];
+        final BlockConsumer consumer = (data, offset, count, live) -> {
+            assertTrue(count > 0 && count <= Config.RECORDS_PER_BLOCK);
+            for (int i = 0; i < count; i++) {
+                if ((live[i >>> 6] & (1L << i)) != 0) {
+                    final ByteBuffer record = ByteBuffer.wrap(data, offset + i * recordSize,
+                            recordSize);
+                    final int key = record.getInt();
+                    assertEquals(expectedLayeredValue(key), record.getLong(), "key=" + key);
+                    deliveries[key]++;
+                }
+            }
+        };
+        db.iterateBlocks(consumer);
+        for (int i = 0; i < records; i++) {
+            assertEquals(1, deliveries[i], "key=" + i);
+        }
+
+        // Blocks continue where single records left off, in the write buffer, the WAL file and
+        // the data file.
+        Arrays.fill(deliveries, 0);
+        try (StormDBCursor cursor = db.cursor()) {
+            boolean more = true;
+            for (int i = 0; more; i++) {
+                if (i % 3 == 0) {
+                    more = cursor.next();
+                    if (more) {
+                        deliveries[cursor.key()]++;
+                    }
+                } else {
+                    more = cursor.nextBlock(consumer);
+                }
+            }
+        }
+        for (int i = 0; i < records; i++) {
+            assertEquals(1, deliveries[i], "key=" + i);
+        }
+        db.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void testStream(final boolean parallel) throws IOException, InterruptedException {
+        final int records = 20_000 + 17;
+        final StormDB db = openLayeredDb(records, 8);
+
+        final AtomicIntegerArray deliveries = new AtomicIntegerArray(records);
+        try (Stream<StormDBEntry> stream = db.stream()) {
+            (parallel ? stream.parallel() : stream).forEach(entry -> {
+                assertEquals(expectedLayeredValue(entry.getKey()),
+                        ByteBuffer.wrap(entry.getValue()).getLong(), "key=" + entry.getKey());
+                deliveries.incrementAndGet(entry.getKey());
+            });
+        }
+        for (int i = 0; i < records; i++) {
+            assertEquals(1, deliveries.get(i), "key=" + i);
+        }
+
+        try (Stream<StormDBEntry> stream = db.stream()) {
+            assertEquals(records, (parallel ? stream.parallel() : stream).count());
+        }
+        db.close();
+    }
+
+    @Test
+    void testStreamSplitsWithExactSizes() throws IOException, InterruptedException {
+        final int records = 20_000 + 17;
+        final StormDB db = openLayeredDb(records, 8);
+
+        // Some keys are in the WAL file, so only the total is known.
+        try (Stream<StormDBEntry> stream = db.stream()) {
+            final Spliterator<StormDBEntry> spliterator = stream.spliterator();
+            assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED));
+            assertFalse(spliterator.hasCharacteristics(Spliterator.SUBSIZED));
+            assertEquals(records, spliterator.getExactSizeIfKnown());
+        }
+
+        // After a compaction, the data file holds every key, so every split knows its size.
+        db.compact();
+        try (Stream<StormDBEntry> stream = db.stream()) {
+            final Spliterator<StormDBEntry> spliterator = stream.spliterator();
+            assertTrue(spliterator.hasCharacteristics(Spliterator.SUBSIZED));
+            final List<Spliterator<StormDBEntry>> splits = new ArrayList<>();
+            splits.add(spliterator);
+            for (int i = 0; i < 5; i++) {
+                final List<Spliterator<StormDBEntry>> next = new ArrayList<>();
+                for (Spliterator<StormDBEntry> split : splits) {
+                    final Spliterator<StormDBEntry> other = split.trySplit();
+                    if (other != null) {
+                        next.add(other);
+                    }
+                    next.add(split);
+                }
+                splits.clear();
+                splits.addAll(next);
+            }
+            assertEquals(32, splits.size());
+
+            final BitSet keys = new BitSet();
+            for (Spliterator<StormDBEntry> split : splits) {
+                assertTrue(split.hasCharacteristics(Spliterator.SIZED));
+                final long expected = split.getExactSizeIfKnown();
+                final AtomicInteger count = new AtomicInteger();
+                split.forEachRemaining(entry -> {
+                    assertFalse(keys.get(entry.getKey()));
+                    keys.set(entry.getKey());
+                    count.incrementAndGet();
+                });
+                assertEquals(expected, count.get());
+            }
+            assertEquals(records, keys.cardinality());
+        }
+        db.close();
+    }
+
+    /**
+     * Counts the entries put into it, so that tests can tell a loaded index snapshot from a
+     * rebuilt index.
+     */
+    private static final class CountingIndexMap extends DefaultIndexMap {
+
+        private int puts;
+
+        @Override
+        public void put(final int key, final int indexValue) {
+            puts++;
+            super.put(key, indexValue);
+        }
+    }
+
+    private static StormDB openWithIndexMap(final Path path, final IndexMap index)
+            throws IOException {
+        return new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(8)
+                .withAutoCompactDisabled()
+                .withIndexMap(index)
+                .build();
+    }
+
+    private static void assertLatestValues(final StormDB db, final int keys, final long round)
+            throws IOException, StormDBException {
+        assertEquals(keys, db.size());
+        for (int key = 0; key < keys; key++) {
+            assertEquals(key * round, ByteBuffer.wrap(db.randomGet(key)).getLong(), "key=" + key);
+        }
+    }
+
+    @Test
+    void testIndexSnapshot() throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final File snapshot = new File(path.toFile(), IndexSnapshot.FILE_NAME);
+        final int keys = 1000;
+
+        // Every key is written to the data file once, and to the WAL file three times.
+        StormDB db = openWithIndexMap(path, new CountingIndexMap());
+        for (int key = 0; key < keys; key++) {
+            db.put(key, ByteBuffer.allocate(8).putLong(key).array());
+        }
+        db.compact();
+        assertTrue(snapshot.exists());
+        for (long round = 2; round <= 4; round++) {
+            for (int key = 0; key < keys; key++) {
+                db.put(key, ByteBuffer.allocate(8).putLong(key * round).array());
+            }
+            db.flush();
+        }
+        db.close();
+
+        // The snapshot covers everything, so no file is read.
+        CountingIndexMap index = new CountingIndexMap();
+        db = openWithIndexMap(path, index);
+        assertEquals(keys, index.puts);
+        assertFalse(snapshot.exists());
+        assertLatestValues(db, keys, 4);
+
+        // Records written after the snapshot are read from the WAL file.
+        db.compact();
+        final byte[] afterCompaction = Files.readAllBytes(snapshot.toPath());
+        for (int key = 0; key < keys / 2; key++) {
+            db.put(key, ByteBuffer.allocate(8).putLong(key * 5L).array());
+        }
+        db.flush();
+        db.put(keys, ByteBuffer.allocate(8).putLong(keys * 5L).array());
+        db.close();
+        // As if the database had crashed, leaving the snapshot of the compaction behind.
+        Files.write(snapshot.toPath(), afterCompaction);
+
+        index = new CountingIndexMap();
+        db = openWithIndexMap(path, index);
+        assertEquals(keys + keys / 2 + 1, index.puts);
+        assertEquals(keys + 1, db.size());
+        for (int key = 0; key <= keys; key++) {
+            final long expected = key < keys / 2 || key == keys ? key * 5L : key * 4L;
+            assertEquals(expected, ByteBuffer.wrap(db.randomGet(key)).getLong(), "key=" + key);
+        }
+        db.close();
+    }
+
+    @Test
+    void testIndexSnapshotIsIgnoredUnlessItMatches()
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final File snapshot = new File(path.toFile(), IndexSnapshot.FILE_NAME);
+        final int keys = 1000;
+
+        StormDB db = openWithIndexMap(path, new CountingIndexMap());
+        for (long round = 1; round <= 2; round++) {
+            for (int key = 0; key < keys; key++) {
+                db.put(key, ByteBuffer.allocate(8).putLong(key * round).array());
+            }
+            db.flush();
+        }
+        db.close();
+
+        // A corrupted snapshot.
+        final byte[] bytes = Files.readAllBytes(snapshot.toPath());
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(snapshot.toPath(), bytes);
+        CountingIndexMap index = new CountingIndexMap();
+        db = openWithIndexMap(path, index);
+        assertEquals(keys * 2, index.puts);
+        assertFalse(snapshot.exists());
+        assertLatestValues(db, keys, 2);
+
+        // A snapshot of files which have been replaced since.
+        db.close();
+        final byte[] stale = Files.readAllBytes(snapshot.toPath());
+        db = openWithIndexMap(path, new CountingIndexMap());
+        db.compact();
+        db.close();
+        Files.write(snapshot.toPath(), stale);
+        index = new CountingIndexMap();
+        db = openWithIndexMap(path, index);
+        // Rebuilt from the data file, whose last block is padded.
+        assertEquals((keys + Config.RECORDS_PER_BLOCK - 1) / Config.RECORDS_PER_BLOCK
+                * Config.RECORDS_PER_BLOCK, index.puts);
+        assertLatestValues(db, keys, 2);
+        db.close();
+
+        // Nothing is written when disabled, and a snapshot left behind is discarded.
+        assertTrue(snapshot.exists());
+        db = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(8)
+                .withIndexSnapshotsDisabled()
+                .build();
+        assertFalse(snapshot.exists());
+        assertLatestValues(db, keys, 2);
+        db.close();
+        assertFalse(snapshot.exists());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 5})
+    void testParallelIndexRebuild(final int parallelism)
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int keys = 50_000;
+        // Small buffers, so that the data file is read in many ranges.
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(8)
+                .withAutoCompactDisabled()
+                .withMaxBufferSize(16 * 1024)
+                .withIndexSnapshotsDisabled();
+
+        StormDB db = builder.build();
+        for (int key = 0; key < keys; key++) {
+            db.put(key, ByteBuffer.allocate(8).putLong(key).array());
+        }
+        db.compact();
+        for (int key = 1; key < keys; key += 2) {
+            db.put(key, ByteBuffer.allocate(8).putLong(key * 2L).array());
+        }
+        db.close();
+
+        final CountingIndexMap index = new CountingIndexMap();
+        db = builder.withIndexMap(index).withIndexRebuildParallelism(parallelism).build();
+        if (parallelism > 1) {
+            // The padding of the data file is skipped.
+            assertEquals(keys + keys / 2, index.puts);
+        }
+        assertEquals(keys, db.size());
+        for (int key = 0; key < keys; key++) {
+            final long expected = key % 2 == 0 ? key : key * 2L;
+            assertEquals(expected, ByteBuffer.wrap(db.randomGet(key)).getLong(), "key=" + key);
+        }
+        db.close();
+
+        assertThrows(IncorrectConfigException.class,
+                () -> builder.withIndexRebuildParallelism(0).build());
+    }
+
+    @Test
+    void testDenseIndex() throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int keys = 10_000;
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(8)
+                .withAutoCompactDisabled()
+                .withDenseIndex(keys);
+
+        StormDB db = builder.build();
+        // Everything from 0 up is dense, apart from a few outliers.
+        final int[] outliers = {-2, keys, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int key = 0; key < keys; key++) {
+            db.put(key, ByteBuffer.allocate(8).putLong(key).array());
+        }
+        for (int key : outliers) {
+            db.put(key, ByteBuffer.allocate(8).putLong(key).array());
+        }
+        db.compact();
+        for (int key = 0; key < keys; key += 3) {
+            db.put(key, ByteBuffer.allocate(8).putLong(-key).array());
+        }
+        db.close();
+
+        // Loaded from the index snapshot, and then rebuilt from the files.
+        for (boolean snapshot : new boolean[]{true, false}) {
+            if (!snapshot) {
+                builder.withIndexSnapshotsDisabled();
+            }
+            db = builder.build();
+            assertEquals(keys + outliers.length, db.size());
+            for (int key = 0; key < keys; key++) {
+                final long expected = key % 3 == 0 ? -key : key;
+                assertEquals(expected, ByteBuffer.wrap(db.randomGet(key)).getLong());
+            }
+            for (int key : outliers) {
+                assertEquals(key, ByteBuffer.wrap(db.randomGet(key)).getLong());
+            }
+            assertNull(db.randomGet(keys + 1));
+            db.close();
+        }
+
+        assertThrows(IncorrectConfigException.class,
+                () -> builder.withDenseIndex(-1).build());
+        assertThrows(IncorrectConfigException.class,
+                () -> builder.withDenseIndex(keys).withIndexMap(new DefaultIndexMap()).build());
+        assertThrows(IncorrectConfigException.class, () -> new StormDBBuilder()
+                .withDbDir(Files.createTempDirectory("stormdb").toString())
+                .withValueSize(8)
+                .withDenseIndex(keys)
+                .withShardCount(2)
+                .buildSharded());
+    }
+
+    @Test
+    void testKeysAcrossTheWholeKeySpace()
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int valueSize = 8;
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled()
+                .build();
+
+        final int[] keys = {Integer.MIN_VALUE, -2, 0, Integer.MAX_VALUE};
+        final Map<Integer, Long> expected = new HashMap<>();
+        final Runnable verify = () -> {
+            try {
+                for (int key : keys) {
+                    assertEquals(expected.get(key), ByteBuffer.wrap(db.randomGet(key)).getLong());
+                }
+                final Map<Integer, Long> iterated = new HashMap<>();
+                db.iterate((key, data, offset) -> assertNull(
+                        iterated.put(key, ByteBuffer.wrap(data, offset, valueSize).getLong())));
+                assertEquals(expected, iterated);
+                iterated.clear();
+                db.parallelIterate(2, (key, data, offset) -> {
+                    synchronized (iterated) {
+                        assertNull(iterated.put(key,
+                                ByteBuffer.wrap(data, offset, valueSize).getLong()));
+                    }
+                });
+                assertEquals(expected, iterated);
+            } catch (IOException | StormDBException e) {
+                throw new AssertionError(e);
+            }
+        };
+
+        for (int key : keys) {
+            db.put(key, ByteBuffer.allocate(valueSize).putLong(key).array());
+            expected.put(key, (long) key);
+        }
+        verify.run(); // From the write buffer.
+        db.flush();
+        verify.run(); // From the WAL file.
+        db.compact();
+        verify.run(); // From the data file.
+
+        db.put(Integer.MIN_VALUE, ByteBuffer.allocate(valueSize).putLong(1).array());
+        expected.put(Integer.MIN_VALUE, 1L);
+        db.flush();
+        verify.run();
+        db.close();
+    }
+
+    @Test
+    void testPutAll() throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+
+        final int valueSize = 8;
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled()
+                .build();
+
+        // Span a few write buffers, with padding between values.
+        final int records = 3 * new Buffer(db.getConf(), false).getMaxRecords() + 17;
+        final int stride = valueSize + 4;
+        final int[] keys = new int[records];
+        final ByteBuffer values = ByteBuffer.allocate(records * stride);
+        for (int i = 0; i < records; i++) {
+            keys[i] = i;
+            values.putLong(i * stride, i * 31L);
+        }
+        db.putAll(keys, values.array(), stride);
+        assertEquals(records, db.size());
+
+        // Overwrite the first few keys, including ones still in the write buffer.
+        final int[] updatedKeys = {0, 1, records - 1};
+        final ByteBuffer updatedValues = ByteBuffer.allocate(updatedKeys.length * valueSize);
+        for (int i = 0; i < updatedKeys.length; i++) {
+            updatedValues.putLong(-updatedKeys[i]);
+        }
+        db.putAll(updatedKeys, updatedValues.array());
+        assertEquals(records, db.size());
+
+        for (int i = 0; i < records; i++) {
+            final long expected = (i == 0 || i == 1 || i == records - 1) ? -i : i * 31L;
+            assertEquals(expected, ByteBuffer.wrap(db.randomGet(i)).getLong());
+        }
+
+        // Nothing must be written if any key is reserved.
+        assertThrows(ReservedKeyException.class, () -> db.putAll(
+                new int[]{records, StormDB.RESERVED_KEY_MARKER}, new byte[2 * valueSize]));
+        assertNull(db.randomGet(records));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> db.putAll(new int[]{1, 2}, new byte[2 * valueSize], valueSize - 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> db.putAll(new int[]{1, 2}, new byte[valueSize]));
+
+        db.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void testRandomGetIntoCallerBuffers(final boolean memoryMapped)
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int valueSize = 8;
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled();
+        if (memoryMapped) {
+            builder.withMemoryMappedReads();
+        }
+        final StormDB db = builder.build();
+
+        // Key 1 in the data file, key 2 in the WAL file and key 3 in the write buffer.
+        db.put(1, ByteBuffer.allocate(valueSize).putLong(10).array());
+        db.compact();
+        db.put(2, ByteBuffer.allocate(valueSize).putLong(20).array());
+        db.flush();
+        db.put(3, ByteBuffer.allocate(valueSize).putLong(30).array());
+
+        final byte[] array = new byte[valueSize + 5];
+        for (int key = 1; key <= 3; key++) {
+            assertTrue(db.randomGet(key, array, 5));
+            assertEquals(key * 10L, ByteBuffer.wrap(array, 5, valueSize).getLong());
+        }
+        assertFalse(db.randomGet(4, array, 5));
+
+        for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(3 * valueSize + 2),
+                ByteBuffer.allocateDirect(3 * valueSize + 2)}) {
+            buffer.position(2);
+            for (int key = 1; key <= 3; key++) {
+                assertTrue(db.randomGet(key, buffer));
+            }
+            assertEquals(3 * valueSize + 2, buffer.position());
+            for (int key = 1; key <= 3; key++) {
+                assertEquals(key * 10L, buffer.getLong(2 + (key - 1) * valueSize));
+            }
+
+            buffer.position(valueSize);
+            assertFalse(db.randomGet(4, buffer));
+            assertEquals(valueSize, buffer.position());
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> db.randomGet(1, array, 6));
+        assertThrows(IllegalArgumentException.class, () -> db.randomGet(1, array, -1));
+        assertThrows(IllegalArgumentException.class,
+                () -> db.randomGet(1, ByteBuffer.allocate(valueSize - 1)));
+
+        db.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void testRandomGetIntoCallerBuffersDoesNotAllocate(final boolean memoryMapped)
+            throws IOException, StormDBException, InterruptedException {
+        final java.lang.management.ThreadMXBean threadMXBean =
+                ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations =
+                (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        final Path path = Files.createTempDirectory("stormdb");
+        final int valueSize = 16;
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled();
+        if (memoryMapped) {
+            builder.withMemoryMappedReads();
+        }
+        final StormDB db = builder.build();
+
+        // A third of the keys in the data file, the WAL file and the write buffer each.
+        final int keys = 3_000;
+        final byte[] value = new byte[valueSize];
+        for (int i = 0; i < keys; i++) {
+            db.put(i, value);
+        }
+        db.compact();
+        for (int i = keys / 3; i < keys; i++) {
+            db.put(i, value);
+        }
+        db.flush();
+        for (int i = 2 * keys / 3; i < keys; i++) {
+            db.put(i, value);
+        }
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(valueSize);
+        final Runnable getAll = () -> {
+            try {
+                for (int i = 0; i < keys; i++) {
+                    assertTrue(db.randomGet(i, value, 0));
+                    direct.clear();
+                    assertTrue(db.randomGet(i, direct));
+                }
+            } catch (IOException | StormDBException e) {
+                throw new AssertionError(e);
+            }
+        };
+        getAll.run(); // Warm up the per thread state.
+
+        final long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int round = 0; round < 20; round++) {
+            getAll.run();
+        }
+        final long allocated =
+                allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        // 120k gets. Allow for a little noise from the JVM itself.
+        assertTrue(allocated < 16 * 1024, "Reader allocated " + allocated + " bytes");
+
+        db.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void testValueCache(final boolean memoryMapped)
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int valueSize = 8;
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled()
+                .withValueCache(100 * (valueSize + ValueCache.ENTRY_OVERHEAD));
+        if (memoryMapped) {
+            builder.withMemoryMappedReads();
+        }
+        final StormDB db = builder.build();
+        final StormDBMetrics metrics = db.getMetrics();
+
+        for (int key = 0; key < 1000; key++) {
+            db.put(key, ByteBuffer.allocate(valueSize).putLong(key).array());
+        }
+        db.flush();
+
+        // The first read of a key is a miss, which fills the cache.
+        for (int key = 0; key < 50; key++) {
+            assertEquals(key, ByteBuffer.wrap(db.randomGet(key)).getLong());
+        }
+        assertEquals(0, metrics.getValueCacheHitCount());
+        assertEquals(50, metrics.getValueCacheMissCount());
+        for (int key = 0; key < 50; key++) {
+            assertEquals(key, ByteBuffer.wrap(db.randomGet(key)).getLong());
+        }
+        assertEquals(50, metrics.getValueCacheHitCount());
+
+        // Cached values survive a compaction, and are updated by puts.
+        db.compact();
+        db.put(7, ByteBuffer.allocate(valueSize).putLong(-7).array());
+        assertEquals(-7, ByteBuffer.wrap(db.randomGet(7)).getLong());
+        for (int key = 0; key < 50; key++) {
+            final long expected = key == 7 ? -7 : key;
+            assertEquals(expected, ByteBuffer.wrap(db.randomGet(key)).getLong());
+        }
+        assertEquals(101, metrics.getValueCacheHitCount());
+
+        // Reading more keys than fit evicts some.
+        for (int key = 0; key < 1000; key++) {
+            final long expected = key == 7 ? -7 : key;
+            assertEquals(expected, ByteBuffer.wrap(db.randomGet(key)).getLong());
+        }
+        assertTrue(metrics.getValueCacheEvictionCount() > 0);
+        assertNull(db.randomGet(1000));
+
+        db.close();
+
+        assertThrows(IncorrectConfigException.class, () -> new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withValueCache(-1)
+                .build());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void testMultiGet(final boolean memoryMapped)
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+
+        final int valueSize = 8;
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled();
+        if (memoryMapped) {
+            builder.withMemoryMappedReads();
+        }
+        final StormDB db = builder.build();
+
+        // Spread the records across the data file, the WAL file and the write buffer, with more
+        // records than fit into a single coalesced read.
+        final int records = 60_000;
+        for (int i = 0; i < records; i++) {
+            db.put(i, ByteBuffer.allocate(valueSize).putLong(i).array());
+        }
+        db.compact();
+        for (int i = 0; i < records; i += 3) {
+            db.put(i, ByteBuffer.allocate(valueSize).putLong(-i).array());
+        }
+        db.flush();
+        for (int i = 0; i < records; i += 7) {
+            db.put(i, ByteBuffer.allocate(valueSize).putLong(-i * 10L).array());
+        }
+
+        // Every other record, some of them twice, and keys which don't exist, in random order.
+        final List<Integer> shuffled = new ArrayList<>();
+        for (int i = 0; i < records; i += 2) {
+            shuffled.add(i);
+        }
+        for (int i = 0; i < 100; i++) {
+            shuffled.add(i * 2);
+            shuffled.add(records + i);
+        }
+        Collections.shuffle(shuffled);
+        final int[] keys = shuffled.stream().mapToInt(Integer::intValue).toArray();
+
+        final int stride = valueSize + 3;
+        final byte[] out = new byte[keys.length * stride];
+        final BitSet missing = db.multiGet(keys, out, stride);
+
+        assertEquals(100, missing.cardinality());
+        for (int i = 0; i < keys.length; i++) {
+            final int key = keys[i];
+            if (key >= records) {
+                assertTrue(missing.get(i));
+                continue;
+            }
+            assertFalse(missing.get(i));
+            final long expected = key % 7 == 0 ? -key * 10L : key % 3 == 0 ? -key : key;
+            assertEquals(expected, ByteBuffer.wrap(out, i * stride, valueSize).getLong());
+        }
+
+        assertTrue(db.multiGet(new int[0], new byte[0], valueSize).isEmpty());
+        assertThrows(IllegalArgumentException.class,
+                () -> db.multiGet(new int[]{1, 2}, new byte[2 * valueSize], valueSize - 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> db.multiGet(new int[]{1, 2}, new byte[valueSize], valueSize));
+
+        db.close();
+    }
+
+    @Test
+    void testReadsWhileBuffersAreFlushed()
+            throws IOException, InterruptedException, ExecutionException {
+        final Path path = Files.createTempDirectory("stormdb");
+
+        final int valueSize = 8;
+        // A tiny buffer, so that sealed buffers are handed over to the flusher very often.
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withMaxBufferSize(1)
+                .withAutoCompactDisabled()
+                .build();
+
+        final int records = 100_000;
+        final AtomicInteger written = new AtomicInteger();
+        final ExecutorService service = Executors.newFixedThreadPool(4);
+        final ArrayList<Future<?>> readers = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            readers.add(service.submit(() -> {
+                while (written.get() < records) {
+                    final int max = written.get();
+                    if (max == 0) {
+                        continue;
+                    }
+                    final int key = ThreadLocalRandom.current().nextInt(max);
+                    final byte[] value = db.randomGet(key);
+                    assertNotNull(value);
+                    assertEquals(key, ByteBuffer.wrap(value).getLong());
+                }
+                return null;
+            }));
+        }
+
+        for (int i = 0; i < records; i++) {
+            db.put(i, ByteBuffer.allocate(valueSize).putLong(i).array());
+            written.set(i + 1);
+            if (i % 10_000 == 0) {
+                final int[] count = {0};
+                db.iterate((key, data, offset) -> count[0]++);
+                assertEquals(i + 1, count[0]);
+            }
+        }
+
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+        service.shutdown();
+
+        final int[] count = {0};
+        db.iterate((key, data, offset) -> {
+            assertEquals(key, ByteBuffer.wrap(data, offset, valueSize).getLong());
+            count[0]++;
+        });
+        assertEquals(records, count[0]);
+        db.close();
+    }
+
+    private static Stream<Arguments> provideConcurrentReadCases() {
+        return Stream.of(
+                Arguments.of(true, false, false),
+                Arguments.of(false, false, false),
+                Arguments.of(true, true, false),
+                Arguments.of(false, true, false),
+                Arguments.of(true, false, true),
+                Arguments.of(false, true, true));
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideConcurrentReadCases")
+    void testOptimisticReadsWhileWritingAndCompacting(final boolean optimistic,
+            final boolean memoryMapped, final boolean valueCache)
+            throws IOException, InterruptedException, ExecutionException, StormDBException {
+        final Path path = Files.createTempDirectory("stormdb");
+
+        final int valueSize = 16; // key | version
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withMaxBufferSize(1)
+                .withAutoCompactDisabled()
+                .withIndexMap(new DefaultIndexMap(16, 0.95f) {
+                    @Override
+                    public boolean supportsOptimisticReads() {
+                        return optimistic;
+                    }
+                });
+        if (memoryMapped) {
+            builder.withMemoryMappedReads();
+        }
+        if (valueCache) {
+            // Smaller than the set of keys being read, so that values are evicted too.
+            builder.withValueCache(2_000 * (valueSize + ValueCache.ENTRY_OVERHEAD));
+        }
+        final StormDB db = builder.build();
+
+        final int keys = 5_000;
+        final int rounds = 20;
+        for (int key = 0; key < keys; key++) {
+            db.put(key, ByteBuffer.allocate(valueSize).putLong(key).putLong(0).array());
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final ExecutorService service = Executors.newFixedThreadPool(5);
+        final ArrayList<Future<?>> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            readers.add(service.submit(() -> {
+                // A reader must never observe a version older than one it has already seen.
+                final long[] seen = new long[keys];
+                while (!done.get()) {
+                    final int key = ThreadLocalRandom.current().nextInt(keys);
+                    final ByteBuffer value = ByteBuffer.wrap(db.randomGet(key));
+                    assertEquals(key, value.getLong());
+                    final long version = value.getLong();
+                    assertTrue(version >= seen[key], "key=" + key);
+                    seen[key] = version;
+                }
+                return null;
+            }));
+        }
+
+        final Future<?> compactor = service.submit(() -> {
+            while (!done.get()) {
+                db.compact();
+            }
+            return null;
+        });
+
+        // New keys every round too, so that the index is rehashed while being read.
+        for (int round = 1; round <= rounds; round++) {
+            for (int key = 0; key < keys; key++) {
+                db.put(key, ByteBuffer.allocate(valueSize).putLong(key).putLong(round).array());
+            }
+            for (int key = keys * round; key < keys * (round + 1); key++) {
+                db.put(key, ByteBuffer.allocate(valueSize).putLong(key).putLong(round).array());
+            }
+        }
+        done.set(true);
+
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+        compactor.get();
+        service.shutdown();
+
+        for (int key = 0; key < keys * (rounds + 1); key++) {
+            final ByteBuffer value = ByteBuffer.wrap(db.randomGet(key));
+            assertEquals(key, value.getLong());
+            assertEquals(key < keys ? rounds : key / keys, value.getLong());
+        }
+        if (!optimistic) {
+            assertEquals(0, db.getMetrics().getOptimisticReadRetryCount());
+        }
+        db.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void testIterateWhileFlushing(final boolean useCursor) throws Exception {
+        final int keys = 5_000;
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(Files.createTempDirectory("stormdb").toString())
+                .withValueSize(8)
+                .withMaxBufferSize(1) // The flusher releases buffers all the time.
+                .withAutoCompactDisabled()
+                .build();
+        // Every value is the sequence number of its put.
+        for (int key = 0; key < keys; key++) {
+            db.put(key, ByteBuffer.allocate(8).putLong(key).array());
+        }
+
+        final AtomicLong written = new AtomicLong(keys);
+        final int rounds = 50;
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Future<?> writer = executor.submit(() -> {
+            for (long seq = keys; seq < (rounds + 1L) * keys; seq++) {
+                db.put((int) (seq % keys), ByteBuffer.allocate(8).putLong(seq).array());
+                written.set(seq + 1);
+            }
+            return null;
+        });
+
+        try {
+            while (!writer.isDone()) {
+                // Every key is at least at its last put which returned before iterating.
+                final long last = written.get() - 1;
+                final int[] delivered = {0};
+                final EntryConsumer check = (key, data, offset) -> {
+                    final long minSeq = last - Math.floorMod(last - key, keys);
+                    assertTrue(ByteBuffer.wrap(data, offset, 8).getLong() >= minSeq,
+                            "key=" + key);
+                    delivered[0]++;
+                };
+                if (useCursor) {
+                    final ByteBuffer value = ByteBuffer.allocate(8);
+                    try (StormDBCursor cursor = db.cursor()) {
+                        while (cursor.next()) {
+                            value.clear();
+                            cursor.value(value);
+                            check.accept(cursor.key(), value.array(), 0);
+                        }
+                    }
+                } else {
+                    db.iterate(check);
+                }
+                assertEquals(keys, delivered[0]);
+            }
+        } finally {
+            writer.get();
+            executor.shutdown();
+        }
+        db.close();
+    }
+
+    @Test
+    void testInterruptedReaderDoesNotAffectOthers()
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int valueSize = 8;
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled()
+                .build();
+
+        for (int key = 0; key < 1000; key++) {
+            db.put(key, ByteBuffer.allocate(valueSize).putLong(key).array());
+        }
+        db.compact(); // In the data file.
+        for (int key = 1000; key < 2000; key++) {
+            db.put(key, ByteBuffer.allocate(valueSize).putLong(key).array());
+        }
+        db.flush(); // In the WAL file.
+
+        for (int key : new int[]{10, 1010}) {
+            Thread.currentThread().interrupt();
+            try {
+                assertThrows(ClosedByInterruptException.class, () -> db.randomGet(key));
+            } finally {
+                assertTrue(Thread.interrupted());
+            }
+        }
+
+        for (int key = 0; key < 2000; key++) {
+            assertEquals(key, ByteBuffer.wrap(db.randomGet(key)).getLong());
+        }
+        db.close();
+    }
+
+    @Test
+    void testPutAndFlushDoNotAllocate() throws IOException, InterruptedException {
+        final java.lang.management.ThreadMXBean threadMXBean =
+                ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations =
+                (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        final Path path = Files.createTempDirectory("stormdb");
+        final int valueSize = 16;
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withMaxBufferSize(64 * 1024)
+                .withAutoCompactDisabled()
+                .build();
+
+        // Keep to a fixed set of keys, so that the index doesn't grow.
+        final int keys = 10_000;
+        final byte[] value = new byte[valueSize];
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < keys; i++) {
+                db.put(i, value);
+            }
+            db.flush();
+        }
+
+        final Thread flusher = Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().equals("stormdb-flusher-" + path.toFile().getName()))
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+
+        final long writerBefore = allocations.getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+        final long flusherBefore = allocations.getThreadAllocatedBytes(flusher.getId());
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < keys; i++) {
+                db.put(i, value);
+            }
+        }
+        db.flush();
+        final long writerAllocated = allocations.getThreadAllocatedBytes(
+                Thread.currentThread().getId()) - writerBefore;
+        final long flusherAllocated =
+                allocations.getThreadAllocatedBytes(flusher.getId()) - flusherBefore;
+
+        // 200k puts and over 60 buffer flushes. Allow for a little noise from the JVM itself.
+        assertTrue(writerAllocated < 16 * 1024, "Writer allocated " + writerAllocated + " bytes");
+        assertTrue(flusherAllocated < 16 * 1024,
+                "Flusher allocated " + flusherAllocated + " bytes");
+
+        db.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void testPutAsync(final boolean sync)
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+
+        final int valueSize = 8;
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled()
+                .withDurabilityMode(sync ? DurabilityMode.FLUSH : DurabilityMode.NONE)
+                .build();
+
+        final int threads = 4;
+        final int recordsPerThread = 1000;
+        final ExecutorService service = Executors.newFixedThreadPool(threads);
+        final ArrayList<Future<List<CompletableFuture<Void>>>> submitted = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            submitted.add(service.submit(() -> {
+                final List<CompletableFuture<Void>> writes = new ArrayList<>();
+                for (int i = 0; i < recordsPerThread; i++) {
+                    final int key = thread * recordsPerThread + i;
+                    writes.add(db.putAsync(key, ByteBuffer.allocate(valueSize).putLong(key)
+                            .array()));
+                }
+                return writes;
+            }));
+        }
+
+        final List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (Future<List<CompletableFuture<Void>>> future : submitted) {
+            try {
+                writes.addAll(future.get());
+            } catch (ExecutionException e) {
+                throw new AssertionError(e);
+            }
+        }
+        service.shutdown();
+
+        // Nothing has been flushed yet, the records are all in the write buffer.
+        for (CompletableFuture<Void> write : writes) {
+            assertFalse(write.isDone());
+        }
+        assertEquals(0, new File(path.toFile(), "wal").length());
+
+        db.flush();
+        for (CompletableFuture<Void> write : writes) {
+            assertTrue(write.isDone());
+            assertFalse(write.isCompletedExceptionally());
+        }
+        assertEquals(sync, db.getMetrics().getWalSyncCount() > 0);
+
+        final int totalRecords = threads * recordsPerThread;
+        assertTrue(new File(path.toFile(), "wal").length()
+                >= (long) totalRecords * (valueSize + Config.KEY_SIZE));
+        for (int i = 0; i < totalRecords; i++) {
+            assertEquals(i, ByteBuffer.wrap(db.randomGet(i)).getLong());
+        }
+
+        // A write after the flush is pending again, until its buffer is full.
+        final CompletableFuture<Void> pending = db.putAsync(0, new byte[valueSize]);
+        assertFalse(pending.isDone());
+        final int maxRecords = new Buffer(db.getConf(), false).getMaxRecords();
+        for (int i = 1; i <= maxRecords; i++) {
+            db.putAsync(totalRecords + i, new byte[valueSize]);
+        }
+        try {
+            pending.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new AssertionError(e);
+        }
+
+        assertThrows(ReservedKeyException.class,
+                () -> db.putAsync(StormDB.RESERVED_KEY_MARKER, new byte[valueSize]));
+        db.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void testFlushWritesPartialBlocks(final boolean memoryMapped)
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int valueSize = 8;
+        final int recordSize = valueSize + Config.KEY_SIZE;
+        final int blockSize = RecordUtil.blockSizeWithTrailer(recordSize);
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(path.toString())
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled();
+        if (memoryMapped) {
+            builder.withMemoryMappedReads();
+        }
+        StormDB db = builder.build();
+
+        final HashMap<Integer, Long> expected = new HashMap<>();
+        final File walFile = new File(path.toFile(), "wal");
+        long expectedWalLength = 0;
+        int nextKey = 0;
+        for (int round = 0; round < 60; round++) {
+            if (round == 30) {
+                db.compact();
+                expectedWalLength = 0;
+            }
+
+            // New keys, and a few overwritten ones from earlier flushes. Keys from this round
+            // aren't overwritten, since they'd be updated in place in the write buffer.
+            final int records = 1 + ThreadLocalRandom.current().nextInt(300);
+            final int keysBeforeRound = nextKey;
+            final BitSet keysInRound = new BitSet();
+            for (int i = 0; i < records; i++) {
+                int key = i % 3 == 0 && keysBeforeRound > 0
+                        ? ThreadLocalRandom.current().nextInt(keysBeforeRound) : nextKey++;
+                if (keysInRound.get(key)) {
+                    key = nextKey++;
+                }
+                keysInRound.set(key);
+                db.put(key, ByteBuffer.allocate(valueSize).putLong(round).array());
+                expected.put(key, (long) round);
+            }
+            db.flush();
+
+            expectedWalLength += (long) (records / Config.RECORDS_PER_BLOCK) * blockSize;
+            if (records % Config.RECORDS_PER_BLOCK != 0) {
+                expectedWalLength += WalBlockTable.partialBlockSize(recordSize,
+                        records % Config.RECORDS_PER_BLOCK);
+            }
+            // No padding was written.
+            assertEquals(expectedWalLength, walFile.length());
+        }
+
+        for (int reopen = 0; reopen < 2; reopen++) {
+            assertEquals(expected.size(), db.size());
+            for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(),
+                        ByteBuffer.wrap(db.randomGet(entry.getKey())).getLong());
+            }
+            final BitSet seen = new BitSet();
+            db.iterate((key, data, offset) -> {
+                assertFalse(seen.get(key));
+                seen.set(key);
+                assertEquals(expected.get(key), ByteBuffer.wrap(data, offset, valueSize)
+                        .getLong());
+            });
+            assertEquals(expected.size(), seen.cardinality());
+            db.close();
+
+            db = builder.build();
+            // The WAL file was intact, and was not rewritten.
+            assertEquals(expectedWalLength, walFile.length());
+        }
+
+        db.compact();
+        for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), ByteBuffer.wrap(db.randomGet(entry.getKey())).getLong());
+        }
+        db.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void testCloseWhileCompacting(final boolean segmented)
+            throws IOException, StormDBException, InterruptedException {
+        for (int attempt = 0; attempt < 5; attempt++) {
+            final StormDBBuilder builder = new StormDBBuilder()
+                    .withDbDir(Files.createTempDirectory("stormdb"))
+                    .withValueSize(8)
+                    .withAutoCompactDisabled();
+            if (segmented) {
+                builder.withDataSegmentSize(64 * 1024);
+            }
+            final StormDB db = builder.build();
+            for (int key = 0; key < 100_000; key++) {
+                db.put(key, ByteBuffer.allocate(8).putLong(key).array());
+            }
+            db.compact();
+            for (int key = 0; key < 100_000; key += 2) {
+                db.put(key, ByteBuffer.allocate(8).putLong(-key).array());
+            }
+
+            // Compactions which are still running, or which only start once close() has begun,
+            // mustn't reopen the readers.
+            final AtomicBoolean failed = new AtomicBoolean();
+            final Thread compactor = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        db.compact();
+                    }
+                } catch (Exception e) {
+                    failed.set(true);
+                }
+            });
+            compactor.start();
+            Thread.sleep(attempt);
+            db.close();
+            compactor.join();
+            assertFalse(failed.get());
+            assertFalse(db.hasOpenReaders());
+        }
+
+        // A compaction which the executor service submitted may only run after close().
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(Files.createTempDirectory("stormdb"))
+                .withValueSize(8)
+                .withAutoCompactDisabled();
+        if (segmented) {
+            builder.withDataSegmentSize(64 * 1024);
+        }
+        final StormDB db = builder.build();
+        for (int key = 0; key < 1000; key++) {
+            db.put(key, ByteBuffer.allocate(8).putLong(key).array());
+        }
+        db.close();
+        db.compact();
+        assertFalse(db.hasOpenReaders());
+    }
+
+    @Test
+    void testReadsAndWritesWhileFlushing() throws Exception {
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(Files.createTempDirectory("stormdb").toString())
+                .withValueSize(8)
+                .withAutoCompactDisabled()
+                .build();
+        for (int key = 0; key < 1000; key++) {
+            db.put(key, ByteBuffer.allocate(8).putLong(key).array());
+        }
+        db.flush();
+
+        final StallingFileChannel channel = new StallingFileChannel(db.walChannel);
+        db.walChannel = channel;
+        db.put(1000, ByteBuffer.allocate(8).putLong(1000).array());
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<?> flush = executor.submit(() -> {
+                db.flush();
+                return null;
+            });
+            channel.awaitStalled();
+
+            // Neither the records in the WAL file, nor the one being written, nor new ones wait
+            // for the write.
+            executor.submit(() -> {
+                assertEquals(10, ByteBuffer.wrap(db.randomGet(10)).getLong());
+                assertEquals(1000, ByteBuffer.wrap(db.randomGet(1000)).getLong());
+                db.put(1001, ByteBuffer.allocate(8).putLong(1001).array());
+                assertEquals(1001, ByteBuffer.wrap(db.randomGet(1001)).getLong());
+                return null;
+            }).get(10, TimeUnit.SECONDS);
+            assertFalse(flush.isDone());
+
+            channel.release();
+            flush.get();
+        } finally {
+            channel.release();
+            executor.shutdown();
+        }
+
+        db.flush();
+        for (int key = 0; key <= 1001; key++) {
+            assertEquals(key, ByteBuffer.wrap(db.randomGet(key)).getLong());
+        }
+        db.close();
+    }
+}
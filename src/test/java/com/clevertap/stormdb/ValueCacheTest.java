@@ -0,0 +1,134 @@
+package com.clevertap.stormdb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.StampedLock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class ValueCacheTest {
+
+    private static final int VALUE_SIZE = 8;
+    private static final int ENTRY_SIZE = VALUE_SIZE + ValueCache.ENTRY_OVERHEAD;
+
+    private static byte[] value(final long v) {
+        return ByteBuffer.allocate(VALUE_SIZE).putLong(v).array();
+    }
+
+    private static long get(final ValueCache cache, final int key) {
+        final byte[] out = new byte[VALUE_SIZE];
+        assertTrue(cache.get(key, out, 0), "key=" + key);
+        return ByteBuffer.wrap(out).getLong();
+    }
+
+    private static boolean contains(final ValueCache cache, final int key) {
+        return cache.get(key, new byte[VALUE_SIZE], 0);
+    }
+
+    @Test
+    void evictsUnreferencedValuesFirst() {
+        final StampedLock writes = new StampedLock();
+        final StormDBMetrics metrics = new StormDBMetrics();
+        final ValueCache cache = new ValueCache(4 * ENTRY_SIZE, VALUE_SIZE, writes, metrics);
+
+        for (int key = 0; key < 4; key++) {
+            cache.fill(key, value(key * 10L), 0, writes.tryOptimisticRead());
+        }
+        assertEquals(0, metrics.getValueCacheEvictionCount());
+
+        // Keys 0 and 2 are read again, so they survive the next sweep of the clock.
+        assertEquals(0, get(cache, 0));
+        assertEquals(20, get(cache, 2));
+        cache.fill(4, value(40), 0, writes.tryOptimisticRead());
+        cache.fill(5, value(50), 0, writes.tryOptimisticRead());
+
+        assertEquals(2, metrics.getValueCacheEvictionCount());
+        assertFalse(contains(cache, 1));
+        assertFalse(contains(cache, 3));
+        assertEquals(0, get(cache, 0));
+        assertEquals(20, get(cache, 2));
+        assertEquals(40, get(cache, 4));
+        assertEquals(50, get(cache, 5));
+        assertEquals(6, metrics.getValueCacheHitCount());
+        assertEquals(2, metrics.getValueCacheMissCount());
+    }
+
+    @Test
+    void writersWinOverConcurrentFills() {
+        final StampedLock writes = new StampedLock();
+        final ValueCache cache = new ValueCache(1024 * ENTRY_SIZE, VALUE_SIZE, writes,
+                new StormDBMetrics());
+
+        // A reader looks up key 1, then a writer updates it before the reader fills the cache.
+        final long readerStamp = writes.tryOptimisticRead();
+        final long writerStamp = writes.writeLock();
+        cache.update(1, value(2), 0);
+        writes.unlockWrite(writerStamp);
+        cache.fill(1, value(1), 0, readerStamp);
+        assertFalse(contains(cache, 1));
+
+        // Updates only replace values which are cached already.
+        cache.fill(1, value(2), 0, writes.tryOptimisticRead());
+        cache.update(1, value(3), 0);
+        cache.update(2, value(3), 0);
+        assertEquals(3, get(cache, 1));
+        assertFalse(contains(cache, 2));
+    }
+
+    @Test
+    void tooSmallToHoldAnything() {
+        final StampedLock writes = new StampedLock();
+        final ValueCache cache = new ValueCache(ENTRY_SIZE - 1, VALUE_SIZE, writes,
+                new StormDBMetrics());
+        cache.fill(1, value(1), 0, writes.tryOptimisticRead());
+        assertFalse(contains(cache, 1));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 100, 5_000, 100_000})
+    void matchesAMapUnderRandomOperations(final int entries) {
+        final StampedLock writes = new StampedLock();
+        final ValueCache cache = new ValueCache((long) entries * ENTRY_SIZE, VALUE_SIZE, writes,
+                new StormDBMetrics());
+        final Map<Integer, Long> values = new HashMap<>();
+
+        final Random random = new Random(entries);
+        final int keys = entries * 3;
+        for (int i = 0; i < entries * 20; i++) {
+            final int key = random.nextInt(keys) - keys / 2;
+            final long v = random.nextLong();
+            if (random.nextBoolean()) {
+                cache.fill(key, value(v), 0, writes.tryOptimisticRead());
+            } else {
+                cache.update(key, value(v), 0);
+            }
+            values.put(key, v);
+
+            // Whatever is cached must be the latest value.
+            final byte[] out = new byte[VALUE_SIZE];
+            final int probe = random.nextInt(keys) - keys / 2;
+            if (cache.get(probe, out, 0)) {
+                assertArrayEquals(value(values.get(probe)), out, "key=" + probe);
+            }
+        }
+
+        int cached = 0;
+        for (Map.Entry<Integer, Long> entry : values.entrySet()) {
+            final byte[] out = new byte[VALUE_SIZE];
+            if (cache.get(entry.getKey(), out, 0)) {
+                assertArrayEquals(value(entry.getValue()), out);
+                cached++;
+            }
+        }
+        assertTrue(cached <= entries);
+        assertTrue(cached >= entries / 2, "cached=" + cached);
+    }
+}
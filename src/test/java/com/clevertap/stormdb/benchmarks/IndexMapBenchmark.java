@@ -0,0 +1,219 @@
+package com.clevertap.stormdb.benchmarks;
+
+import com.clevertap.stormdb.maps.DefaultIndexMap;
+import com.clevertap.stormdb.maps.DenseIndexMap;
+import com.clevertap.stormdb.maps.IncrementalIndexMap;
+import com.clevertap.stormdb.maps.IndexMap;
+import com.clevertap.stormdb.maps.OffHeapIndexMap;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the {@link IndexMap} implementations: the throughput of {@link IndexMap#put(int, int)}
+ * and {@link IndexMap#get(int)} on a filled map, the latency distribution of inserting into a
+ * growing map, the latency of the single insert which makes a map grow, which shows the pause of
+ * rehashing or allocating a larger table, and, from {@link #main(String[])}, the memory
+ * each one needs for the same keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IndexMapBenchmark {
+
+    @Param({"10000000"})
+    private int keys;
+
+    @Param({"default", "offheap", "incremental", "dense"})
+    private String map;
+
+    private IndexMap index;
+
+    private static IndexMap create(final String map, final int keys) {
+        switch (map) {
+            case "default":
+                return new DefaultIndexMap();
+            case "offheap":
+                return new OffHeapIndexMap();
+            case "incremental":
+                return new IncrementalIndexMap();
+            case "dense":
+                return new DenseIndexMap(keys);
+            default:
+                throw new IllegalArgumentException("Unknown index map " + map);
+        }
+    }
+
+    private static IndexMap fill(final String map, final int keys) {
+        final IndexMap index = create(map, keys);
+        for (int key = 0; key < keys; key++) {
+            index.put(key, key);
+        }
+        return index;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        index = fill(map, keys);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (index instanceof Closeable) {
+            ((Closeable) index).close();
+        }
+    }
+
+    @Benchmark
+    public int get() {
+        return index.get(ThreadLocalRandom.current().nextInt(keys));
+    }
+
+    @Benchmark
+    public void put() {
+        final int key = ThreadLocalRandom.current().nextInt(keys);
+        index.put(key, key);
+    }
+
+    /**
+     * A map which starts out empty in every iteration, so that it keeps growing.
+     */
+    @State(Scope.Thread)
+    public static class GrowingMap {
+
+        private IndexMap index;
+        private int next;
+
+        @Setup(Level.Iteration)
+        public void setUp(final IndexMapBenchmark benchmark) {
+            index = create(benchmark.map, benchmark.keys);
+            next = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            if (index instanceof Closeable) {
+                ((Closeable) index).close();
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void insert(final GrowingMap growing) {
+        // Once it holds as many keys as the other benchmarks, it's only overwritten.
+        final int key = growing.next;
+        growing.next = key + 1 == keys ? 0 : key + 1;
+        growing.index.put(key, key);
+    }
+
+    /**
+     * A map which is filled in every iteration up to the point where the next new key makes it
+     * grow, for the last time before it holds as many keys as the other benchmarks. Where that is
+     * is found once, by filling a map until its reported memory last goes up.
+     */
+    @State(Scope.Thread)
+    public static class MapAboutToGrow {
+
+        private int keysBeforeGrowing;
+        private IndexMap index;
+
+        @Setup(Level.Trial)
+        public void findGrowth(final IndexMapBenchmark benchmark) throws IOException {
+            final IndexMap probe = create(benchmark.map, benchmark.keys);
+            long memory = probe.memoryUsageBytes();
+            for (int key = 0; key < benchmark.keys; key++) {
+                probe.put(key, key);
+                final long grown = probe.memoryUsageBytes();
+                if (grown > memory) {
+                    keysBeforeGrowing = key;
+                }
+                memory = grown;
+            }
+            if (probe instanceof Closeable) {
+                ((Closeable) probe).close();
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void setUp(final IndexMapBenchmark benchmark) {
+            index = create(benchmark.map, benchmark.keys);
+            for (int key = 0; key < keysBeforeGrowing; key++) {
+                index.put(key, key);
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            if (index instanceof Closeable) {
+                ((Closeable) index).close();
+            }
+        }
+    }
+
+    /**
+     * The single put which grows the map, which {@link #insert(GrowingMap)} only samples by
+     * chance.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public void grow(final MapAboutToGrow growing) {
+        growing.index.put(growing.keysBeforeGrowing, growing.keysBeforeGrowing);
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Prints the heap and native memory needed for 10 million keys, then runs the benchmarks.
+     */
+    public static void main(String[] args) throws RunnerException, IOException {
+        final int keys = 10_000_000;
+        for (String map : new String[]{"default", "offheap", "incremental", "dense"}) {
+            final long heapBefore = usedHeap();
+            final IndexMap index = fill(map, keys);
+            final long heap = usedHeap() - heapBefore;
+            final int size = index.size();
+            final long reported = index.memoryUsageBytes();
+            if (index instanceof Closeable) {
+                ((Closeable) index).close();
+            }
+            System.out.printf("%s: %d keys, %d MB more heap, %d MB reported by the map%n", map,
+                    size, heap >> 20, reported >> 20);
+        }
+
+        new Runner(new OptionsBuilder()
+                .include(IndexMapBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,126 @@
+package com.clevertap.stormdb.benchmarks;
+
+import com.clevertap.stormdb.StormDB;
+import com.clevertap.stormdb.StormDBBuilder;
+import com.clevertap.stormdb.exceptions.StormDBException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the throughput of {@link StormDB#randomGet(int)} as the number of reader threads
+ * grows, optionally while another thread keeps writing, and with or without memory mapped reads.
+ * <p>
+ * Run {@link #main(String[])} to repeat the benchmark for 1 to 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RandomGetBenchmark {
+
+    private static final int VALUE_SIZE = 28;
+
+    @Param({"1000000"})
+    private int keys;
+
+    @Param({"false", "true"})
+    private boolean concurrentWrites;
+
+    @Param({"false", "true"})
+    private boolean memoryMapped;
+
+    private Path dbDir;
+    private StormDB db;
+    private Thread writer;
+    private volatile boolean writing;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dbDir = Files.createTempDirectory("stormdb_benchmark");
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(dbDir)
+                .withValueSize(VALUE_SIZE)
+                .withAutoCompactDisabled();
+        if (memoryMapped) {
+            builder.withMemoryMappedReads();
+        }
+        db = builder.build();
+
+        final byte[] value = new byte[VALUE_SIZE];
+        for (int key = 0; key < keys; key++) {
+            db.put(key, value);
+        }
+        db.flush();
+
+        if (concurrentWrites) {
+            writing = true;
+            writer = new Thread(this::write, "stormdb-benchmark-writer");
+            writer.start();
+        }
+    }
+
+    private void write() {
+        final byte[] value = new byte[VALUE_SIZE];
+        try {
+            while (writing) {
+                db.put(ThreadLocalRandom.current().nextInt(keys), value);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        writing = false;
+        if (writer != null) {
+            writer.join();
+        }
+        db.close();
+
+        final File[] files = dbDir.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(dbDir);
+    }
+
+    @Benchmark
+    public byte[] randomGet() throws IOException, StormDBException {
+        return db.randomGet(ThreadLocalRandom.current().nextInt(keys));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            new Runner(new OptionsBuilder()
+                    .include(RandomGetBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build())
+                    .run();
+        }
+    }
+}
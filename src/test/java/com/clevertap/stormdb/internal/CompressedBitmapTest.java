@@ -0,0 +1,100 @@
+package com.clevertap.stormdb.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class CompressedBitmapTest {
+
+    @Test
+    void coversTheWholeKeySpace() {
+        final CompressedBitmap bitmap = new CompressedBitmap();
+        assertTrue(bitmap.isEmpty());
+
+        final int[] keys = {Integer.MIN_VALUE, -65537, -65536, -2, 0, 1, 65535, 65536,
+                Integer.MAX_VALUE - 1, Integer.MAX_VALUE};
+        for (int key : keys) {
+            assertFalse(bitmap.get(key));
+            bitmap.set(key);
+            bitmap.set(key);
+        }
+        for (int key : keys) {
+            assertTrue(bitmap.get(key), "key=" + key);
+        }
+        assertEquals(keys.length, bitmap.cardinality());
+        assertFalse(bitmap.get(-1));
+        assertFalse(bitmap.get(2));
+        assertFalse(bitmap.get(-65535));
+    }
+
+    @Test
+    void denseContainers() {
+        // Exceeds the size of an array container, so that it's converted to a bitmap.
+        final CompressedBitmap bitmap = new CompressedBitmap();
+        final int keys = CompressedBitmap.MAX_ARRAY_CONTAINER_SIZE * 3;
+        for (int key = keys - 1; key >= 0; key -= 2) {
+            bitmap.set(key);
+        }
+        for (int key = 0; key < keys; key += 2) {
+            bitmap.set(key);
+        }
+        assertEquals(keys, bitmap.cardinality());
+        for (int key = 0; key < keys; key++) {
+            assertTrue(bitmap.get(key));
+        }
+        assertFalse(bitmap.get(keys));
+    }
+
+    @Test
+    void copiesAndUnions() {
+        final CompressedBitmap empty = new CompressedBitmap().copy();
+        empty.set(1);
+        assertTrue(empty.get(1));
+
+        final CompressedBitmap evens = new CompressedBitmap();
+        final CompressedBitmap odds = new CompressedBitmap();
+        final int keys = CompressedBitmap.MAX_ARRAY_CONTAINER_SIZE * 4;
+        for (int key = 0; key < keys; key++) {
+            (key % 2 == 0 ? evens : odds).set(key - keys / 2);
+        }
+
+        final CompressedBitmap union = evens.copy();
+        union.or(odds);
+        union.or(new CompressedBitmap());
+        assertEquals(keys, union.cardinality());
+        for (int key = 0; key < keys; key++) {
+            assertTrue(union.get(key - keys / 2));
+        }
+
+        // The copy is independent of its source.
+        assertEquals(keys / 2, evens.cardinality());
+        assertFalse(evens.get(1 - keys / 2));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1 << 8, 1 << 16, 1 << 20, Integer.MAX_VALUE})
+    void matchesASetOfRandomKeys(final int bound) {
+        final Random random = new Random(bound);
+        final CompressedBitmap bitmap = new CompressedBitmap();
+        final Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 50_000; i++) {
+            final int key = random.nextBoolean() ? random.nextInt(bound) : -random.nextInt(bound);
+            bitmap.set(key);
+            expected.add(key);
+
+            final int probe = random.nextInt(bound) - bound / 2;
+            assertEquals(expected.contains(probe), bitmap.get(probe), "key=" + probe);
+        }
+        assertEquals(expected.size(), bitmap.cardinality());
+        for (int key : expected) {
+            assertTrue(bitmap.get(key));
+        }
+    }
+}
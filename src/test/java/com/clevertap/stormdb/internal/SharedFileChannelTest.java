@@ -0,0 +1,102 @@
+package com.clevertap.stormdb.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+
+class SharedFileChannelTest {
+
+    private static File newFile(final int longs) throws IOException {
+        final File file = Files.createTempFile("stormdb_", "_shared").toFile();
+        file.deleteOnExit();
+        final ByteBuffer content = ByteBuffer.allocate(longs * 8);
+        for (int i = 0; i < longs; i++) {
+            content.putLong(i);
+        }
+        Files.write(file.toPath(), content.array());
+        return file;
+    }
+
+    private static long readLong(final SharedFileChannel channel, final int index)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        channel.readFully(buffer, index * 8L);
+        return buffer.getLong(0);
+    }
+
+    @Test
+    void positionalReads() throws IOException {
+        try (final SharedFileChannel channel = new SharedFileChannel(newFile(100))) {
+            for (int i = 99; i >= 0; i--) {
+                assertEquals(i, readLong(channel, i));
+            }
+            assertEquals(800, channel.size());
+            assertThrows(EOFException.class, () -> readLong(channel, 100));
+            assertThrows(EOFException.class,
+                    () -> channel.readFully(ByteBuffer.allocate(16), 99 * 8L));
+        }
+    }
+
+    @Test
+    void closedOnceReleasedByEverybody() throws IOException {
+        final SharedFileChannel channel = new SharedFileChannel(newFile(10));
+        assertTrue(channel.retain());
+        assertTrue(channel.retain());
+
+        channel.close();
+        channel.close(); // The owner's reference is only given up once.
+        assertEquals(5, readLong(channel, 5));
+
+        channel.release();
+        assertEquals(5, readLong(channel, 5));
+
+        channel.release();
+        assertFalse(channel.retain());
+        assertThrows(ClosedChannelException.class, () -> readLong(channel, 5));
+    }
+
+    @Test
+    void reopenedAfterAnInterrupt() throws IOException {
+        try (final SharedFileChannel channel = new SharedFileChannel(newFile(10))) {
+            Thread.currentThread().interrupt();
+            try {
+                assertThrows(ClosedByInterruptException.class, () -> readLong(channel, 1));
+            } finally {
+                // Clear the interrupt.
+                assertTrue(Thread.interrupted());
+            }
+
+            // Other readers aren't affected.
+            assertEquals(1, readLong(channel, 1));
+            assertEquals(80, channel.size());
+        }
+    }
+
+    @Test
+    void notReopenedOnceClosedByTheOwner() throws IOException {
+        final SharedFileChannel channel = new SharedFileChannel(newFile(10));
+        assertTrue(channel.retain());
+        channel.close();
+
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(ClosedByInterruptException.class, () -> readLong(channel, 1));
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+
+        // The file may have been replaced since.
+        assertThrows(ClosedChannelException.class, () -> readLong(channel, 1));
+        channel.release();
+    }
+}
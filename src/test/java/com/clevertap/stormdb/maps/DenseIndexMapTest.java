@@ -0,0 +1,106 @@
+package com.clevertap.stormdb.maps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.clevertap.stormdb.StormDB;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class DenseIndexMapTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 1000, DenseIndexMap.PAGE_SIZE, 3 * DenseIndexMap.PAGE_SIZE + 1})
+    void testMatchesHashMap(final int keyRange) {
+        final Random random = new Random(keyRange);
+        final Map<Integer, Integer> expected = new HashMap<>();
+        final DenseIndexMap map = new DenseIndexMap(keyRange);
+        for (int i = 0; i < 100_000; i++) {
+            // Mostly within the range, but some outliers on either side.
+            int key = random.nextInt(keyRange + 2000) - 1000;
+            if (key == StormDB.RESERVED_KEY_MARKER) {
+                key = Integer.MIN_VALUE;
+            }
+            map.put(key, i);
+            expected.put(key, i);
+        }
+        map.put(Integer.MAX_VALUE, 1);
+        expected.put(Integer.MAX_VALUE, 1);
+
+        assertEquals(expected.size(), map.size());
+        for (int key = -1000; key < keyRange + 1000; key++) {
+            assertEquals((int) expected.getOrDefault(key, StormDB.RESERVED_KEY_MARKER),
+                    map.get(key));
+        }
+        assertEquals(1, map.get(Integer.MAX_VALUE));
+
+        final Map<Integer, Integer> iterated = new HashMap<>();
+        map.forEach((key, indexValue) -> assertEquals(null, iterated.put(key, indexValue)));
+        assertEquals(expected, iterated);
+    }
+
+    @Test
+    void testKeysAtTheEndOfTheKeySpace() {
+        final DenseIndexMap map = new DenseIndexMap(Integer.MAX_VALUE);
+        map.put(0, 1);
+        map.put(Integer.MAX_VALUE - 1, 2);
+        map.put(Integer.MAX_VALUE, 3);
+        assertEquals(1, map.get(0));
+        assertEquals(2, map.get(Integer.MAX_VALUE - 1));
+        assertEquals(3, map.get(Integer.MAX_VALUE));
+        assertEquals(StormDB.RESERVED_KEY_MARKER, map.get(Integer.MAX_VALUE - 2));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    void testOverflow() {
+        final Map<Integer, Integer> overflowed = new HashMap<>();
+        final DenseIndexMap map = new DenseIndexMap(10, new IndexMap() {
+            @Override
+            public void put(int key, int indexValue) {
+                overflowed.put(key, indexValue);
+            }
+
+            @Override
+            public int get(int key) {
+                return overflowed.getOrDefault(key, StormDB.RESERVED_KEY_MARKER);
+            }
+
+            @Override
+            public int size() {
+                return overflowed.size();
+            }
+        });
+        for (int key = -5; key < 15; key++) {
+            if (key != StormDB.RESERVED_KEY_MARKER) {
+                map.put(key, key * 10);
+            }
+        }
+        assertEquals(9, overflowed.size());
+        assertTrue(overflowed.keySet().stream().noneMatch(key -> key >= 0 && key < 10));
+        assertEquals(19, map.size());
+        assertEquals(-50, map.get(-5));
+        assertEquals(90, map.get(9));
+        assertEquals(100, map.get(10));
+
+        // The overflow map keeps the default forEach(), which isn't supported.
+        assertThrows(UnsupportedOperationException.class, () -> map.forEach((key, value) -> {
+        }));
+        assertEquals(false, map.supportsOptimisticReads());
+        assertEquals(true, new DenseIndexMap(10).supportsOptimisticReads());
+    }
+
+    @Test
+    void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new DenseIndexMap(0));
+        assertThrows(IllegalArgumentException.class, () -> new DenseIndexMap(-1));
+        assertThrows(IllegalArgumentException.class, () -> new DenseIndexMap(10, null));
+        assertThrows(IllegalArgumentException.class,
+                () -> new DenseIndexMap(10).put(StormDB.RESERVED_KEY_MARKER, 1));
+    }
+}
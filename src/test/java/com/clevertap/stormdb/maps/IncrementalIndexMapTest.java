@@ -0,0 +1,121 @@
+package com.clevertap.stormdb.maps;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.clevertap.stormdb.StormDB;
+import com.clevertap.stormdb.StormDBBuilder;
+import com.clevertap.stormdb.exceptions.StormDBException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class IncrementalIndexMapTest {
+
+    private static void assertSameEntries(final Map<Integer, Integer> expected,
+            final IndexMap map) {
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+        }
+        final Map<Integer, Integer> iterated = new HashMap<>();
+        map.forEach((key, indexValue) -> assertEquals(null, iterated.put(key, indexValue)));
+        assertEquals(expected, iterated);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 16, 100_000})
+    void testEntriesWhileRehashing(final int initialCapacity) {
+        // The load factor decides how many slots of the old table every put moves over.
+        for (float loadFactor : new float[]{0.5f, 0.75f, 0.9f}) {
+            final Map<Integer, Integer> expected = new HashMap<>();
+            final IncrementalIndexMap map = new IncrementalIndexMap(initialCapacity, loadFactor);
+            for (int i = 0; i < 200_000; i++) {
+                // Keys which were moved already, and keys which weren't, are overwritten too.
+                final int key = (int) (i * 2_654_435_761L % 150_000);
+                map.put(key, i);
+                expected.put(key, i);
+
+                if (i % 9973 == 0) {
+                    assertSameEntries(expected, map);
+                }
+            }
+            assertSameEntries(expected, map);
+        }
+    }
+
+    @Test
+    void testEveryPutWhileGrowing() {
+        // Checks the entries after every put, across several tables taking over.
+        final Map<Integer, Integer> expected = new HashMap<>();
+        final IncrementalIndexMap map = new IncrementalIndexMap(4, 0.75f);
+        for (int i = 0; i < 3000; i++) {
+            final int key = (i * 7919) % 2000;
+            map.put(key, -i);
+            expected.put(key, -i);
+            assertSameEntries(expected, map);
+        }
+    }
+
+    @Test
+    void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new IncrementalIndexMap(-1, 0.75f));
+        assertThrows(IllegalArgumentException.class, () -> new IncrementalIndexMap(10, 0));
+        assertThrows(IllegalArgumentException.class, () -> new IncrementalIndexMap(10, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new IncrementalIndexMap(Integer.MAX_VALUE, 0.5f));
+        assertThrows(IllegalArgumentException.class,
+                () -> new IncrementalIndexMap().put(StormDB.RESERVED_KEY_MARKER, 1));
+    }
+
+    @Test
+    void testWithStormDB() throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int valueSize = 8;
+        final int keys = 50_000;
+        final StormDB db = new StormDBBuilder()
+                .withDbDir(path)
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled()
+                .withIndexMap(new IncrementalIndexMap(16, 0.75f))
+                .build();
+
+        // Look keys up while the index keeps growing underneath.
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread reader = new Thread(() -> {
+            final Random random = new Random(0);
+            try {
+                while (db.size() < keys) {
+                    final int key = random.nextInt(keys);
+                    final byte[] value = db.randomGet(key);
+                    if (value != null) {
+                        assertEquals(key, ByteBuffer.wrap(value).getLong());
+                    }
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        reader.start();
+        for (int key = 0; key < keys; key++) {
+            db.put(key, ByteBuffer.allocate(valueSize).putLong(key).array());
+        }
+        reader.join();
+        assertEquals(null, failure.get());
+
+        for (int key = 0; key < keys; key++) {
+            assertArrayEquals(ByteBuffer.allocate(valueSize).putLong(key).array(),
+                    db.randomGet(key));
+        }
+        db.close();
+    }
+}
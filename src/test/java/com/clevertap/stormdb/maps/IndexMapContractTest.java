@@ -0,0 +1,179 @@
+package com.clevertap.stormdb.maps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.clevertap.stormdb.StormDB;
+import com.clevertap.stormdb.StormDBBuilder;
+import com.clevertap.stormdb.exceptions.StormDBException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Checks the behaviour which every index map shares, including the optional parts, against every
+ * implementation. An {@link IndexMap} is checked through an {@link IntIndexMapAdapter}, which is
+ * how the database uses it.
+ */
+class IndexMapContractTest {
+
+    private static IndexMap createIntMap(final String map) {
+        switch (map) {
+            case "default":
+                return new DefaultIndexMap(16, 0.95f);
+            case "offheap":
+                return new OffHeapIndexMap(16, 0.75f);
+            case "incremental":
+                return new IncrementalIndexMap(16, 0.75f);
+            case "dense":
+                return new DenseIndexMap(20_000);
+            default:
+                throw new IllegalArgumentException(map);
+        }
+    }
+
+    private static LongIndexMap create(final String map) {
+        if (map.equals("packed")) {
+            return new PackedLongIndexMap(16, 0.75f);
+        }
+        return new IntIndexMapAdapter(createIntMap(map));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"default", "offheap", "incremental", "dense", "packed"})
+    void testMatchesHashMap(final String type) {
+        final LongIndexMap map = create(type);
+        final Map<Integer, Long> expected = new HashMap<>();
+        final Random random = new Random(1);
+        for (int i = 0; i < 200_000; i++) {
+            // A narrow range, so that keys are overwritten too, also while the map grows.
+            int key = random.nextInt(150_000) - 75_000;
+            if (key == StormDB.RESERVED_KEY_MARKER) {
+                key = Integer.MIN_VALUE;
+            }
+            map.put(key, i);
+            expected.put(key, (long) i);
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (int key = -75_000; key < 75_000; key++) {
+            assertEquals((long) expected.getOrDefault(key, (long) StormDB.RESERVED_KEY_MARKER),
+                    map.get(key));
+        }
+        assertEquals((long) expected.getOrDefault(Integer.MIN_VALUE,
+                (long) StormDB.RESERVED_KEY_MARKER), map.get(Integer.MIN_VALUE));
+        assertEquals(StormDB.RESERVED_KEY_MARKER, map.get(Integer.MAX_VALUE));
+
+        final Map<Integer, Long> iterated = new HashMap<>();
+        map.forEach((key, indexValue) -> assertNull(iterated.put(key, indexValue)));
+        assertEquals(expected, iterated);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"default", "offheap", "incremental", "dense", "packed"})
+    void testPutAndGetPrevious(final String type) {
+        final LongIndexMap map = create(type);
+        final Map<Integer, Long> expected = new HashMap<>();
+        final Random random = new Random(0);
+        for (int i = 0; i < 100_000; i++) {
+            final int key = random.nextInt(50_000) - 10_000;
+            if (key == StormDB.RESERVED_KEY_MARKER) {
+                continue;
+            }
+            final Long previous = expected.put(key, (long) i);
+            assertEquals(previous == null ? StormDB.RESERVED_KEY_MARKER : previous,
+                    map.putAndGetPrevious(key, i));
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"default", "offheap", "incremental", "dense", "packed"})
+    void testEnsureCapacityKeepsEntries(final String type) {
+        final LongIndexMap map = create(type);
+        for (int key = 0; key < 1000; key++) {
+            map.put(key, key * 2);
+        }
+        final long before = map.memoryUsageBytes();
+        assertTrue(before > 0);
+
+        map.ensureCapacity(100_000);
+        if (!type.equals("dense")) {
+            // The dense map needs no room for keys in its range.
+            assertTrue(map.memoryUsageBytes() > before);
+        }
+        // A smaller hint than the size is ignored.
+        map.ensureCapacity(10);
+
+        for (int key = 1000; key < 100_000; key++) {
+            map.put(key, key * 2);
+        }
+        assertEquals(100_000, map.size());
+        for (int key = 0; key < 100_000; key++) {
+            assertEquals(key * 2, map.get(key));
+        }
+    }
+
+    private static StormDBBuilder builder(final Path path, final String type) {
+        final StormDBBuilder builder = new StormDBBuilder()
+                .withDbDir(path)
+                .withValueSize(8)
+                .withAutoCompactDisabled();
+        if (type.equals("packed")) {
+            return builder.withLongIndexMap(create(type));
+        }
+        return builder.withIndexMap(createIntMap(type));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"default", "offheap", "incremental", "dense", "packed"})
+    void testWithStormDB(final String type)
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int keys = 20_000;
+        StormDB db = builder(path, type).build();
+        for (int key = 0; key < keys; key++) {
+            db.put(key, ByteBuffer.allocate(8).putLong(key).array());
+        }
+        db.compact();
+        for (int key = 0; key < keys; key += 2) {
+            db.put(key, ByteBuffer.allocate(8).putLong(-key).array());
+        }
+        db.close();
+
+        // Loaded from the index snapshot, and then rebuilt from the files.
+        for (boolean snapshot : new boolean[]{true, false}) {
+            final StormDBBuilder builder = builder(path, type);
+            if (!snapshot) {
+                builder.withIndexSnapshotsDisabled();
+            }
+            db = builder.build();
+            assertEquals(keys, db.size());
+            final int[] batch = new int[keys];
+            for (int key = 0; key < keys; key++) {
+                final long expected = key % 2 == 0 ? -key : key;
+                assertEquals(expected, ByteBuffer.wrap(db.randomGet(key)).getLong());
+                batch[keys - 1 - key] = key;
+            }
+            final byte[] values = new byte[keys * 8];
+            final BitSet missing = db.multiGet(batch, values, 8);
+            assertTrue(missing.isEmpty());
+            for (int i = 0; i < keys; i++) {
+                final long expected = batch[i] % 2 == 0 ? -batch[i] : batch[i];
+                assertEquals(expected, ByteBuffer.wrap(values, i * 8, 8).getLong());
+            }
+            db.close();
+        }
+    }
+}
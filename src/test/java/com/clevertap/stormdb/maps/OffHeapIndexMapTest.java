@@ -0,0 +1,102 @@
+package com.clevertap.stormdb.maps;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.clevertap.stormdb.StormDB;
+import com.clevertap.stormdb.StormDBBuilder;
+import com.clevertap.stormdb.exceptions.StormDBException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+
+class OffHeapIndexMapTest {
+
+    @Test
+    void testValuesUseAllBits() {
+        try (OffHeapIndexMap map = new OffHeapIndexMap()) {
+            map.put(1, -2);
+            map.put(-2, Integer.MIN_VALUE);
+            map.put(Integer.MAX_VALUE, Integer.MAX_VALUE);
+            assertEquals(-2, map.get(1));
+            assertEquals(Integer.MIN_VALUE, map.get(-2));
+            assertEquals(Integer.MAX_VALUE, map.get(Integer.MAX_VALUE));
+            assertEquals(3, map.size());
+        }
+    }
+
+    @Test
+    void testMemoryUsage() {
+        final OffHeapIndexMap map = new OffHeapIndexMap(1000, 0.5f);
+        // 2000 slots, rounded up to a power of two.
+        assertEquals(2048L * Long.BYTES, map.memoryUsageBytes());
+
+        for (int key = 0; key < 1025; key++) {
+            map.put(key, key);
+        }
+        assertEquals(4096L * Long.BYTES, map.memoryUsageBytes());
+
+        map.close();
+        assertEquals(0, map.memoryUsageBytes());
+        assertEquals(0, map.size());
+        map.close();
+    }
+
+    @Test
+    void testClosedMapCannotBeUsed() {
+        final OffHeapIndexMap map = new OffHeapIndexMap();
+        map.put(1, 1);
+        map.close();
+        assertThrows(IllegalStateException.class, () -> map.get(1));
+        assertThrows(IllegalStateException.class, () -> map.put(1, 1));
+        assertThrows(IllegalStateException.class, () -> map.forEach((key, value) -> {
+        }));
+    }
+
+    @Test
+    void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapIndexMap(-1, 0.75f));
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapIndexMap(10, 0));
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapIndexMap(10, 1));
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapIndexMap(10, Float.NaN));
+        try (OffHeapIndexMap map = new OffHeapIndexMap()) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> map.put(StormDB.RESERVED_KEY_MARKER, 1));
+        }
+    }
+
+    @Test
+    void testClosingStormDBFreesTheIndex()
+            throws IOException, StormDBException, InterruptedException {
+        final Path path = Files.createTempDirectory("stormdb");
+        final int valueSize = 8;
+        StormDB db = buildDb(path, valueSize, new OffHeapIndexMap(16, 0.75f));
+        for (int key = 0; key < 1000; key++) {
+            db.put(key, ByteBuffer.allocate(valueSize).putLong(key).array());
+        }
+        db.close();
+
+        final OffHeapIndexMap index = new OffHeapIndexMap();
+        db = buildDb(path, valueSize, index);
+        assertArrayEquals(ByteBuffer.allocate(valueSize).putLong(999).array(), db.randomGet(999));
+        assertTrue(index.memoryUsageBytes() > 0);
+        db.close();
+
+        assertEquals(0, index.memoryUsageBytes());
+        assertThrows(IllegalStateException.class, () -> index.get(1));
+    }
+
+    private static StormDB buildDb(final Path path, final int valueSize, final IndexMap index)
+            throws IOException {
+        return new StormDBBuilder()
+                .withDbDir(path)
+                .withValueSize(valueSize)
+                .withAutoCompactDisabled()
+                .withIndexMap(index)
+                .build();
+    }
+}
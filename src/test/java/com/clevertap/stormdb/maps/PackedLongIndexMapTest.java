@@ -0,0 +1,121 @@
+package com.clevertap.stormdb.maps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.clevertap.stormdb.StormDB;
+import com.clevertap.stormdb.StormDBBuilder;
+import com.clevertap.stormdb.exceptions.IncorrectConfigException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class PackedLongIndexMapTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 16, 100_000})
+    void testValuesBeyondAnInt(final int initialCapacity) {
+        final Random random = new Random(initialCapacity);
+        final Map<Integer, Long> expected = new HashMap<>();
+        final PackedLongIndexMap map = new PackedLongIndexMap(initialCapacity, 0.75f);
+        for (int i = 0; i < 200_000; i++) {
+            final int key = random.nextInt(150_000) - 75_000;
+            if (key == StormDB.RESERVED_KEY_MARKER) {
+                continue;
+            }
+            // Spread across the whole range, most of which is beyond an int.
+            final long indexValue =
+                    (long) (random.nextDouble() * PackedLongIndexMap.MAX_INDEX_VALUE);
+            final Long previous = expected.put(key, indexValue);
+            assertEquals(previous == null ? StormDB.RESERVED_KEY_MARKER : previous,
+                    map.putAndGetPrevious(key, indexValue));
+        }
+        map.put(Integer.MAX_VALUE, PackedLongIndexMap.MAX_INDEX_VALUE);
+        expected.put(Integer.MAX_VALUE, PackedLongIndexMap.MAX_INDEX_VALUE);
+        map.put(1, 0);
+        expected.put(1, 0L);
+
+        for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), map.get(entry.getKey()));
+        }
+        final Map<Integer, Long> iterated = new HashMap<>();
+        map.forEach((key, indexValue) -> assertNull(iterated.put(key, indexValue)));
+        assertEquals(expected, iterated);
+    }
+
+    @Test
+    void testEnsureCapacityKeepsEntries() {
+        final PackedLongIndexMap map = new PackedLongIndexMap(16, 0.75f);
+        for (int key = 0; key < 1000; key++) {
+            map.put(key, key + (1L << 35));
+        }
+        final long before = map.memoryUsageBytes();
+        map.ensureCapacity(100_000);
+        assertTrue(map.memoryUsageBytes() > before);
+        for (int key = 0; key < 1000; key++) {
+            assertEquals(key + (1L << 35), map.get(key));
+        }
+    }
+
+    @Test
+    void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new PackedLongIndexMap(-1, 0.75f));
+        assertThrows(IllegalArgumentException.class, () -> new PackedLongIndexMap(10, 0));
+        assertThrows(IllegalArgumentException.class, () -> new PackedLongIndexMap(10, 1));
+        final PackedLongIndexMap map = new PackedLongIndexMap();
+        assertThrows(IllegalArgumentException.class,
+                () -> map.put(StormDB.RESERVED_KEY_MARKER, 1));
+        assertThrows(IllegalArgumentException.class, () -> map.put(1, -1));
+        assertThrows(IllegalArgumentException.class,
+                () -> map.put(1, PackedLongIndexMap.MAX_INDEX_VALUE + 1));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    void testIntIndexMapAdapter() {
+        final IntIndexMapAdapter adapter = new IntIndexMapAdapter(new DefaultIndexMap());
+        adapter.put(1, Integer.MAX_VALUE);
+        assertEquals(Integer.MAX_VALUE, adapter.get(1));
+        assertEquals(StormDB.RESERVED_KEY_MARKER, adapter.get(2));
+
+        // Record indices which an int can't hold fail, rather than being truncated.
+        assertThrows(IllegalArgumentException.class,
+                () -> adapter.put(2, Integer.MAX_VALUE + 1L));
+        assertThrows(IllegalArgumentException.class,
+                () -> adapter.putAndGetPrevious(1, 1L << 32));
+        assertEquals(Integer.MAX_VALUE, adapter.get(1));
+        assertEquals(1, adapter.size());
+        assertThrows(IllegalArgumentException.class, () -> new IntIndexMapAdapter(null));
+    }
+
+    @Test
+    void testInvalidConfig() throws IOException {
+        final Path path = Files.createTempDirectory("stormdb");
+        assertThrows(IncorrectConfigException.class, () -> new StormDBBuilder()
+                .withDbDir(path)
+                .withValueSize(8)
+                .withLongIndexMap(new PackedLongIndexMap())
+                .withIndexMap(new DefaultIndexMap())
+                .build());
+        assertThrows(IncorrectConfigException.class, () -> new StormDBBuilder()
+                .withDbDir(path)
+                .withValueSize(8)
+                .withLongIndexMap(new PackedLongIndexMap())
+                .withDenseIndex(100)
+                .build());
+        assertThrows(IncorrectConfigException.class, () -> new StormDBBuilder()
+                .withDbDir(path)
+                .withValueSize(8)
+                .withShardCount(2)
+                .withLongIndexMap(new PackedLongIndexMap())
+                .buildSharded());
+    }
+}
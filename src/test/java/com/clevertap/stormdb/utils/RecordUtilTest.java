@@ -28,5 +28,10 @@ class RecordUtilTest {
 
         // Large addresses.
         assertEquals(Integer.MAX_VALUE - 1, RecordUtil.addressToIndex(10, 21709717480L));
+
+        // Addresses whose record indices don't fit into an int.
+        final long recordIndex = (1L << 40) - 1;
+        assertEquals(recordIndex,
+                RecordUtil.addressToIndex(10, RecordUtil.indexToAddress(10, recordIndex)));
     }
 }
\ No newline at end of file